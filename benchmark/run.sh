@@ -0,0 +1,24 @@
+#!/bin/sh
+# Runs the JMH benchmarks, and compares them with a baseline only when BASELINE names one (exit code 2
+# on a regression). Scores depend on the machine: compare with a baseline recorded on the same machine,
+# e.g. a results.json of an earlier run copied aside. baseline/results.json is only for reference.
+#
+#   ./run.sh                                      all benchmarks
+#   BASELINE=old.json ./run.sh                    all benchmarks, compared with old.json
+#   ./run.sh -p fileSize=10240 TransactionBody    one benchmark, one file size
+#   PROF=stack ./run.sh ...                       another JMH profiler: gc (default), stack, perfasm,
+#                                                 async:libPath=/path/to/libasyncProfiler.so;output=flamegraph
+#
+# Build first: mvn install in the parent directory, then mvn package here.
+# DebugNonSafepoints lets sampling profilers attribute time to the right lines.
+case "$BASELINE" in
+	""|/*) ;;
+	*) BASELINE="$PWD/$BASELINE" ;;
+esac
+cd "$(dirname "$0")"
+exec java -jar target/benchmarks.jar \
+	-jvmArgsAppend "-XX:+UnlockDiagnosticVMOptions -XX:+DebugNonSafepoints" \
+	-prof "${PROF:-gc}" \
+	-rf json -rff results.json \
+	${BASELINE:+--baseline "$BASELINE"} \
+	"$@"
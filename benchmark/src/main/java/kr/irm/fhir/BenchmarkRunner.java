@@ -0,0 +1,122 @@
+package kr.irm.fhir;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// JMH main with one extra option, --baseline <results.json>: after the run, each score is
+// compared with the same benchmark and parameters there, and the exit code is 2 on a regression.
+// Without the option nothing is compared; a baseline is only meaningful from the same machine.
+public class BenchmarkRunner {
+
+	private static final String OPTION_BASELINE = "--baseline";
+	// score changes within the usual run-to-run noise, or within the score errors, are not reported as regressions
+	private static final double REGRESSION_THRESHOLD = 0.10;
+
+	public static void main(String[] args) throws Exception {
+		File baselineFile = null;
+		List<String> jmhArgs = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			if (OPTION_BASELINE.equals(args[i]) && i + 1 < args.length) {
+				baselineFile = new File(args[++i]);
+			} else {
+				jmhArgs.add(args[i]);
+			}
+		}
+
+		CommandLineOptions options = new CommandLineOptions(jmhArgs.toArray(new String[0]));
+		if (options.shouldHelp() || options.shouldList() || options.shouldListProfilers() || options.shouldListResultFormats()) {
+			new Runner(options).list();
+			if (options.shouldHelp()) {
+				options.showHelp();
+				System.out.println("  " + OPTION_BASELINE + " <file>    Compare the scores with a JMH JSON result file");
+			}
+			return;
+		}
+		Collection<RunResult> results = new Runner(options).run();
+
+		if (baselineFile != null) {
+			if (!baselineFile.exists()) {
+				System.out.println("baseline NOT found: " + baselineFile);
+				return;
+			}
+			System.exit(compare(results, readBaseline(baselineFile)) ? 2 : 0);
+		}
+	}
+
+	// true if any benchmark is slower than its baseline by more than the threshold
+	private static boolean compare(Collection<RunResult> results, Map<String, double[]> baseline) {
+		boolean regression = false;
+		System.out.println();
+		System.out.println(String.format("%-70s %14s %14s %9s", "Benchmark (baseline)", "baseline", "score", "change"));
+		for (RunResult result : results) {
+			String key = key(result.getParams().getBenchmark(), result.getParams().getParamsKeys().isEmpty()
+				? Collections.emptyMap() : params(result));
+			double score = result.getPrimaryResult().getScore();
+			double error = result.getPrimaryResult().getScoreError();
+			double[] base = baseline.get(key);
+			if (base == null) {
+				System.out.println(String.format("%-70s %14s %14.3f %9s", key, "-", score, "new"));
+				continue;
+			}
+			// average time: lower is better; throughput: higher is better
+			double change = (score - base[0]) / base[0];
+			boolean lowerIsBetter = result.getParams().getMode().shortLabel().matches("avgt|sample|ss");
+			boolean worse = lowerIsBetter ? change > REGRESSION_THRESHOLD : change < -REGRESSION_THRESHOLD;
+			// NaN errors, e.g. of a single iteration, do not hide a change
+			worse &= !(Math.abs(score - base[0]) <= error + base[1]);
+			regression |= worse;
+			System.out.println(String.format("%-70s %14.3f %14.3f %+8.1f%%%s", key, base[0], score, change * 100, worse ? " REGRESSION" : ""));
+		}
+		return regression;
+	}
+
+	private static Map<String, String> params(RunResult result) {
+		Map<String, String> params = new TreeMap<>();
+		for (String name : result.getParams().getParamsKeys()) {
+			params.put(name, result.getParams().getParam(name));
+		}
+		return params;
+	}
+
+	// score and score error of each benchmark
+	private static Map<String, double[]> readBaseline(File file) throws IOException {
+		Map<String, double[]> baseline = new HashMap<>();
+		try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+			for (JsonElement element : new JsonParser().parse(reader).getAsJsonArray()) {
+				JsonObject benchmark = element.getAsJsonObject();
+				Map<String, String> params = new TreeMap<>();
+				if (benchmark.has("params")) {
+					for (Map.Entry<String, JsonElement> param : benchmark.getAsJsonObject("params").entrySet()) {
+						params.put(param.getKey(), param.getValue().getAsString());
+					}
+				}
+				JsonObject metric = benchmark.getAsJsonObject("primaryMetric");
+				baseline.put(key(benchmark.get("benchmark").getAsString(), params), new double[] {
+					metric.get("score").getAsDouble(), error(metric.get("scoreError"))});
+			}
+		}
+		return baseline;
+	}
+
+	// "NaN" in the JSON of a run without enough iterations
+	private static double error(JsonElement element) {
+		try {
+			return element.getAsDouble();
+		} catch (RuntimeException e) {
+			return Double.NaN;
+		}
+	}
+
+	private static String key(String benchmark, Map<String, String> params) {
+		String name = benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1);
+		return params.isEmpty() ? name : name + " " + params;
+	}
+}
@@ -0,0 +1,71 @@
+package kr.irm.fhir;
+
+import org.apache.commons.cli.Options;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+
+import java.io.*;
+import java.util.*;
+
+// Option maps and data files shared by the benchmarks
+final class BenchmarkSupport extends UtilContext {
+
+	private static final int WRITE_BLOCK_SIZE = 1024 * 1024;
+
+	private BenchmarkSupport() {
+	}
+
+	// the INFO lines of every resource field would otherwise be most of what is measured
+	static void quietLogging() {
+		LogManager.getRootLogger().setLevel(Level.WARN);
+	}
+
+	// the options of src/etc/example.txt, plus the required created date and source
+	static Map<String, Object> optionMap(File data) {
+		String[] args = {
+			"-s", "http://localhost:8080/fhir",
+			"-m", "1152644^Pathology study^http://loinc.org",
+			"--manifest-title", "병리 슬라이드 영상",
+			"-c", "27898-6^Pathology studies (set)^http://loinc.org",
+			"-t", "11526-1^Pathology study^http://loinc.org",
+			"--content-type", "image/jpeg",
+			"-i", "1234567",
+			"--manifest-uid-seed", "123456",
+			"--manifest-created", "20200101",
+			"--source", "1.2.3.4",
+			"-d", data.getPath(),
+		};
+		Options opts = new Options();
+		MHDsend.setOptions(opts);
+		Map<String, Object> optionMap = new HashMap<>();
+		if (MHDsend.parseOptions(optionMap, opts, args)) {
+			throw new IllegalStateException("invalid benchmark options: " + Arrays.toString(args));
+		}
+		return optionMap;
+	}
+
+	// the option map merged with its first document, as FhirSend sees it when preparing a document
+	static Map<String, Object> documentOptions(Map<String, Object> optionMap) {
+		Map<String, Object> options = new HashMap<>(optionMap);
+		options.putAll(BatchSend.documents(optionMap).get(0));
+		return options;
+	}
+
+	// random content, so no layer below can shortcut zero pages
+	static File dataFile(long size) throws IOException {
+		File file = File.createTempFile("mhdsend-benchmark-", ".bin");
+		file.deleteOnExit();
+		Random random = new Random(size);
+		byte[] block = new byte[WRITE_BLOCK_SIZE];
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), WRITE_BLOCK_SIZE)) {
+			long remaining = size;
+			while (remaining > 0) {
+				random.nextBytes(block);
+				int n = (int) Math.min(block.length, remaining);
+				out.write(block, 0, n);
+				remaining -= n;
+			}
+		}
+		return file;
+	}
+}
@@ -0,0 +1,67 @@
+package kr.irm.fhir;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Option parsing helpers run for every code and uid of every document
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class CodeBenchmark {
+
+	public String code = "11526-1^Pathology study^http://loinc.org";
+	public String uidSeed = "123456/SlideMicroscopy.jpg";
+
+	private Terminology terminology;
+	private Code parsedCode;
+
+	@Setup
+	public void setup() throws IOException {
+		terminology = Terminology.open(null);
+		parsedCode = Code.splitCode(code);
+	}
+
+	@Benchmark
+	public Code splitCode() {
+		return Code.splitCode(code);
+	}
+
+	@Benchmark
+	public boolean checkCode() {
+		return MHDsend.checkCode(code);
+	}
+
+	// the packaged value sets, looked up in place
+	@Benchmark
+	public Code checkTerminology() {
+		return terminology.check(UtilContext.OPTION_TYPE, parsedCode, Terminology.MODE_WARN);
+	}
+
+	// 2.25.<uuid as decimal>
+	@Benchmark
+	public String newOIDbyString() {
+		return MHDsend.newOIDbyString(uidSeed, 1);
+	}
+
+	@Benchmark
+	public String newUUIDbyString() {
+		return MHDsend.newOIDbyString(uidSeed, 0);
+	}
+
+	@Benchmark
+	public String randomOID() {
+		return UidGenerator.randomOID();
+	}
+
+	// the ids of many documents at once
+	@Benchmark
+	@Threads(8)
+	public String randomUUID() {
+		return UidGenerator.randomUUID();
+	}
+}
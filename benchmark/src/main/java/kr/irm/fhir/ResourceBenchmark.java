@@ -0,0 +1,84 @@
+package kr.irm.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Building the ITI-65 resources and encoding the bundle, without the Binary.data (see TransactionBodyBenchmark)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class ResourceBenchmark {
+
+	private static final String PATIENT_RESOURCE_ID = "Patient/1";
+
+	private final FhirContext fhirContext = SharedFhirContext.get();
+	private FhirSend fhirSend;
+	private File data;
+	private Map<String, Object> optionMap;
+	private Map<String, Object> documentOptions;
+	private Bundle bundle;
+	private Binary binary;
+
+	@Setup
+	public void setup() throws IOException {
+		BenchmarkSupport.quietLogging();
+		fhirSend = new FhirSend();
+		data = BenchmarkSupport.dataFile(10 * 1024);
+		optionMap = BenchmarkSupport.optionMap(data);
+		documentOptions = BenchmarkSupport.documentOptions(optionMap);
+		bundle = buildBundle();
+		binary = (Binary) bundle.getEntry().get(2).getResource();
+	}
+
+	@TearDown
+	public void tearDown() {
+		data.delete();
+	}
+
+	@Benchmark
+	public DocumentManifest createDocumentManifest() {
+		return fhirSend.createDocumentManifest(PATIENT_RESOURCE_ID, optionMap);
+	}
+
+	@Benchmark
+	public DocumentReference createDocumentReference() {
+		return fhirSend.createDocumentReference(PATIENT_RESOURCE_ID, documentOptions);
+	}
+
+	@Benchmark
+	public Binary createBinary() {
+		return fhirSend.createBinary(documentOptions);
+	}
+
+	@Benchmark
+	public Bundle buildBundle() {
+		Bundle bundle = new Bundle();
+		bundle.setType(Bundle.BundleType.TRANSACTION);
+		fhirSend.addDocumentManifestToBundle(fhirSend.createDocumentManifest(PATIENT_RESOURCE_ID, optionMap), bundle);
+		fhirSend.addDocumentReferenceToBundle(fhirSend.createDocumentReference(PATIENT_RESOURCE_ID, documentOptions), bundle);
+		fhirSend.addBinaryToBundle(fhirSend.createBinary(documentOptions), bundle);
+		return bundle;
+	}
+
+	// the JSON encode alone
+	@Benchmark
+	public String encodeBundle() {
+		return fhirContext.newJsonParser().encodeResourceToString(bundle);
+	}
+
+	// encode with the Binary.data marker and split, as done for every transaction
+	@Benchmark
+	public TransactionBody encodeTransactionBody() {
+		return new TransactionBody(fhirContext, bundle, Collections.singletonMap(binary, data));
+	}
+}
@@ -0,0 +1,82 @@
+package kr.irm.fhir;
+
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Writing the transaction body: reading the file and base64-encoding it into the request.
+// This replaced reading the whole file into Binary.data (getByteData) and encoding it with the bundle.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx256m")
+public class TransactionBodyBenchmark {
+
+	// 10 KB, 1 MB, 100 MB, 1 GB; the files are created once per fork in the temp directory
+	@Param({ "10240", "1048576", "104857600", "1073741824" })
+	public long fileSize;
+
+	private File data;
+	private TransactionBody body;
+
+	@Setup
+	public void setup() throws IOException {
+		BenchmarkSupport.quietLogging();
+		data = BenchmarkSupport.dataFile(fileSize);
+		Map<String, Object> options = BenchmarkSupport.documentOptions(BenchmarkSupport.optionMap(data));
+
+		FhirSend fhirSend = new FhirSend();
+		Bundle bundle = new Bundle();
+		bundle.setType(Bundle.BundleType.TRANSACTION);
+		fhirSend.addDocumentReferenceToBundle(fhirSend.createDocumentReference("Patient/1", options), bundle);
+		Binary binary = fhirSend.createBinary(options);
+		fhirSend.addBinaryToBundle(binary, bundle);
+		body = new TransactionBody(SharedFhirContext.get(), bundle, Collections.singletonMap(binary, data));
+	}
+
+	@TearDown
+	public void tearDown() {
+		data.delete();
+	}
+
+	@Benchmark
+	public long writeTo(Blackhole blackhole) throws IOException {
+		BlackholeOutputStream out = new BlackholeOutputStream(blackhole);
+		body.writeTo(out);
+		return out.count;
+	}
+
+	/////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+	// a socket that costs nothing
+	static class BlackholeOutputStream extends OutputStream {
+		private final Blackhole blackhole;
+		long count = 0;
+
+		BlackholeOutputStream(Blackhole blackhole) {
+			this.blackhole = blackhole;
+		}
+
+		@Override
+		public void write(int b) {
+			blackhole.consume(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			blackhole.consume(b);
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,70 @@
+#!/bin/sh
+# -------------------------------------------------------------------------
+# MHDSEND  Class data sharing archive (JDK 13+)
+#
+# A training run sends the sample document of etc/ to NDJSON files and
+# starts a $import on a closed local port, so the FHIR model, parser,
+# HTTP client and logging classes it loads are archived in
+# lib/MHDsend.jsa. MHDsend.sh maps them from the archive instead of
+# loading and verifying them again on every run.
+#
+# Run this once after installing, and again after changing the JDK. The
+# archive is written to a temporary name and moved into place, so a run
+# that maps the previous archive is not affected.
+# -------------------------------------------------------------------------
+
+MAIN_CLASS=kr.irm.fhir.MHDsend
+
+DIRNAME="`dirname "$0"`"
+
+# Setup $MHDSEND_HOME
+if [ "x$MHDSEND_HOME" = "x" ]; then
+    MHDSEND_HOME=`cd "$DIRNAME"/..; pwd`
+fi
+
+# Setup the JVM
+if [ "x$JAVA_HOME" != "x" ]; then
+    JAVA=$JAVA_HOME/bin/java
+else
+    JAVA="java"
+fi
+
+# Setup the classpath, as in MHDsend.sh: the archive is used only with the same classpath
+CP="$MHDSEND_HOME/etc/MHDsend/"
+for s in $MHDSEND_HOME/lib/*.jar
+do
+	CP="$CP:$s"
+done
+
+CDS_ARCHIVE="$MHDSEND_HOME/lib/MHDsend.jsa"
+CDS_LOCK="$CDS_ARCHIVE.lock"
+CDS_TMP="$CDS_ARCHIVE.$$"
+
+# one training run at a time
+if ! mkdir "$CDS_LOCK" 2> /dev/null; then
+    echo "class data sharing archive NOT created: $CDS_LOCK exists, another run is creating it" >&2
+    exit 1
+fi
+trap 'rm -f "$CDS_TMP"; rmdir "$CDS_LOCK"' EXIT
+trap 'exit 1' INT TERM HUP
+
+TRAINING_DIR=`mktemp -d "${TMPDIR:-/tmp}/MHDsend-cds.XXXXXX"` || exit 1
+
+# The training run fails at the $import, after it has loaded what a send loads
+cd "$TRAINING_DIR"
+$JAVA -XX:ArchiveClassesAtExit="$CDS_TMP" -cp "$CP" $MAIN_CLASS \
+    -s http://127.0.0.1:9/fhir --connect-timeout 1 \
+    -i training -d "$MHDSEND_HOME/etc/SlideMicroscopy.jpg" --content-type image/jpeg \
+    -m "11488-4^Consult note^http://loinc.org" -c "11488-4^Consult note^http://loinc.org" \
+    -t "11488-4^Consult note^http://loinc.org" --manifest-created 20200101 \
+    --source 1.2.3 --manifest-title training \
+    --export "$TRAINING_DIR/export" --export-import http://127.0.0.1:9/export > "$TRAINING_DIR/training.log" 2>&1
+cd - > /dev/null
+rm -rf "$TRAINING_DIR"
+
+if [ ! -s "$CDS_TMP" ]; then
+    echo "class data sharing archive NOT created: needs JDK 13 or later and a classpath of jars only" >&2
+    exit 1
+fi
+mv -f "$CDS_TMP" "$CDS_ARCHIVE" || exit 1
+echo "class data sharing archive: $CDS_ARCHIVE"
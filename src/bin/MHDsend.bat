@@ -57,7 +57,10 @@ SET CP=%CP%;%MHDSEND_HOME%\lib\hapi-fhir-base-4.1.0.jar
 SET CP=%CP%;%MHDSEND_HOME%\lib\hapi-fhir-client-4.1.0.jar
 SET CP=%CP%;%MHDSEND_HOME%\lib\hapi-fhir-structures-r4-4.1.0.jar
 SET CP=%CP%;%MHDSEND_HOME%\lib\httpclient-4.5.9.jar
+SET CP=%CP%;%MHDSEND_HOME%\lib\httpclient5-5.2.1.jar
 SET CP=%CP%;%MHDSEND_HOME%\lib\httpcore-4.4.11.jar
+SET CP=%CP%;%MHDSEND_HOME%\lib\httpcore5-5.2.jar
+SET CP=%CP%;%MHDSEND_HOME%\lib\httpcore5-h2-5.2.jar
 SET CP=%CP%;%MHDSEND_HOME%\lib\j2objc-annotations-1.3.jar
 SET CP=%CP%;%MHDSEND_HOME%\lib\jcl-over-slf4j-1.7.28.jar
 SET CP=%CP%;%MHDSEND_HOME%\lib\jsr305-3.0.2.jar
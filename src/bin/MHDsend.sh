@@ -26,6 +26,29 @@ do
 	CP="$CP:$s"
 done
 
+# Resident server: with MHDSEND_RESIDENT=<port>, a server started with --resident <port> runs the
+# command line; the client loads the JDK only. Without a server it runs here as usual.
+if [ "x$MHDSEND_RESIDENT" != "x" ]; then
+    CLIENT_CP=
+    for s in $MHDSEND_HOME/lib/MHDsend-*.jar
+    do
+        CLIENT_CP="$s"
+    done
+    $JAVA -XX:TieredStopAtLevel=1 -Xshare:auto -cp "$CLIENT_CP" kr.irm.fhir.ResidentClient "$@"
+    STATUS=$?
+    if [ $STATUS -ne 69 ]; then
+        exit $STATUS
+    fi
+fi
+
+# Class data sharing: bin/MHDsend-cds.sh creates the archive once, as an install step; a send
+# never creates it. MHDSEND_CDS=off runs without it.
+CDS_ARCHIVE="$MHDSEND_HOME/lib/MHDsend.jsa"
+if [ "x$MHDSEND_CDS" != "xoff" ] && [ -s "$CDS_ARCHIVE" ]; then
+    # an archive of another JDK or classpath is ignored
+    JAVA_OPTS="-XX:SharedArchiveFile=$CDS_ARCHIVE -Xshare:auto -Xlog:cds=off -Xlog:cds+dynamic=off $JAVA_OPTS"
+fi
+
 # Execute the JVM
 
 exec $JAVA $JAVA_OPTS -cp "$CP" $MAIN_CLASS "$@"
\ No newline at end of file
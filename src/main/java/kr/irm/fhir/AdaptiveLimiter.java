@@ -0,0 +1,114 @@
+package kr.irm.fhir;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+// AIMD limit on in-flight transactions: grows by one per round of fast responses, shrinks when the
+// server's response time rises well above the best seen lately, or when it times out or sheds load.
+public class AdaptiveLimiter {
+	private static final Logger LOG = LoggerFactory.getLogger(AdaptiveLimiter.class);
+
+	// response time above tolerance x the baseline counts as queueing on the server
+	private static final double TOLERANCE = 2.0;
+	private static final double SLOW_DECREASE = 0.9;
+	private static final double DROP_DECREASE = 0.5;
+	// the baseline is re-learned, so it follows the server when its normal response time changes
+	private static final long BASELINE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(30);
+	// it rises by this part of the way to a slower window minimum per window, so a sustained overload
+	// is not taken for the new normal
+	private static final double BASELINE_RISE = 0.125;
+
+	private final int maxLimit;
+	private double limit;
+	private int inFlight = 0;
+
+	private long baselineNanos = Long.MAX_VALUE;
+	private long windowMinNanos = Long.MAX_VALUE;
+	private long windowStart = System.nanoTime();
+	// responses so far; no decrease before the requests in flight at the last one have completed
+	private long completed = 0;
+	private long nextDecrease = 0;
+
+	public AdaptiveLimiter(int maxLimit) {
+		this.maxLimit = Math.max(maxLimit, 1);
+		this.limit = Math.max(this.maxLimit / 2, 1);
+		LOG.info("adaptive limit: initial={}, max={}", (int) limit, this.maxLimit);
+	}
+
+	synchronized void acquire() throws InterruptedException {
+		while (inFlight >= (int) limit) {
+			wait();
+		}
+		inFlight++;
+	}
+
+	// responseNanos: from the end of the request body to the response headers, so the upload time of large files does not count
+	synchronized void onSuccess(long responseNanos) {
+		boolean saturated = inFlight >= (int) limit;
+		inFlight--;
+		completed++;
+		long now = System.nanoTime();
+		updateBaseline(responseNanos, now);
+
+		if (responseNanos > baselineNanos * TOLERANCE) {
+			decrease(SLOW_DECREASE, "slow response " + TimeUnit.NANOSECONDS.toMillis(responseNanos) + " ms");
+		} else if (saturated) {
+			// additive increase: about +1 after a full window of responses
+			setLimit(Math.min(limit + 1.0 / limit, maxLimit), "fast responses");
+		}
+		notifyAll();
+	}
+
+	// timeout, connection failure, HTTP 408, 429 or 5xx
+	synchronized void onDropped() {
+		inFlight--;
+		completed++;
+		decrease(DROP_DECREASE, "dropped");
+		notifyAll();
+	}
+
+	// failures that say nothing about the server load, e.g. an invalid resource
+	synchronized void onIgnored() {
+		inFlight--;
+		completed++;
+		notifyAll();
+	}
+
+	synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	/////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+	private void updateBaseline(long responseNanos, long now) {
+		windowMinNanos = Math.min(windowMinNanos, responseNanos);
+		baselineNanos = Math.min(baselineNanos, responseNanos);
+		if (now - windowStart > BASELINE_WINDOW_NANOS) {
+			if (windowMinNanos > baselineNanos) {
+				baselineNanos += (long) ((windowMinNanos - baselineNanos) * BASELINE_RISE);
+			}
+			windowMinNanos = Long.MAX_VALUE;
+			windowStart = now;
+		}
+	}
+
+	// at most once per round of in-flight requests: the slow responses of a burst sent before a decrease
+	// count as one
+	private void decrease(double factor, String reason) {
+		if (completed < nextDecrease) {
+			return;
+		}
+		nextDecrease = completed + inFlight;
+		setLimit(Math.max(limit * factor, 1), reason);
+	}
+
+	private void setLimit(double newLimit, String reason) {
+		int previous = (int) limit;
+		limit = newLimit;
+		if ((int) limit != previous) {
+			LOG.info("adaptive limit: {} -> {} {}", previous, (int) limit, reason);
+		}
+	}
+}
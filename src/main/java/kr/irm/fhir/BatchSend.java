@@ -0,0 +1,371 @@
+package kr.irm.fhir;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+public class BatchSend extends UtilContext {
+	private static final Logger LOG = LoggerFactory.getLogger(BatchSend.class);
+
+	// repetition separator inside a CSV cell of an option that takes several values (e.g. multiple --event
+	// values); \~ is a ~ in a value. The cells of other options are taken as they are, ~ included.
+	private static final char CSV_REPEAT_SEPARATOR = '~';
+	private static final char CSV_REPEAT_ESCAPE = '\\';
+	private static final List<String> CSV_REPEATED = Arrays.asList(OPTION_SECURITY_LABEL, OPTION_EVENT, OPTION_REFERENCE_ID, OPTION_DATA_BINARY);
+
+	private final Options opts;
+	private final CommandLine baseCommandLine;
+	private final File batchFile;
+	private final File resultFile;
+	private final int threads;
+	private final AdaptiveLimiter limiter;
+
+	private final ThreadLocal<FhirSend> fhirSend = ThreadLocal.withInitial(FhirSend::new);
+	private final AtomicInteger succeeded = new AtomicInteger();
+	// already delivered according to the ledger
+	private final AtomicInteger skipped = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicInteger queued = new AtomicInteger();
+	// documents and bytes of the succeeded rows
+	private final AtomicInteger documentsSent = new AtomicInteger();
+	private final AtomicLong totalBytes = new AtomicLong();
+	// --http2: rows whose transaction is still in flight after their thread moved on
+	private final Phaser pending = new Phaser(1);
+	private PrintWriter resultWriter;
+
+	public BatchSend(Options opts, CommandLine cl) {
+		this.opts = opts;
+		this.baseCommandLine = cl;
+		this.batchFile = ResidentServer.file(cl.getOptionValue(OPTION_BATCH));
+		if (cl.hasOption(OPTION_BATCH_RESULT)) {
+			this.resultFile = ResidentServer.file(cl.getOptionValue(OPTION_BATCH_RESULT));
+		} else {
+			this.resultFile = new File(batchFile.getPath() + ".result.csv");
+		}
+		this.threads = Integer.parseInt(cl.getOptionValue(OPTION_BATCH_THREADS, "4"));
+		// with --http2 a thread does not wait for its response: 100 is the usual h2 concurrent stream limit
+		String maxInFlight = cl.hasOption(OPTION_HTTP2) ? "100" : Integer.toString(threads);
+		this.limiter = new AdaptiveLimiter(Integer.parseInt(cl.getOptionValue(OPTION_MAX_IN_FLIGHT, maxInFlight)));
+	}
+
+	int run() {
+		LOG.info("batch started: file={}, threads={}, result={}", batchFile, threads, resultFile);
+		if (!batchFile.canRead()) {
+			LOG.error("file NOT found: {}", batchFile);
+			return 1;
+		}
+
+		SendMetrics metrics = SendMetrics.get();
+		metrics.export(baseCommandLine.getOptionValue(OPTION_METRICS_PORT), baseCommandLine.getOptionValue(OPTION_METRICS_FILE));
+
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+		long startTime = System.currentTimeMillis();
+		int rows = 0;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(batchFile), StandardCharsets.UTF_8));
+			 PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(resultFile), StandardCharsets.UTF_8))) {
+			resultWriter = writer;
+			resultWriter.println("row,exit-code,manifest-uid,document-uid,latency-ms,locations,message");
+
+			boolean ndjson = isNdjson(batchFile);
+			List<String> header = null;
+			String line;
+			int lineNumber = 0;
+			try {
+				while ((line = reader.readLine()) != null) {
+					lineNumber++;
+					if (line.trim().isEmpty() || line.startsWith("#")) {
+						continue;
+					}
+
+					Map<String, List<String>> row;
+					try {
+						if (ndjson) {
+							row = parseJsonRow(line);
+						} else if (header == null) {
+							header = parseCsvLine(line);
+							continue;
+						} else {
+							row = parseCsvRow(header, parseCsvLine(line));
+						}
+					} catch (RuntimeException e) {
+						// e.g. malformed JSON, or JSON that is not an object: the row fails, not the batch
+						LOG.error("batch row {} NOT valid: {}", lineNumber, e.toString());
+						finishRow(lineNumber, new HashMap<>(), new SendResult(1, "row NOT valid: " + e), System.currentTimeMillis());
+						rows++;
+						continue;
+					}
+
+					final int rowNumber = lineNumber;
+					final Map<String, List<String>> rowOptions = row;
+					executor.execute(() -> sendRow(rowNumber, rowOptions));
+					rows++;
+				}
+			} finally {
+				// also when the batch stops early: no row is left writing to the closed result file
+				executor.shutdown();
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				pending.arriveAndAwaitAdvance();
+			}
+		} catch (IOException e) {
+			LOG.error("batch failed: {}", e.getMessage());
+			executor.shutdownNow();
+			return 1;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			executor.shutdownNow();
+			return 1;
+		}
+
+		long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+		LOG.info("batch completed: rows={}, succeeded={}, skipped={}, failed={}, queued={}, elapsed={} ms",
+			rows, succeeded.get(), skipped.get(), failed.get(), queued.get(), elapsed);
+		LOG.info("batch throughput: {} rows/s, {} docs/s, {} MB/s, in-flight limit={}",
+			String.format("%.2f", succeeded.get() * 1000.0 / elapsed),
+			String.format("%.2f", documentsSent.get() * 1000.0 / elapsed),
+			String.format("%.2f", totalBytes.get() * 1000.0 / elapsed / (1024 * 1024)),
+			limiter.getLimit());
+		metrics.logSummary();
+
+		// the rows exported, the failed ones are in the result file
+		if (baseCommandLine.hasOption(OPTION_EXPORT_IMPORT) && succeeded.get() > 0) {
+			Map<String, Object> optionMap = new HashMap<>();
+			if (MHDsend.parseCommonOptions(optionMap, baseCommandLine)) {
+				return 1;
+			}
+			optionMap.put(OPTION_SERVER_URL, baseCommandLine.getOptionValue(OPTION_SERVER_URL));
+			int importCode = FhirSend.startImport(optionMap);
+			if (importCode != 0) {
+				return importCode;
+			}
+		}
+		if (baseCommandLine.hasOption(OPTION_EXPORT)) {
+			NdjsonExport.close(ResidentServer.file(baseCommandLine.getOptionValue(OPTION_EXPORT)));
+		}
+
+		if (failed.get() > 0) {
+			return 99;
+		}
+		return queued.get() == 0 ? 0 : 75;
+	}
+
+	private void sendRow(int rowNumber, Map<String, List<String>> row) {
+		long startTime = System.currentTimeMillis();
+		Map<String, Object> optionMap = new HashMap<>();
+		SendResult result;
+		try {
+			if (MHDsend.parseOptions(optionMap, opts, buildArgs(opts, baseCommandLine, OPTION_BATCH, row))) {
+				result = new SendResult(1, "invalid options");
+			} else {
+				optionMap.put(OPTION_OUTBOX_RETRY, Boolean.TRUE);
+				optionMap.put(OPTION_MAX_IN_FLIGHT, limiter);
+				if (optionMap.containsKey(OPTION_HTTP2) && !optionMap.containsKey(OPTION_EXPORT)) {
+					pending.register();
+					fhirSend.get().sendFhirAsync(optionMap).whenComplete((asyncResult, e) -> {
+						try {
+							finishRow(rowNumber, optionMap, asyncResult, startTime);
+						} finally {
+							pending.arriveAndDeregister();
+						}
+					});
+					return;
+				}
+				result = fhirSend.get().sendFhir(optionMap);
+			}
+		} catch (RuntimeException e) {
+			LOG.error("batch row {} failed: {}", rowNumber, e.getMessage());
+			result = new SendResult(98, e.getMessage());
+		}
+		finishRow(rowNumber, optionMap, result, startTime);
+	}
+
+	private void finishRow(int rowNumber, Map<String, Object> optionMap, SendResult result, long startTime) {
+		result.elapsedMillis = System.currentTimeMillis() - startTime;
+
+		if (result.isSkipped()) {
+			skipped.incrementAndGet();
+		} else if (result.isSuccess()) {
+			succeeded.incrementAndGet();
+			for (Map<String, Object> document : documents(optionMap)) {
+				documentsSent.incrementAndGet();
+				totalBytes.addAndGet(((File) document.get(OPTION_DATA_BINARY)).length());
+			}
+		} else if (result.isQueued()) {
+			queued.incrementAndGet();
+		} else {
+			failed.incrementAndGet();
+		}
+		writeResult(rowNumber, optionMap, result);
+	}
+
+	private synchronized void writeResult(int rowNumber, Map<String, Object> optionMap, SendResult result) {
+		resultWriter.println(rowNumber
+			+ "," + result.exitCode
+			+ "," + csvValue((String) optionMap.get(OPTION_MANIFEST_UID))
+			+ "," + csvValue(documents(optionMap).stream()
+				.map(document -> (String) document.get(OPTION_DOCUMENT_UID))
+				.collect(Collectors.joining(" ")))
+			+ "," + result.elapsedMillis
+			+ "," + csvValue(String.join(" ", result.locations))
+			+ "," + csvValue(result.message));
+		resultWriter.flush();
+	}
+
+	// row options override the options given on the command line, except those of the running mode
+	static String[] buildArgs(Options opts, CommandLine baseCommandLine, String modeOption, Map<String, List<String>> row) {
+		List<String> args = new ArrayList<>();
+		for (Option option : baseCommandLine.getOptions()) {
+			String name = option.getLongOpt();
+			if (name == null || name.startsWith(modeOption) || row.containsKey(name)) {
+				continue;
+			}
+			addArg(opts, args, name, option.hasArg() ? option.getValuesList() : null);
+		}
+		for (Map.Entry<String, List<String>> entry : row.entrySet()) {
+			addArg(opts, args, entry.getKey(), entry.getValue());
+		}
+		return args.toArray(new String[0]);
+	}
+
+	static void addArg(Options opts, List<String> args, String name, List<String> values) {
+		Option option = opts.getOption(name);
+		if (option != null && !option.hasArg()) {
+			// flag: present unless explicitly false
+			if (values == null || values.isEmpty() || Boolean.parseBoolean(values.get(0))) {
+				args.add("--" + name);
+			}
+			return;
+		}
+		for (String value : values) {
+			args.add("--" + name);
+			args.add(value);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static List<Map<String, Object>> documents(Map<String, Object> optionMap) {
+		return (List<Map<String, Object>>) optionMap.getOrDefault(OPTION_DOCUMENTS, Collections.emptyList());
+	}
+
+	/////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+	private static boolean isNdjson(File file) {
+		String name = file.getName().toLowerCase();
+		return name.endsWith(".ndjson") || name.endsWith(".jsonl") || name.endsWith(".json");
+	}
+
+	static Map<String, List<String>> parseJsonRow(String line) {
+		Map<String, List<String>> row = new LinkedHashMap<>();
+		JsonObject object = new JsonParser().parse(line).getAsJsonObject();
+		for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+			List<String> values = new ArrayList<>();
+			JsonElement element = entry.getValue();
+			if (element.isJsonNull()) {
+				continue;
+			} else if (element.isJsonArray()) {
+				JsonArray array = element.getAsJsonArray();
+				for (JsonElement value : array) {
+					values.add(value.getAsString());
+				}
+			} else {
+				values.add(element.getAsString());
+			}
+			row.put(entry.getKey(), values);
+		}
+		return row;
+	}
+
+	private static Map<String, List<String>> parseCsvRow(List<String> header, List<String> cells) {
+		Map<String, List<String>> row = new LinkedHashMap<>();
+		for (int i = 0; i < header.size() && i < cells.size(); i++) {
+			String cell = cells.get(i);
+			if (cell.isEmpty()) {
+				continue;
+			}
+			String option = header.get(i).trim();
+			row.put(option, CSV_REPEATED.contains(option) ? splitRepeated(cell) : Collections.singletonList(cell));
+		}
+		return row;
+	}
+
+	private static List<String> splitRepeated(String cell) {
+		List<String> values = new ArrayList<>();
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < cell.length(); i++) {
+			char c = cell.charAt(i);
+			if (c == CSV_REPEAT_ESCAPE && i + 1 < cell.length() && cell.charAt(i + 1) == CSV_REPEAT_SEPARATOR) {
+				value.append(CSV_REPEAT_SEPARATOR);
+				i++;
+			} else if (c == CSV_REPEAT_SEPARATOR) {
+				addRepeated(values, value);
+			} else {
+				value.append(c);
+			}
+		}
+		addRepeated(values, value);
+		return values;
+	}
+
+	// an empty value, e.g. of a trailing ~, is left out
+	private static void addRepeated(List<String> values, StringBuilder value) {
+		if (value.length() > 0) {
+			values.add(value.toString());
+		}
+		value.setLength(0);
+	}
+
+	private static List<String> parseCsvLine(String line) {
+		List<String> cells = new ArrayList<>();
+		StringBuilder cell = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					cell.append('"');
+					i++;
+				} else if (c == '"') {
+					quoted = false;
+				} else {
+					cell.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				cells.add(cell.toString());
+				cell.setLength(0);
+			} else {
+				cell.append(c);
+			}
+		}
+		cells.add(cell.toString());
+		return cells;
+	}
+
+	private static String csvValue(String value) {
+		if (value == null) {
+			return "";
+		}
+		if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+			return "\"" + value.replace("\"", "\"\"").replace("\n", " ") + "\"";
+		}
+		return value;
+	}
+}
@@ -0,0 +1,117 @@
+package kr.irm.fhir;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+// SHA-1 of a file's content -> the Binary that already holds it on a server, so a file sent
+// before is referenced instead of uploaded again. The SHA-1 of a file is kept by path, size and
+// modification time, so a file seen before is not read to find it.
+public class BinaryIndex {
+	private static final Logger LOG = LoggerFactory.getLogger(BinaryIndex.class);
+
+	private static final int MAX_ENTRIES = 1000000;
+	// the "server URL" of the file -> SHA-1 entries; never a real server URL
+	private static final String FILES = "file";
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final FileCache cache;
+
+	private BinaryIndex(FileCache cache) {
+		this.cache = cache;
+	}
+
+	static BinaryIndex open(File file, long ttlSeconds) {
+		return new BinaryIndex(FileCache.open("binary index", file, ttlSeconds, MAX_ENTRIES));
+	}
+
+	// base64 SHA-1, as in Attachment.hash
+	String hashOf(File file) throws IOException {
+		String fingerprint = fingerprint(file);
+		String hash = fingerprint == null ? null : cache.get(FILES, fingerprint);
+		if (hash != null) {
+			return hash;
+		}
+		MessageDigest sha1;
+		try {
+			sha1 = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		try (InputStream in = new DigestInputStream(Files.newInputStream(file.toPath()), sha1)) {
+			byte[] buf = new byte[BUFFER_SIZE];
+			while (in.read(buf) != -1) {
+				// digest only
+			}
+		}
+		hash = Base64.getEncoder().encodeToString(sha1.digest());
+		// a file modified while it was read gets a new fingerprint next time
+		if (fingerprint != null && fingerprint.equals(fingerprint(file))) {
+			cache.put(FILES, fingerprint, hash);
+		}
+		return hash;
+	}
+
+	// the Binary URL, or null if this content was not sent to the server
+	String lookup(String serverURL, String hash) {
+		return cache.get(serverURL, hash);
+	}
+
+	// location: Binary location of a transaction response, e.g. Binary/123/_history/1
+	void put(String serverURL, String hash, String location) {
+		int history = location.indexOf("/_history/");
+		if (history >= 0) {
+			location = location.substring(0, history);
+		}
+		if (!location.contains("://")) {
+			location = serverURL.replaceAll("/+$", "") + "/" + location;
+		}
+		cache.put(serverURL, hash, location);
+	}
+
+	void invalidate(String serverURL, String hash) {
+		cache.invalidate(serverURL, hash);
+	}
+
+	// HEAD the Binary: false if it is gone or cannot be checked, so the file is uploaded again
+	boolean verify(HttpClient httpClient, String location, String oauthToken) {
+		HttpHead head = new HttpHead(location);
+		if (oauthToken != null) {
+			head.addHeader(HttpHeaders.AUTHORIZATION, "Bearer " + oauthToken);
+		}
+		try {
+			HttpResponse response = httpClient.execute(head);
+			EntityUtils.consumeQuietly(response.getEntity());
+			int status = response.getStatusLine().getStatusCode();
+			if (status / 100 != 2) {
+				LOG.info("indexed Binary NOT available: {}: status={}", location, status);
+			}
+			return status / 100 == 2;
+		} catch (IOException e) {
+			LOG.warn("indexed Binary NOT verified: {}: {}", location, e.toString());
+			return false;
+		}
+	}
+
+	// null if the path cannot be a cache key
+	private static String fingerprint(File file) {
+		String path = file.getAbsolutePath();
+		if (path.indexOf('\t') >= 0 || path.indexOf('\n') >= 0 || path.indexOf('\r') >= 0) {
+			return null;
+		}
+		return file.length() + ":" + file.lastModified() + ":" + path;
+	}
+}
@@ -0,0 +1,126 @@
+package kr.irm.fhir;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+// gzip settings for a transaction body, from the content types and sizes of its payloads.
+// The body is compressed while it is written to the connection, never as a second copy.
+public class BodyCompression {
+	private static final Logger LOG = LoggerFactory.getLogger(BodyCompression.class);
+
+	// below this the gzip header and the CPU cost more than they save
+	private static final long MIN_BODY_SIZE = 4 * 1024;
+	// above this the fastest level, so compression keeps up with a fast link
+	private static final long LARGE_BODY_SIZE = 64L * 1024 * 1024;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// zlib's default level: most of the gain of level 9 for much less CPU
+	private static final int TEXT_LEVEL = 6;
+
+	final int level;
+	final int strategy;
+
+	private BodyCompression(int level, int strategy) {
+		this.level = level;
+		this.strategy = strategy;
+	}
+
+	// null when compression would not pay off
+	static BodyCompression choose(TransactionBody body) {
+		long total = body.getContentLength();
+		if (total < MIN_BODY_SIZE) {
+			return null;
+		}
+
+		// the JSON around the payloads compresses like text
+		long compressible = total;
+		List<String> contentTypes = body.getContentTypes();
+		List<Long> payloadLengths = body.getPayloadLengths();
+		for (int i = 0; i < contentTypes.size(); i++) {
+			if (!isCompressible(contentTypes.get(i))) {
+				compressible -= payloadLengths.get(i);
+			}
+		}
+
+		if (compressible * 2 >= total) {
+			return new BodyCompression(total > LARGE_BODY_SIZE ? Deflater.BEST_SPEED : TEXT_LEVEL, Deflater.DEFAULT_STRATEGY);
+		}
+		// mostly already compressed files: Huffman coding alone still takes back most of the
+		// base64 expansion (6 bits per 8-bit character) at a fraction of the CPU of full deflate
+		return new BodyCompression(Deflater.BEST_SPEED, Deflater.HUFFMAN_ONLY);
+	}
+
+	static boolean isCompressible(String contentType) {
+		if (contentType == null) {
+			return false;
+		}
+		String type = contentType.toLowerCase();
+		int parameters = type.indexOf(';');
+		if (parameters >= 0) {
+			type = type.substring(0, parameters).trim();
+		}
+		return type.startsWith("text/")
+			|| type.endsWith("xml")
+			|| type.endsWith("json")
+			|| type.equals("application/hl7-v2")
+			|| type.equals("application/rtf")
+			|| type.equals("image/bmp");
+	}
+
+	// chunked: the compressed length is only known at the end
+	AbstractHttpEntity toHttpEntity(TransactionBody body) {
+		AbstractHttpEntity entity = new AbstractHttpEntity() {
+			@Override
+			public boolean isRepeatable() {
+				return true;
+			}
+
+			@Override
+			public long getContentLength() {
+				return -1;
+			}
+
+			@Override
+			public InputStream getContent() {
+				throw new UnsupportedOperationException("compressed while written");
+			}
+
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				CountingOutputStream counter = new CountingOutputStream(out);
+				GZIPOutputStream gzip = new GZIPOutputStream(counter, BUFFER_SIZE) {
+					{
+						def.setLevel(level);
+						def.setStrategy(strategy);
+					}
+				};
+				body.writeTo(gzip);
+				// writes the trailer and frees the deflater; closing the chunked stream ends the request, not the connection
+				gzip.close();
+				LOG.info("transaction compressed: {} -> {} bytes", body.getContentLength(), counter.getByteCount());
+			}
+
+			@Override
+			public boolean isStreaming() {
+				return false;
+			}
+		};
+		entity.setContentType(TransactionBody.CONTENT_TYPE.toString());
+		entity.setContentEncoding("gzip");
+		entity.setChunked(true);
+		return entity;
+	}
+
+	@Override
+	public String toString() {
+		return "gzip level " + level + (strategy == Deflater.HUFFMAN_ONLY ? " huffman-only" : "");
+	}
+}
@@ -0,0 +1,589 @@
+package kr.irm.fhir;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// --ledger <dir>: each document delivered, appended to <dir>/ledger with the locations and ETags the
+// server gave its resources, and indexed by document uid, manifest uid, content SHA-1 and patient.
+// The index (<dir>/ledger.index.<capacity>) is a memory-mapped open-addressing table with a slot per
+// key, holding the last of the key's entries in <dir>/ledger.chain, each a record offset and the entry
+// before it: a lookup is a probe in the table and a read of the records of its chain, however long the
+// ledger grows. Both are derived from the ledger, brought up to the end of it before each use and
+// rebuilt when lost. Processes share a directory under a file lock, as with the outbox.
+public class DeliveryLedger {
+	private static final Logger LOG = LoggerFactory.getLogger(DeliveryLedger.class);
+
+	private static final Map<String, DeliveryLedger> LEDGERS = new ConcurrentHashMap<>();
+
+	private static final String LEDGER = "ledger";
+	private static final String INDEX = "ledger.index.";
+	private static final String CHAIN = "ledger.chain";
+	// also holds the capacity of the current index
+	private static final String LOCK = "ledger.lock";
+
+	// the fields of a record: one line, tab-separated
+	static final String[] FIELDS = {
+		"time", "server", "manifest-uid", "document-uid", "patient-id", "sha1",
+		"document-location", "document-etag", "binary-location", "binary-etag", "manifest-location", "manifest-etag"
+	};
+	static final int SERVER = 1;
+	static final int MANIFEST_UID = 2;
+	static final int DOCUMENT_UID = 3;
+	static final int PATIENT_ID = 4;
+	static final int SHA1 = 5;
+	static final int DOCUMENT_LOCATION = 6;
+	static final int DOCUMENT_ETAG = 7;
+	static final int BINARY_LOCATION = 8;
+	static final int BINARY_ETAG = 9;
+	static final int MANIFEST_LOCATION = 10;
+	static final int MANIFEST_ETAG = 11;
+	private static final int[] KEYS = {DOCUMENT_UID, MANIFEST_UID, SHA1, PATIENT_ID};
+
+	// index header: magic, capacity, keys, ledger bytes indexed, chain entries; then the slots: key
+	// hash (0 if empty) and its last chain entry + 1
+	private static final long MAGIC = 0x4d4844536c656432L;
+	private static final int HEADER_SIZE = 32;
+	private static final int SLOT_SIZE = 16;
+	// chain entry: record offset and the entry before it + 1 (0 if none)
+	private static final int ENTRY_SIZE = 16;
+	private static final int INITIAL_CAPACITY = 1 << 14;
+	// 1 GB of index, 32 million keys at half load
+	private static final int MAX_CAPACITY = 1 << 26;
+	private static final long MAX_CHAIN_SIZE = Integer.MAX_VALUE & -ENTRY_SIZE;
+	private static final long INITIAL_CHAIN_SIZE = 1 << 20;
+	private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+	// what a transaction delivers, recorded once its response is in, also from the outbox
+	static class Delivery {
+		static final char MANIFEST = 'M';
+		static final char BINARY = 'B';
+		static final char DOCUMENT = 'D';
+		static final char OTHER = '-';
+
+		final String manifestUid;
+		final String patientId;
+		// the kind of each request entry
+		final String entries;
+		// each DocumentReference: document uid, SHA-1 and the URL of a Binary not in the transaction
+		final List<String[]> documents;
+
+		Delivery(String manifestUid, String patientId, String entries, List<String[]> documents) {
+			this.manifestUid = manifestUid;
+			this.patientId = patientId;
+			this.entries = entries;
+			this.documents = documents;
+		}
+
+		// as fields of an outbox journal record
+		List<String> toFields() {
+			List<String> fields = new ArrayList<>(Arrays.asList(field(manifestUid), field(patientId), entries));
+			for (String[] document : documents) {
+				for (String value : document) {
+					fields.add(field(value));
+				}
+			}
+			return fields;
+		}
+
+		static Delivery fromFields(List<String> fields) {
+			List<String[]> documents = new ArrayList<>();
+			for (int i = 3; i + 2 < fields.size(); i += 3) {
+				documents.add(new String[]{fields.get(i), fields.get(i + 1), fields.get(i + 2)});
+			}
+			return new Delivery(fields.get(0), fields.get(1), fields.get(2), documents);
+		}
+	}
+
+	private final File dir;
+	private final FileChannel ledger;
+	private final FileChannel lockChannel;
+	private final FileChannel chainChannel;
+	private MappedByteBuffer index;
+	private MappedByteBuffer chain;
+	private int capacity = 0;
+
+	private DeliveryLedger(File dir) throws IOException {
+		this.dir = dir;
+		this.ledger = FileChannel.open(new File(dir, LEDGER).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.lockChannel = FileChannel.open(new File(dir, LOCK).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.chainChannel = FileChannel.open(new File(dir, CHAIN).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	// one ledger per directory in a JVM
+	static DeliveryLedger open(File dir) throws IOException {
+		String key = dir.getAbsolutePath();
+		DeliveryLedger ledger = LEDGERS.get(key);
+		if (ledger == null) {
+			synchronized (LEDGERS) {
+				ledger = LEDGERS.get(key);
+				if (ledger == null) {
+					Files.createDirectories(dir.toPath());
+					ledger = new DeliveryLedger(dir);
+					int keys = ledger.keys();
+					LEDGERS.put(key, ledger);
+					LOG.info("ledger opened: {}, keys={}", dir, keys);
+				}
+			}
+		}
+		return ledger;
+	}
+
+	File getDir() {
+		return dir;
+	}
+
+	// base64, as in Attachment.hash and the records
+	static String sha1(File file) throws IOException {
+		MessageDigest sha1;
+		try {
+			sha1 = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		byte[] buffer = new byte[MAX_RECORD_SIZE];
+		try (InputStream in = new FileInputStream(file)) {
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				sha1.update(buffer, 0, n);
+			}
+		}
+		return Base64.getEncoder().encodeToString(sha1.digest());
+	}
+
+	// a record per DocumentReference of the transaction, with the location and ETag of its response,
+	// of the response of the Binary before it and of the DocumentManifest; the responses are in
+	// request order
+	void record(String serverURL, Delivery delivery, Bundle responseBundle) throws IOException {
+		List<Bundle.BundleEntryComponent> responses = responseBundle.getEntry();
+		List<String[]> records = new ArrayList<>();
+		String manifestLocation = null;
+		String manifestEtag = null;
+		String binaryLocation = null;
+		String binaryEtag = null;
+		int document = 0;
+		for (int i = 0; i < delivery.entries.length() && i < responses.size(); i++) {
+			char entry = delivery.entries.charAt(i);
+			Bundle.BundleEntryResponseComponent response = responses.get(i).getResponse();
+			if (entry == Delivery.MANIFEST) {
+				manifestLocation = response.getLocation();
+				manifestEtag = response.getEtag();
+			} else if (entry == Delivery.BINARY) {
+				binaryLocation = response.getLocation();
+				binaryEtag = response.getEtag();
+			} else if (entry == Delivery.DOCUMENT && document < delivery.documents.size()) {
+				String[] documentFields = delivery.documents.get(document++);
+				String[] record = new String[FIELDS.length];
+				record[SERVER] = serverURL;
+				record[MANIFEST_UID] = delivery.manifestUid;
+				record[DOCUMENT_UID] = documentFields[0];
+				record[PATIENT_ID] = delivery.patientId;
+				record[SHA1] = documentFields[1];
+				record[DOCUMENT_LOCATION] = response.getLocation();
+				record[DOCUMENT_ETAG] = response.getEtag();
+				record[BINARY_LOCATION] = binaryLocation != null ? binaryLocation : documentFields[2];
+				record[BINARY_ETAG] = binaryEtag;
+				record[MANIFEST_LOCATION] = manifestLocation;
+				record[MANIFEST_ETAG] = manifestEtag;
+				records.add(record);
+				binaryLocation = null;
+				binaryEtag = null;
+			}
+		}
+		append(records);
+	}
+
+	private synchronized int keys() throws IOException {
+		FileLock lock = lockChannel.lock();
+		try {
+			update();
+			return index.getInt(12);
+		} finally {
+			lock.release();
+		}
+	}
+
+	// the records of the documents when each was delivered to the server as part of the manifest, else null
+	synchronized List<String[]> delivered(String serverURL, String manifestUid, List<String> documentUids) throws IOException {
+		FileLock lock = lockChannel.lock();
+		try {
+			update();
+			List<String[]> records = new ArrayList<>();
+			for (String documentUid : documentUids) {
+				String[] delivery = null;
+				for (String[] record : find(DOCUMENT_UID, documentUid)) {
+					if (record[SERVER].equals(serverURL) && record[MANIFEST_UID].equals(manifestUid)) {
+						delivery = record;
+					}
+				}
+				if (delivery == null) {
+					return null;
+				}
+				records.add(delivery);
+			}
+			return records;
+		} finally {
+			lock.release();
+		}
+	}
+
+	// records: the values of FIELDS; the time is that of the append
+	synchronized void append(List<String[]> records) throws IOException {
+		StringBuilder lines = new StringBuilder();
+		String time = Long.toString(System.currentTimeMillis());
+		for (String[] record : records) {
+			lines.append(time);
+			for (int i = 1; i < FIELDS.length; i++) {
+				lines.append('\t').append(field(record[i]));
+			}
+			lines.append('\n');
+		}
+		FileLock lock = lockChannel.lock();
+		try {
+			update();
+			long size = ledger.size();
+			// after a record torn by a crash, which is then skipped
+			if (size > 0 && readByte(size - 1) != '\n') {
+				lines.insert(0, '\n');
+			}
+			ByteBuffer bytes = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+			while (bytes.hasRemaining()) {
+				size += ledger.write(bytes, size);
+			}
+			ledger.force(false);
+			update();
+		} finally {
+			lock.release();
+		}
+	}
+
+	// --ledger-find: the records of a document uid, manifest uid, SHA-1 or patient id; 0 if any
+	synchronized int print(String value, PrintStream out) throws IOException {
+		SortedMap<Long, String[]> records = new TreeMap<>();
+		FileLock lock = lockChannel.lock();
+		try {
+			update();
+			List<String> values = new ArrayList<>(Collections.singletonList(value));
+			values.add(value.startsWith(UtilContext.OID_Prefix) ? value.substring(UtilContext.OID_Prefix.length()) : UtilContext.OID_Prefix + value);
+			for (int field : KEYS) {
+				for (String key : values) {
+					for (long offset : offsets(field, key)) {
+						String[] record = read(offset);
+						if (record != null && record[field].equals(key)) {
+							records.put(offset, record);
+						}
+					}
+				}
+			}
+		} finally {
+			lock.release();
+		}
+		out.println(String.join("\t", FIELDS));
+		for (String[] record : records.values()) {
+			out.println(String.join("\t", record));
+		}
+		out.flush();
+		LOG.info("ledger records found: {}: {}", value, records.size());
+		return records.isEmpty() ? 99 : 0;
+	}
+
+	// a value as a tab-separated field
+	private static String field(String value) {
+		return value == null ? "" : value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+
+	/////////////////////////////////////////////////////////////////////////////////////////////////////////
+	// under the lock
+
+	// the records whose field is value, in ledger order
+	private List<String[]> find(int field, String value) throws IOException {
+		List<String[]> records = new ArrayList<>();
+		for (long offset : offsets(field, value)) {
+			String[] record = read(offset);
+			if (record != null && record[field].equals(value)) {
+				records.add(record);
+			}
+		}
+		return records;
+	}
+
+	private SortedSet<Long> offsets(int field, String value) throws IOException {
+		SortedSet<Long> offsets = new TreeSet<>();
+		int slot = probe(hash(field, value));
+		if (slot >= 0) {
+			long entries = index.getLong(24);
+			mapChain(entries);
+			for (long entry = index.getLong(position(slot) + 8); entry > 0 && entry <= entries; entry = chain.getLong((int) ((entry - 1) * ENTRY_SIZE + 8))) {
+				offsets.add(chain.getLong((int) ((entry - 1) * ENTRY_SIZE)));
+			}
+		}
+		return offsets;
+	}
+
+	// the slot of the key, or -(the empty slot it would take) - 1
+	private int probe(long hash) {
+		int slot = slot(hash);
+		while (index.getLong(position(slot)) != 0) {
+			if (index.getLong(position(slot)) == hash) {
+				return slot;
+			}
+			slot = (slot + 1) & (capacity - 1);
+		}
+		return -slot - 1;
+	}
+
+	// the record at offset, null if the line is not one
+	private String[] read(long offset) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+		while (true) {
+			buffer.clear();
+			int n = ledger.read(buffer, offset);
+			int end = -1;
+			for (int i = 0; i < n; i++) {
+				if (buffer.get(i) == '\n') {
+					end = i;
+					break;
+				}
+			}
+			if (end >= 0) {
+				return parse(Arrays.copyOf(buffer.array(), end));
+			}
+			if (n < buffer.capacity() || buffer.capacity() >= MAX_RECORD_SIZE) {
+				return null;
+			}
+			buffer = ByteBuffer.allocate(buffer.capacity() * 4);
+		}
+	}
+
+	private static String[] parse(byte[] line) {
+		String[] record = new String(line, StandardCharsets.UTF_8).split("\t", -1);
+		return record.length == FIELDS.length ? record : null;
+	}
+
+	private byte readByte(long position) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(1);
+		ledger.read(b, position);
+		return b.get(0);
+	}
+
+	// the current index of the directory, brought up to the end of the ledger
+	private void update() throws IOException {
+		ByteBuffer current = ByteBuffer.allocate(4);
+		int currentCapacity = lockChannel.read(current, 0) == 4 ? current.getInt(0) : 0;
+		if (currentCapacity < INITIAL_CAPACITY || currentCapacity > MAX_CAPACITY || Integer.bitCount(currentCapacity) != 1) {
+			currentCapacity = INITIAL_CAPACITY;
+			writeCapacity(currentCapacity);
+		}
+		if (currentCapacity != capacity) {
+			map(currentCapacity);
+		}
+		long size = ledger.size();
+		if (index.getLong(0) != MAGIC || index.getInt(8) != capacity || index.getLong(16) > size
+			|| chainChannel.size() < index.getLong(24) * ENTRY_SIZE) {
+			LOG.info("ledger index rebuilt: {}", dir);
+			for (int i = HEADER_SIZE; i < index.capacity(); i += 8) {
+				index.putLong(i, 0);
+			}
+			index.putInt(8, capacity);
+			index.putInt(12, 0);
+			index.putLong(16, 0);
+			index.putLong(24, 0);
+			index.putLong(0, MAGIC);
+		}
+
+		long indexed = index.getLong(16);
+		if (indexed == size) {
+			return;
+		}
+		// read in blocks; the keys are hashed from the bytes of the lines
+		byte[] bytes = new byte[MAX_RECORD_SIZE];
+		long lineStart = indexed;
+		long position = indexed;
+		int length = 0;
+		boolean skipping = false;
+		long skipStart = 0;
+		while (position < size) {
+			int n = ledger.read(ByteBuffer.wrap(bytes, length, (int) Math.min(bytes.length - length, size - position)), position);
+			if (n <= 0) {
+				break;
+			}
+			position += n;
+			length += n;
+			int start = 0;
+			for (int i = 0; i < length; i++) {
+				if (bytes[i] == '\n') {
+					if (!skipping) {
+						indexLine(bytes, start, i, lineStart + start);
+					}
+					skipping = false;
+					start = i + 1;
+				}
+			}
+			lineStart += start;
+			length -= start;
+			System.arraycopy(bytes, start, bytes, 0, length);
+			// a line longer than a record can be is not one
+			if (length == bytes.length) {
+				if (!skipping) {
+					skipping = true;
+					skipStart = lineStart;
+				}
+				lineStart += length;
+				length = 0;
+			}
+		}
+		// a last line without its end is indexed once it is complete
+		index.putLong(16, skipping ? skipStart : lineStart);
+	}
+
+	private void indexLine(byte[] bytes, int from, int to, long offset) throws IOException {
+		int tabs = 0;
+		for (int i = from; i < to; i++) {
+			if (bytes[i] == '\t') {
+				tabs++;
+			}
+		}
+		if (tabs != FIELDS.length - 1) {
+			return;
+		}
+		int field = 0;
+		int fieldStart = from;
+		for (int i = from; i <= to; i++) {
+			if (i == to || bytes[i] == '\t') {
+				if (i > fieldStart && isKey(field)) {
+					insert(hash(field, bytes, fieldStart, i), offset);
+				}
+				field++;
+				fieldStart = i + 1;
+			}
+		}
+	}
+
+	private static boolean isKey(int field) {
+		for (int key : KEYS) {
+			if (key == field) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void insert(long hash, long offset) throws IOException {
+		int slot = probe(hash);
+		if (slot < 0 && (index.getInt(12) + 1) * 2L > capacity) {
+			grow();
+			slot = probe(hash);
+		}
+		long entry = index.getLong(24);
+		if ((entry + 1) * ENTRY_SIZE > MAX_CHAIN_SIZE) {
+			throw new IOException("ledger index full: " + dir);
+		}
+		mapChain(entry + 1);
+		chain.putLong((int) (entry * ENTRY_SIZE), offset);
+		chain.putLong((int) (entry * ENTRY_SIZE + 8), slot >= 0 ? index.getLong(position(slot) + 8) : 0);
+		index.putLong(24, entry + 1);
+		if (slot >= 0) {
+			index.putLong(position(slot) + 8, entry + 1);
+		} else {
+			slot = -slot - 1;
+			index.putLong(position(slot) + 8, entry + 1);
+			index.putLong(position(slot), hash);
+			index.putInt(12, index.getInt(12) + 1);
+		}
+	}
+
+	// the chain mapped over at least its first entries, extending the file
+	private void mapChain(long entries) throws IOException {
+		if (chain != null && chain.capacity() >= entries * ENTRY_SIZE) {
+			return;
+		}
+		long size = INITIAL_CHAIN_SIZE;
+		while (size < entries * ENTRY_SIZE) {
+			size <<= 1;
+		}
+		chain = chainChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(size, MAX_CHAIN_SIZE));
+	}
+
+	// twice the capacity in a new file; other processes switch to it when they next take the lock
+	private void grow() throws IOException {
+		if (capacity >= MAX_CAPACITY) {
+			throw new IOException("ledger index full: " + dir);
+		}
+		MappedByteBuffer old = index;
+		int oldCapacity = capacity;
+		Files.deleteIfExists(indexFile(oldCapacity << 1).toPath());
+		map(oldCapacity << 1);
+		for (int i = 0; i < oldCapacity; i++) {
+			long hash = old.getLong(HEADER_SIZE + i * SLOT_SIZE);
+			if (hash != 0) {
+				int slot = slot(hash);
+				while (index.getLong(position(slot)) != 0) {
+					slot = (slot + 1) & (capacity - 1);
+				}
+				index.putLong(position(slot) + 8, old.getLong(HEADER_SIZE + i * SLOT_SIZE + 8));
+				index.putLong(position(slot), hash);
+			}
+		}
+		index.putInt(8, capacity);
+		index.putInt(12, old.getInt(12));
+		index.putLong(16, old.getLong(16));
+		index.putLong(24, old.getLong(24));
+		index.putLong(0, MAGIC);
+		writeCapacity(capacity);
+		Files.deleteIfExists(indexFile(oldCapacity).toPath());
+		LOG.info("ledger index grown: {}, capacity={}", dir, capacity);
+	}
+
+	private void map(int newCapacity) throws IOException {
+		try (FileChannel channel = FileChannel.open(indexFile(newCapacity).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			index = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) newCapacity * SLOT_SIZE);
+		}
+		capacity = newCapacity;
+	}
+
+	private void writeCapacity(int newCapacity) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4);
+		buffer.putInt(0, newCapacity);
+		lockChannel.write(buffer, 0);
+	}
+
+	private File indexFile(int indexCapacity) {
+		return new File(dir, INDEX + indexCapacity);
+	}
+
+	private int slot(long hash) {
+		return (int) (hash ^ (hash >>> 32)) & (capacity - 1);
+	}
+
+	private static int position(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+	private static long hash(int field, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		return hash(field, bytes, 0, bytes.length);
+	}
+
+	// FNV-1a of the field and the UTF-8 of the value; never 0, which marks an empty slot
+	private static long hash(int field, byte[] bytes, int from, int to) {
+		long hash = 0xcbf29ce484222325L;
+		hash = (hash ^ field) * 0x100000001b3L;
+		for (int i = from; i < to; i++) {
+			hash = (hash ^ (bytes[i] & 0xff)) * 0x100000001b3L;
+		}
+		return hash == 0 ? 1 : hash;
+	}
+}
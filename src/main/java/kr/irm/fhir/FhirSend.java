@@ -4,9 +4,25 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
-import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
-
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ProtocolVersion;
+import org.apache.hc.core5.http.nio.support.AsyncRequestBuilder;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.util.EntityUtils;
 import org.hl7.fhir.r4.model.*;
 
 import org.slf4j.Logger;
@@ -16,11 +32,20 @@ import java.io.*;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 public class FhirSend extends UtilContext {
 	private static final Logger LOG = LoggerFactory.getLogger(FhirSend.class);
@@ -29,20 +54,157 @@ public class FhirSend extends UtilContext {
 
 	}
 
-	private static final FhirContext fhirContext = FhirContext.forR4();
-	private static IGenericClient client = null;
+	private IGenericClient client = null;
+	private HttpClient httpClient = null;
 	private static String DOCUMENT_REFERENCE = "DocumentReference";
 	private static String DOCUMENT_MANIFEST = "DocumentManifest";
 	private static String BINARY = "Binary";
+	private static String PATIENT = "Patient";
+	private static final int UPLOAD_CHUNK_SIZE = 64 * 1024;
+	private static final ForkJoinPool PREPARE_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+	private final SendMetrics metrics = SendMetrics.get();
+	// servers that answered 415 to a gzip request
+	private static final Set<String> UNCOMPRESSED_SERVERS = ConcurrentHashMap.newKeySet();
+	// servers whose protocol (h2 or HTTP/1.1) was logged
+	private static final Set<String> NEGOTIATED_SERVERS = ConcurrentHashMap.newKeySet();
+
+	private static class PreparedDocument {
+		File file;
+		DocumentReference documentReference;
+		Binary binary;
+		// SHA-1 of the file when the Binary index is used
+		String hash;
+	}
+
+	// a transaction ready to post, with what its response is handled with
+	private static class Transaction {
+		String serverURL;
+		String oauthToken;
+		String patientId;
+		FileCache patientCache;
+		Patient conditionalPatient;
+		Bundle bundle;
+		TransactionBody body;
+		Map<Binary, String> binaryHashes = new HashMap<>();
+		// the file of each DocumentReference with a Binary in the body
+		Map<DocumentReference, File> documentFiles = new HashMap<>();
+		VerboseCapture capture;
+		SendAudit audit;
+	}
+
+	SendResult sendFhir(Map<String, Object> optionMap) {
+		if (optionMap.containsKey(OPTION_HTTP2) && !optionMap.containsKey(OPTION_EXPORT)) {
+			return sendFhirAsync(optionMap).join();
+		}
+		long startTime = System.currentTimeMillis();
+		SendAudit audit = SendAudit.start();
+		SendResult delivered = alreadyDelivered(optionMap);
+		if (delivered != null) {
+			return recordSend(optionMap, delivered, startTime, audit);
+		}
+		return recordSend(optionMap, sendFhirInternal(optionMap, audit), startTime, audit);
+	}
+
+	// --http2: prepared on the calling thread, which waits only for the in-flight limit; the
+	// transaction is sent on the async client and the result completes on one of its threads
+	CompletableFuture<SendResult> sendFhirAsync(Map<String, Object> optionMap) {
+		long startTime = System.currentTimeMillis();
+		SendAudit audit = SendAudit.start();
+		SendResult delivered = alreadyDelivered(optionMap);
+		if (delivered != null) {
+			return CompletableFuture.completedFuture(recordSend(optionMap, delivered, startTime, audit));
+		}
+		CompletableFuture<SendResult> result;
+		try {
+			result = sendFhirAsyncInternal(optionMap, audit);
+		} catch (RuntimeException e) {
+			result = new CompletableFuture<>();
+			result.completeExceptionally(e);
+		}
+		return result
+			.exceptionally(e -> {
+				Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+				LOG.error("mhdsend failed: document NOT provided: {}", cause.toString());
+				return new SendResult(98, cause.toString());
+			})
+			.thenApply(sendResult -> recordSend(optionMap, sendResult, startTime, audit));
+	}
+
+	private SendResult recordSend(Map<String, Object> optionMap, SendResult result, long startTime, SendAudit audit) {
+		result.elapsedMillis = System.currentTimeMillis() - startTime;
+
+		long fileBytes = 0;
+		if (result.isSuccess() && !result.skipped) {
+			for (Map<String, Object> document : BatchSend.documents(optionMap)) {
+				fileBytes += ((File) document.get(OPTION_DATA_BINARY)).length();
+			}
+		}
+		metrics.recordSend(result.exitCode, result.elapsedMillis, fileBytes);
+		if (audit != null) {
+			audit.log(optionMap, result, fileBytes);
+		}
+		return result;
+	}
+
+	// --ledger: the result of a send whose documents were all delivered to the server in the same
+	// manifest, without a request; null when it is to be sent
+	private SendResult alreadyDelivered(Map<String, Object> optionMap) {
+		DeliveryLedger ledger = (DeliveryLedger) optionMap.get(OPTION_LEDGER);
+		if (ledger == null || optionMap.containsKey(OPTION_LEDGER_RESEND) || optionMap.containsKey(OPTION_EXPORT)) {
+			return null;
+		}
+		String manifestUid = (String) optionMap.get(OPTION_MANIFEST_UID);
+		List<String> documentUids = BatchSend.documents(optionMap).stream()
+			.map(document -> (String) document.get(OPTION_DOCUMENT_UID))
+			.collect(Collectors.toList());
+		List<String[]> records;
+		try {
+			records = ledger.delivered((String) optionMap.get(OPTION_SERVER_URL), manifestUid, documentUids);
+		} catch (IOException e) {
+			LOG.warn("ledger NOT read, sending: {}", e.toString());
+			return null;
+		}
+		if (records == null) {
+			return null;
+		}
+		// a local read: a file corrected since it was delivered is not taken for delivered
+		List<Map<String, Object>> documents = BatchSend.documents(optionMap);
+		for (int i = 0; i < records.size(); i++) {
+			File file = (File) documents.get(i).get(OPTION_DATA_BINARY);
+			String recordedSha1 = records.get(i)[DeliveryLedger.SHA1];
+			String sha1;
+			try {
+				sha1 = DeliveryLedger.sha1(file);
+			} catch (IOException e) {
+				// the send reports it
+				return null;
+			}
+			if (!sha1.equals(recordedSha1)) {
+				LOG.error("mhdsend failed: document NOT provided: {} changed since it was delivered: sha1={}, ledger sha1={}; send it with --{}",
+					file, sha1, recordedSha1, OPTION_LEDGER_RESEND);
+				return new SendResult(98, "document changed since it was delivered: " + file);
+			}
+		}
+		LOG.info("mhdsend completed: document already delivered: manifest-uid={}", manifestUid);
+		SendResult result = new SendResult(0, "document already delivered");
+		result.skipped = true;
+		result.locations.add(records.get(0)[DeliveryLedger.MANIFEST_LOCATION]);
+		for (String[] record : records) {
+			if (!record[DeliveryLedger.BINARY_LOCATION].isEmpty()) {
+				result.locations.add(record[DeliveryLedger.BINARY_LOCATION]);
+			}
+			result.locations.add(record[DeliveryLedger.DOCUMENT_LOCATION]);
+		}
+		return result;
+	}
 
-	void sendFhir(Map<String, Object> optionMap) {
+	private SendResult sendFhirInternal(Map<String, Object> optionMap, SendAudit audit) {
 		// Setting (Header)
 		String serverURL = (String) optionMap.get(OPTION_SERVER_URL); //change = http or https check
 		LOG.info("URL={}", serverURL);
-		client = fhirContext.newRestfulGenericClient(serverURL);
-
-		int timeout = Integer.parseInt((String) optionMap.get(OPTION_TIMEOUT));
-		fhirContext.getRestfulClientFactory().setSocketTimeout(timeout * 1000);
+		FhirContext fhirContext = SharedFhirContext.get();
+		httpClient = SharedHttpClient.get(fhirContext, optionMap);
+		client = SharedHttpClient.newGenericClient(fhirContext, optionMap, serverURL);
 
 		String oauthToken = (String) optionMap.get(OPTION_OAUTH_TOKEN); //check 방법
 		BearerTokenAuthInterceptor authInterceptor = null;
@@ -50,70 +212,738 @@ public class FhirSend extends UtilContext {
 			authInterceptor = new BearerTokenAuthInterceptor(oauthToken);
 			client.registerInterceptor(authInterceptor);
 		}
+		Outbox outbox = (Outbox) optionMap.get(OPTION_OUTBOX);
+		if (outbox != null && optionMap.containsKey(OPTION_OUTBOX_RETRY)) {
+			outbox.startRetrier(httpClient, oauthToken);
+		}
+		NdjsonExport export = (NdjsonExport) optionMap.get(OPTION_EXPORT);
+		if (export != null) {
+			return exportDocuments(export, optionMap, oauthToken);
+		}
 		LOG.info("preparing FHIR Bundle...");
 
+		// Upload binary, reference, manifest
+		String patientId = (String) optionMap.get(OPTION_PATIENT_ID);
+		String patientResourceId = cachedPatient(optionMap, serverURL, patientId);
+		// the server finds or creates the patient in the same transaction
+		Patient conditionalPatient = null;
+		if (patientResourceId == null && optionMap.containsKey(OPTION_PATIENT_CONDITIONAL_CREATE)) {
+			conditionalPatient = conditionalPatient(optionMap, patientId);
+			patientResourceId = conditionalPatient.getIdElement().getValue();
+		}
+		if (patientResourceId == null) {
+			patientResourceId = findOrCreatePatient(optionMap, serverURL, patientId, audit);
+			if (patientResourceId == null) {
+				return new SendResult(5, "patient NOT created");
+			}
+		}
+
+		Transaction transaction;
+		try {
+			transaction = buildTransaction(optionMap, oauthToken, patientResourceId, conditionalPatient, audit);
+		} catch (ExecutionException e) {
+			LOG.error("mhdsend failed: attachment NOT uploaded: {}", e.getCause().toString());
+			return new SendResult(98, "attachment NOT uploaded: " + e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new SendResult(98, "interrupted");
+		}
+
+		try {
+			AdaptiveLimiter limiter = (AdaptiveLimiter) optionMap.get(OPTION_MAX_IN_FLIGHT);
+			BodyCompression compression = null;
+			if (optionMap.containsKey(OPTION_COMPRESS) && !UNCOMPRESSED_SERVERS.contains(serverURL)) {
+				compression = BodyCompression.choose(transaction.body);
+			}
+			Bundle responseBundle;
+			try {
+				responseBundle = postTransaction(serverURL, oauthToken, transaction.body, compression, limiter, audit);
+			} catch (BaseServerResponseException e) {
+				if (compression == null || e.getStatusCode() != 415) {
+					throw e;
+				}
+				// the server does not take gzip requests: send this and later transactions as they are
+				LOG.warn("gzip request NOT accepted by {}: sending uncompressed", serverURL);
+				UNCOMPRESSED_SERVERS.add(serverURL);
+				responseBundle = postTransaction(serverURL, oauthToken, transaction.body, null, limiter, audit);
+			}
+			return completeTransaction(optionMap, transaction, responseBundle);
+		} catch (BaseServerResponseException | IOException e) {
+			return failTransaction(optionMap, transaction, e);
+		}
+	}
+
+	private CompletableFuture<SendResult> sendFhirAsyncInternal(Map<String, Object> optionMap, SendAudit audit) {
+		String serverURL = (String) optionMap.get(OPTION_SERVER_URL);
+		LOG.info("URL={}", serverURL);
+		// attachment uploads, Binary checks and the outbox stay on the classic client
+		httpClient = SharedHttpClient.get(SharedFhirContext.get(), optionMap);
+		SharedAsyncClient asyncClient = SharedAsyncClient.get(optionMap);
+
+		String oauthToken = (String) optionMap.get(OPTION_OAUTH_TOKEN);
+		Outbox outbox = (Outbox) optionMap.get(OPTION_OUTBOX);
+		if (outbox != null && optionMap.containsKey(OPTION_OUTBOX_RETRY)) {
+			outbox.startRetrier(httpClient, oauthToken);
+		}
+		LOG.info("preparing FHIR Bundle...");
+
+		// with --patient-conditional-create a patient not in the cache is found or created by the server in
+		// the transaction, so the only request of a send is the multiplexed transaction
+		String patientId = (String) optionMap.get(OPTION_PATIENT_ID);
+		String patientResourceId = cachedPatient(optionMap, serverURL, patientId);
+		Patient conditionalPatient = null;
+		if (patientResourceId == null && optionMap.containsKey(OPTION_PATIENT_CONDITIONAL_CREATE)) {
+			conditionalPatient = conditionalPatient(optionMap, patientId);
+			patientResourceId = conditionalPatient.getIdElement().getValue();
+		}
+		if (patientResourceId == null) {
+			// otherwise on the classic client before the transaction, as without --http2
+			client = SharedHttpClient.newGenericClient(SharedFhirContext.get(), optionMap, serverURL);
+			if (oauthToken != null) {
+				client.registerInterceptor(new BearerTokenAuthInterceptor(oauthToken));
+			}
+			patientResourceId = findOrCreatePatient(optionMap, serverURL, patientId, audit);
+			if (patientResourceId == null) {
+				return CompletableFuture.completedFuture(new SendResult(5, "patient NOT created"));
+			}
+		}
+
+		Transaction transaction;
+		try {
+			transaction = buildTransaction(optionMap, oauthToken, patientResourceId, conditionalPatient, audit);
+		} catch (ExecutionException e) {
+			LOG.error("mhdsend failed: attachment NOT uploaded: {}", e.getCause().toString());
+			return CompletableFuture.completedFuture(new SendResult(98, "attachment NOT uploaded: " + e.getCause()));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return CompletableFuture.completedFuture(new SendResult(98, "interrupted"));
+		}
+		if (optionMap.containsKey(OPTION_COMPRESS)) {
+			LOG.warn("{} NOT used with --{}", OPTION_COMPRESS, OPTION_HTTP2);
+		}
+
+		AdaptiveLimiter limiter = (AdaptiveLimiter) optionMap.get(OPTION_MAX_IN_FLIGHT);
+		CompletableFuture<Bundle> response;
+		try {
+			response = postTransactionAsync(asyncClient, serverURL, oauthToken, transaction.body, limiter, audit);
+		} catch (InterruptedIOException e) {
+			return CompletableFuture.completedFuture(new SendResult(98, "interrupted"));
+		}
+		// spooling to the outbox writes the whole body: not on an I/O thread
+		return response.handleAsync((responseBundle, e) -> {
+			if (e == null) {
+				return completeTransaction(optionMap, transaction, responseBundle);
+			}
+			Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+			if (cause instanceof BaseServerResponseException || cause instanceof IOException) {
+				return failTransaction(optionMap, transaction, (Exception) cause);
+			}
+			LOG.error("mhdsend failed: document NOT provided: {}", cause.toString());
+			return new SendResult(98, cause.toString());
+		}, ResidentServer.callExecutor(PREPARE_POOL));
+	}
+
+	private String cachedPatient(Map<String, Object> optionMap, String serverURL, String patientId) {
+		FileCache patientCache = (FileCache) optionMap.get(OPTION_PATIENT_CACHE);
+		String patientResourceId = null;
+		if (patientCache != null && !optionMap.containsKey(OPTION_PATIENT_REVALIDATE)) {
+			patientResourceId = patientCache.get(serverURL, patientId);
+			metrics.recordPatientCache(patientResourceId != null);
+			if (patientResourceId != null) {
+				LOG.info("patient found in cache: resource={}", patientResourceId);
+			}
+		}
+		return patientResourceId;
+	}
+
+	private Patient conditionalPatient(Map<String, Object> optionMap, String patientId) {
+		Patient patient = createPatient(
+			patientId,
+			(String) optionMap.get(OPTION_PATIENT_NANE),
+			(String) optionMap.get(OPTION_PATIENT_SEX),
+			(String) optionMap.get(OPTION_PATIENT_BIRTHDATE));
+		patient.setId(IdType.newRandomUuid());
+		LOG.info("patient conditionally created in transaction: {}", patient.getIdElement().getValue());
+		return patient;
+	}
+
+	// ExecutionException: a file could not be uploaded to the attachment store or indexed
+	private Transaction buildTransaction(Map<String, Object> optionMap, String oauthToken, String patientResourceId, Patient conditionalPatient,
+										 SendAudit audit) throws ExecutionException, InterruptedException {
+		Transaction transaction = new Transaction();
+		transaction.audit = audit;
+		if (audit != null) {
+			audit.setPatientResourceId(patientResourceId);
+		}
+		transaction.serverURL = (String) optionMap.get(OPTION_SERVER_URL);
+		transaction.oauthToken = oauthToken;
+		transaction.patientId = (String) optionMap.get(OPTION_PATIENT_ID);
+		transaction.patientCache = (FileCache) optionMap.get(OPTION_PATIENT_CACHE);
+		transaction.conditionalPatient = conditionalPatient;
+		transaction.capture = (VerboseCapture) optionMap.get(OPTION_VERBOSE_FILE);
+
 		// Setting (Bundle)
 		Bundle bundle = new Bundle();
 		List<CanonicalType> profile = new ArrayList<>();
 		profile.add(new CanonicalType(PROFILE_ITI_65_MINIMAL_METADATA));
 		bundle.getMeta().setProfile(profile);
 		bundle.setType(Bundle.BundleType.TRANSACTION);
+		transaction.bundle = bundle;
+		if (conditionalPatient != null) {
+			addPatientToBundle(conditionalPatient, transaction.patientId, bundle);
+		}
 
-		// Upload binary, reference, manifest
-		String patientResourceId = getPatientResourceId((String) optionMap.get(OPTION_PATIENT_ID), serverURL);
-		if (patientResourceId == null) {
-			// try to create new patient
-				patientResourceId = createPatientID(
-					(String) optionMap.get(OPTION_PATIENT_ID),
+		long prepareStart = System.nanoTime();
+		LOG.info("creating DocumentManifest");
+		DocumentManifest documentManifest = createDocumentManifest(patientResourceId, optionMap);
+		addDocumentManifestToBundle(documentManifest, bundle);
+
+		// prepare the DocumentReference/Binary pair of each file in parallel
+		@SuppressWarnings("unchecked")
+		List<Map<String, Object>> documents = (List<Map<String, Object>>) optionMap.get(OPTION_DOCUMENTS);
+		Function<Map<String, Object>, PreparedDocument> prepare = ResidentServer.inCall(document -> prepareDocument(patientResourceId, optionMap, document, oauthToken));
+		List<PreparedDocument> preparedDocuments = PREPARE_POOL.submit(() -> documents.parallelStream()
+			.map(prepare)
+			.collect(Collectors.toList())).get();
+
+		// each Binary goes before its DocumentReference, so the SHA-1 taken while the file is
+		// streamed can be written into Attachment.hash
+		Map<Binary, File> payloads = new LinkedHashMap<>();
+		Map<Attachment, File> hashes = new HashMap<>();
+		for (PreparedDocument preparedDocument : preparedDocuments) {
+			if (preparedDocument.binary != null) {
+				addBinaryToBundle(preparedDocument.binary, bundle);
+				payloads.put(preparedDocument.binary, preparedDocument.file);
+				transaction.documentFiles.put(preparedDocument.documentReference, preparedDocument.file);
+				hashes.put(preparedDocument.documentReference.getContentFirstRep().getAttachment(), preparedDocument.file);
+				if (preparedDocument.hash != null) {
+					transaction.binaryHashes.put(preparedDocument.binary, preparedDocument.hash);
+				}
+			}
+			addDocumentReferenceToBundle(preparedDocument.documentReference, bundle);
+		}
+		long encodeStart = System.nanoTime();
+		record(audit, SendMetrics.PHASE_PREPARE, encodeStart - prepareStart);
+		transaction.body = new TransactionBody(SharedFhirContext.get(), bundle, payloads, hashes);
+		record(audit, SendMetrics.PHASE_ENCODE, System.nanoTime() - encodeStart);
+		return transaction;
+	}
+
+	private SendResult completeTransaction(Map<String, Object> optionMap, Transaction transaction, Bundle responseBundle) {
+		if (transaction.capture != null) {
+			transaction.capture.write(transaction.serverURL, transaction.body, responseBundle, null);
+			LOG.info("transaction written to verbose file: {}", transaction.capture.getFile());
+		}
+
+		boolean bundleIsSuccess = responseBundle.hasEntry();
+		if (bundleIsSuccess) {
+			LOG.info("mhdsend completed: document provided");
+			SendResult result = new SendResult(0, "document provided");
+			for (Bundle.BundleEntryComponent entry : responseBundle.getEntry()) {
+				result.locations.add(entry.getResponse().getLocation());
+			}
+			if (transaction.conditionalPatient != null && transaction.patientCache != null) {
+				// the Patient entry is first, so is its response
+				String location = responseBundle.getEntryFirstRep().getResponse().getLocation();
+				if (location != null) {
+					transaction.patientCache.put(transaction.serverURL, transaction.patientId, location.replaceFirst("/_history/.*$", ""));
+				}
+			}
+			if (!transaction.binaryHashes.isEmpty()) {
+				indexBinaries((BinaryIndex) optionMap.get(OPTION_BINARY_INDEX), transaction.serverURL, transaction.bundle, responseBundle, transaction.binaryHashes);
+			}
+			DeliveryLedger ledger = (DeliveryLedger) optionMap.get(OPTION_LEDGER);
+			if (ledger != null) {
+				recordDelivery(ledger, transaction, responseBundle);
+			}
+			return result;
+		} else {
+			LOG.error("mhdsend failed: document NOT provided: empty bundle returned");
+			return new SendResult(99, "empty bundle returned");
+		}
+	}
+
+	private SendResult failTransaction(Map<String, Object> optionMap, Transaction transaction, Exception e) {
+		if (transaction.capture != null) {
+			transaction.capture.write(transaction.serverURL, transaction.body, null, e.toString());
+			LOG.info("transaction written to verbose file: {}", transaction.capture.getFile());
+		}
+		if (e instanceof BaseServerResponseException) {
+		//	e.printStackTrace();	// intentionally commented-out
+			LOG.error("mhdsend failed: document NOT provided: {}", e.getMessage());
+			if (transaction.patientCache != null) {
+				// the cached patient may be gone; search again next time
+				transaction.patientCache.invalidate(transaction.serverURL, transaction.patientId);
+			}
+			return spoolOrFail(optionMap, transaction, e, e.getMessage());
+		}
+		LOG.error("mhdsend failed: document NOT provided: {}", e.toString());
+		return spoolOrFail(optionMap, transaction, e, e.toString());
+	}
+
+	// the response entries are in the order of the request entries
+	private void indexBinaries(BinaryIndex binaryIndex, String serverURL, Bundle bundle, Bundle responseBundle, Map<Binary, String> binaryHashes) {
+		List<Bundle.BundleEntryComponent> requestEntries = bundle.getEntry();
+		List<Bundle.BundleEntryComponent> responseEntries = responseBundle.getEntry();
+		for (int i = 0; i < requestEntries.size() && i < responseEntries.size(); i++) {
+			String hash = binaryHashes.get(requestEntries.get(i).getResource());
+			String location = responseEntries.get(i).getResponse().getLocation();
+			if (hash != null && location != null) {
+				binaryIndex.put(serverURL, hash, location);
+			}
+		}
+	}
+
+	// what the transaction delivers, for the ledger; the SHA-1 of a file not streamed yet is read from it
+	private DeliveryLedger.Delivery delivery(Transaction transaction) throws IOException {
+		StringBuilder entries = new StringBuilder();
+		List<String[]> documents = new ArrayList<>();
+		String manifestUid = null;
+		for (Bundle.BundleEntryComponent entry : transaction.bundle.getEntry()) {
+			Resource resource = entry.getResource();
+			if (resource instanceof DocumentManifest) {
+				manifestUid = ((DocumentManifest) resource).getMasterIdentifier().getValue();
+				entries.append(DeliveryLedger.Delivery.MANIFEST);
+			} else if (resource instanceof Binary) {
+				entries.append(DeliveryLedger.Delivery.BINARY);
+			} else if (resource instanceof DocumentReference) {
+				DocumentReference documentReference = (DocumentReference) resource;
+				Attachment attachment = documentReference.getContentFirstRep().getAttachment();
+				File file = transaction.documentFiles.get(documentReference);
+				String sha1 = attachment.hasHash() ? Base64.getEncoder().encodeToString(attachment.getHash())
+					: file != null ? transaction.body.getDigest(file) : null;
+				if (sha1 == null && file != null) {
+					sha1 = DeliveryLedger.sha1(file);
+				}
+				// the URL: of the Binary already on the server when there is none in the transaction
+				documents.add(new String[]{documentReference.getMasterIdentifier().getValue(), sha1, attachment.getUrl()});
+				entries.append(DeliveryLedger.Delivery.DOCUMENT);
+			} else {
+				entries.append(DeliveryLedger.Delivery.OTHER);
+			}
+		}
+		return new DeliveryLedger.Delivery(manifestUid, transaction.patientId, entries.toString(), documents);
+	}
+
+	private void recordDelivery(DeliveryLedger ledger, Transaction transaction, Bundle responseBundle) {
+		try {
+			ledger.record(transaction.serverURL, delivery(transaction), responseBundle);
+		} catch (IOException e) {
+			LOG.warn("delivery NOT recorded in ledger: {}", e.toString());
+		}
+	}
+
+	// --export: the resources of the transaction, without the transaction
+	private SendResult exportDocuments(NdjsonExport export, Map<String, Object> optionMap, String oauthToken) {
+		String serverURL = (String) optionMap.get(OPTION_SERVER_URL);
+		String patientId = (String) optionMap.get(OPTION_PATIENT_ID);
+		FileCache patientCache = (FileCache) optionMap.get(OPTION_PATIENT_CACHE);
+		String patientReference = patientCache == null ? null : patientCache.get(serverURL, patientId);
+		try {
+			if (patientReference == null) {
+				// no server lookup: the patient is exported with an id derived from its identifier
+				patientReference = export.patientReference(SharedFhirContext.get(), createPatient(
+					patientId,
 					(String) optionMap.get(OPTION_PATIENT_NANE),
 					(String) optionMap.get(OPTION_PATIENT_SEX),
-					(String) optionMap.get(OPTION_PATIENT_BIRTHDATE),
-					serverURL);
-			if (patientResourceId == null) {
-				System.exit(5);
+					(String) optionMap.get(OPTION_PATIENT_BIRTHDATE)), patientId);
+			}
+
+			DocumentManifest documentManifest = createDocumentManifest(patientReference, optionMap);
+			List<DocumentReference> documentReferences = new ArrayList<>();
+			Map<DocumentReference, Binary> binaries = new HashMap<>();
+			Map<Binary, File> files = new HashMap<>();
+			for (Map<String, Object> document : BatchSend.documents(optionMap)) {
+				PreparedDocument preparedDocument = prepareDocument(patientReference, optionMap, document, oauthToken);
+				documentReferences.add(preparedDocument.documentReference);
+				if (preparedDocument.binary != null) {
+					binaries.put(preparedDocument.documentReference, preparedDocument.binary);
+					files.put(preparedDocument.binary, preparedDocument.file);
+				}
 			}
+			metrics.recordStartup();
+			export.write(SharedFhirContext.get(), documentManifest, documentReferences, binaries, files);
+		} catch (IOException | UncheckedIOException e) {
+			LOG.error("mhdsend failed: document NOT exported: {}", e.toString());
+			return new SendResult(98, "document NOT exported: " + e);
 		}
+		LOG.info("mhdsend completed: document exported");
+		return new SendResult(0, "document exported");
+	}
 
-		LOG.info("creating DocumentManifest");
-		DocumentManifest documentManifest = createDocumentManifest(patientResourceId, optionMap);
-		addDocumentManifestToBundle(documentManifest, bundle);
+	// --export-import: with the HTTP client of a regular run
+	static int startImport(Map<String, Object> optionMap) {
+		return NdjsonExport.startImport(optionMap, SharedHttpClient.get(SharedFhirContext.get(), optionMap));
+	}
+
+	// keep the serialized transaction for a later resend if the failure is temporary
+	private SendResult spoolOrFail(Map<String, Object> optionMap, Transaction transaction, Exception cause, String message) {
+		Outbox outbox = (Outbox) optionMap.get(OPTION_OUTBOX);
+		if (outbox == null || !Outbox.isRetryable(cause)) {
+			return new SendResult(98, message);
+		}
+		try {
+			// recorded in the ledger when the outbox delivers it
+			DeliveryLedger ledger = (DeliveryLedger) optionMap.get(OPTION_LEDGER);
+			String id = ledger == null ? outbox.spool(transaction.serverURL, transaction.body, null, null)
+				: outbox.spool(transaction.serverURL, transaction.body, ledger.getDir(), delivery(transaction));
+			return new SendResult(75, "queued to outbox: id=" + id + ": " + message);
+		} catch (IOException e) {
+			LOG.error("transaction NOT spooled to outbox: {}", e.toString());
+			return new SendResult(98, message);
+		}
+	}
+
+	// --outbox-drain: resend with the HTTP client of a regular run
+	static int drainOutbox(Map<String, Object> optionMap) {
+		Outbox outbox = (Outbox) optionMap.get(OPTION_OUTBOX);
+		return outbox.drain(SharedHttpClient.get(SharedFhirContext.get(), optionMap), (String) optionMap.get(OPTION_OAUTH_TOKEN));
+	}
+
+	private PreparedDocument prepareDocument(String patientResourceId, Map<String, Object> optionMap, Map<String, Object> document, String oauthToken) {
+		Map<String, Object> options = new HashMap<>(optionMap);
+		options.putAll(document);
+		PreparedDocument prepared = new PreparedDocument();
+		prepared.file = (File) options.get(OPTION_DATA_BINARY);
+
+		// Upload the file out-of-band (attach-url) before building the DocumentReference
+		String attachURL = (String) options.get(OPTION_ATTACH_URL);
+		Attachment storedAttachment = null;
+		if (attachURL != null) {
+			try {
+				storedAttachment = uploadAttachment(attachURL, oauthToken, prepared.file, (String) options.get(OPTION_CONTENT_TYPE));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		// content already on the server: reference its Binary instead of uploading the file again
+		BinaryIndex binaryIndex = (BinaryIndex) options.get(OPTION_BINARY_INDEX);
+		String indexedURL = null;
+		if (storedAttachment == null && binaryIndex != null) {
+			String serverURL = (String) options.get(OPTION_SERVER_URL);
+			try {
+				prepared.hash = binaryIndex.hashOf(prepared.file);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			indexedURL = binaryIndex.lookup(serverURL, prepared.hash);
+			if (indexedURL != null && options.containsKey(OPTION_BINARY_VERIFY) && !binaryIndex.verify(httpClient, indexedURL, oauthToken)) {
+				binaryIndex.invalidate(serverURL, prepared.hash);
+				indexedURL = null;
+			}
+			metrics.recordBinaryIndex(indexedURL != null, prepared.file.length());
+		}
 
 		LOG.info("creating DocumentReference");
-		DocumentReference documentReference = createDocumentReference(patientResourceId, optionMap);
-		addDocumentReferenceToBundle(documentReference, bundle);
+		prepared.documentReference = createDocumentReference(patientResourceId, options);
+
+		if (storedAttachment != null) {
+			// no Binary entry: the attachment refers to the stored file
+			Attachment attachment = prepared.documentReference.getContentFirstRep().getAttachment();
+			attachment.setUrl(storedAttachment.getUrl());
+			attachment.setHash(storedAttachment.getHash());
+			if (storedAttachment.hasSize()) {
+				attachment.setSize(storedAttachment.getSize());
+			}
+			LOG.info("DocumentReference.attachment.url={}", attachment.getUrl());
+			LOG.info("DocumentReference.attachment.size={}", attachment.getSize());
+			LOG.info("DocumentReference.attachment.hash={}", attachment.getHashElement().getValueAsString());
+		} else if (indexedURL != null) {
+			LOG.info("Binary found in index: file={}", prepared.file);
+			Attachment attachment = prepared.documentReference.getContentFirstRep().getAttachment();
+			attachment.setUrl(indexedURL);
+			attachment.setHash(Base64.getDecoder().decode(prepared.hash));
+			if (prepared.file.length() <= Integer.MAX_VALUE) {
+				attachment.setSize((int) prepared.file.length());
+			}
+			LOG.info("DocumentReference.attachment.url={}", attachment.getUrl());
+			LOG.info("DocumentReference.attachment.size={}", attachment.getSize());
+			LOG.info("DocumentReference.attachment.hash={}", prepared.hash);
+		} else {
+			LOG.info("creating Binary");
+			prepared.binary = createBinary(options);
+
+			// the hash is computed while the file is streamed into Binary.data
+			Attachment attachment = prepared.documentReference.getContentFirstRep().getAttachment();
+			if (prepared.file.length() <= Integer.MAX_VALUE) {
+				attachment.setSize((int) prepared.file.length());
+			} else {
+				LOG.warn("Attachment.size NOT set: {} bytes is too large", prepared.file.length());
+			}
+			LOG.info("DocumentReference.attachment.size={}", attachment.getSize());
+		}
+		return prepared;
+	}
+
+	// POST the transaction with the body streamed from the files, instead of through IGenericClient
+	private Bundle postTransaction(String serverURL, String oauthToken, TransactionBody body, BodyCompression compression, AdaptiveLimiter limiter,
+								   SendAudit audit) throws IOException {
+		HttpPost post = new HttpPost(serverURL);
+		post.addHeader(HttpHeaders.ACCEPT, TransactionBody.CONTENT_TYPE.getMimeType());
+		if (oauthToken != null) {
+			post.addHeader(HttpHeaders.AUTHORIZATION, "Bearer " + oauthToken);
+		}
+		// the server's response time starts when the body is written
+		final long[] writing = new long[2];
+		post.setEntity(new HttpEntityWrapper(compression == null ? body.toHttpEntity() : compression.toHttpEntity(body)) {
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				writing[0] = System.nanoTime();
+				super.writeTo(out);
+				writing[1] = System.nanoTime();
+			}
+		});
+		LOG.info("sending transaction: {} bytes{}", body.getContentLength(), compression == null ? "" : ", " + compression);
+		metrics.recordRequestBytes(body.getContentLength());
+		metrics.recordStartup();
+		if (audit != null) {
+			audit.setRequestBytes(body.getContentLength());
+		}
+
+		if (limiter != null) {
+			try {
+				limiter.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted waiting for the in-flight limit");
+			}
+		}
+		boolean released = limiter == null;
+		try {
+			long requestStart = System.nanoTime();
+			HttpResponse response = httpClient.execute(post);
+			long responseStart = System.nanoTime();
+			// the body is not written to the end when the server answers early
+			long responseNanos = responseStart - (writing[1] != 0 ? writing[1] : requestStart);
+			if (writing[1] != 0) {
+				record(audit, SendMetrics.PHASE_CONNECT, writing[0] - requestStart);
+				record(audit, SendMetrics.PHASE_UPLOAD, writing[1] - writing[0]);
+			}
+			record(audit, SendMetrics.PHASE_SERVER, responseNanos);
+			try (Reader reader = new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8)) {
+				int statusCode = response.getStatusLine().getStatusCode();
+				if (statusCode < 200 || statusCode >= 300) {
+					if (!released) {
+						released = true;
+						if (Outbox.isRetryable(statusCode)) {
+							limiter.onDropped();
+						} else {
+							limiter.onIgnored();
+						}
+					}
+					String message = IOUtils.toString(reader);
+					throw BaseServerResponseException.newInstance(statusCode,
+						"HTTP " + statusCode + " " + response.getStatusLine().getReasonPhrase() + ": " + message);
+				}
+				if (!released) {
+					released = true;
+					limiter.onSuccess(responseNanos);
+				}
+				Bundle responseBundle = SharedFhirContext.get().newJsonParser().parseResource(Bundle.class, reader);
+				record(audit, SendMetrics.PHASE_RESPONSE, System.nanoTime() - responseStart);
+				return responseBundle;
+			}
+		} catch (IOException e) {
+			if (!released) {
+				released = true;
+				limiter.onDropped();
+			}
+			throw e;
+		} finally {
+			if (!released) {
+				limiter.onIgnored();
+			}
+		}
+	}
+
+	// POST the transaction on the async client: the in-flight limit is taken here and given back
+	// when the response arrives, so the calling thread only waits while the limit is reached
+	private CompletableFuture<Bundle> postTransactionAsync(SharedAsyncClient asyncClient, String serverURL, String oauthToken, TransactionBody body,
+														   AdaptiveLimiter limiter, SendAudit audit) throws InterruptedIOException {
+		final long[] writing = new long[2];
+		AsyncRequestBuilder request = AsyncRequestBuilder.post(serverURL)
+			.addHeader(HttpHeaders.ACCEPT, TransactionBody.CONTENT_TYPE.getMimeType())
+			.setEntity(body.toAsyncEntityProducer(writing));
+		if (oauthToken != null) {
+			request.addHeader(HttpHeaders.AUTHORIZATION, "Bearer " + oauthToken);
+		}
+		LOG.info("sending transaction: {} bytes", body.getContentLength());
+		metrics.recordRequestBytes(body.getContentLength());
+		metrics.recordStartup();
+		if (audit != null) {
+			audit.setRequestBytes(body.getContentLength());
+		}
+
+		if (limiter != null) {
+			try {
+				limiter.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted waiting for the in-flight limit");
+			}
+		}
+		CompletableFuture<Bundle> future = new CompletableFuture<>();
+		long requestStart = System.nanoTime();
+		// the connection's protocol; an h2 response carries no version of its own
+		HttpClientContext context = HttpClientContext.create();
+		FutureCallback<SimpleHttpResponse> callback = new FutureCallback<SimpleHttpResponse>() {
+			@Override
+			public void completed(SimpleHttpResponse response) {
+				long responseStart = System.nanoTime();
+				// the body is not written to the end when the server answers early
+				long responseNanos = responseStart - (writing[1] != 0 ? writing[1] : requestStart);
+				if (writing[1] != 0) {
+					record(audit, SendMetrics.PHASE_CONNECT, writing[0] - requestStart);
+					record(audit, SendMetrics.PHASE_UPLOAD, writing[1] - writing[0]);
+				}
+				record(audit, SendMetrics.PHASE_SERVER, responseNanos);
+				logProtocol(serverURL, context.getProtocolVersion());
+
+				int statusCode = response.getCode();
+				byte[] responseBody = response.getBodyBytes();
+				String message = responseBody == null ? "" : new String(responseBody, StandardCharsets.UTF_8);
+				if (statusCode < 200 || statusCode >= 300) {
+					if (limiter != null) {
+						if (Outbox.isRetryable(statusCode)) {
+							limiter.onDropped();
+						} else {
+							limiter.onIgnored();
+						}
+					}
+					future.completeExceptionally(BaseServerResponseException.newInstance(statusCode,
+						"HTTP " + statusCode + " " + response.getReasonPhrase() + ": " + message));
+					return;
+				}
+				if (limiter != null) {
+					limiter.onSuccess(responseNanos);
+				}
+				try {
+					Bundle responseBundle = SharedFhirContext.get().newJsonParser().parseResource(Bundle.class, message);
+					record(audit, SendMetrics.PHASE_RESPONSE, System.nanoTime() - responseStart);
+					future.complete(responseBundle);
+				} catch (RuntimeException e) {
+					future.completeExceptionally(e);
+				}
+			}
+
+			@Override
+			public void failed(Exception e) {
+				if (limiter != null) {
+					limiter.onDropped();
+				}
+				future.completeExceptionally(e);
+			}
 
-		LOG.info("creating Binary");
-		Binary binary = createBinary(optionMap);
-		addBinaryToBundle(binary, bundle);
+			@Override
+			public void cancelled() {
+				if (limiter != null) {
+					limiter.onIgnored();
+				}
+				future.cancel(false);
+			}
+		};
+		try {
+			asyncClient.execute(serverURL, request.build(), context, callback);
+		} catch (RuntimeException e) {
+			// not sent, e.g. the client is shut down
+			callback.failed(e);
+		}
+		return future;
+	}
+
+	// the phase in the JVM's metrics and in the audit of the send, if any
+	private void record(SendAudit audit, String phase, long nanos) {
+		metrics.record(phase, nanos);
+		if (audit != null) {
+			audit.record(phase, nanos);
+		}
+	}
+
+	private static void logProtocol(String serverURL, ProtocolVersion version) {
+		if (version != null && NEGOTIATED_SERVERS.add(serverURL)) {
+			LOG.info("protocol of {}: {}", serverURL, version);
+		}
+	}
 
+	// Upload the file with chunked transfer, computing its size and SHA-1 on the way
+	private Attachment uploadAttachment(String attachURL, String oauthToken, File file, String contentType) throws IOException {
+		LOG.info("uploading attachment: url={}, file={}", attachURL, file);
+		MessageDigest sha1;
 		try {
-			boolean verbose = (boolean) optionMap.getOrDefault(OPTION_VERBOSE, Boolean.FALSE);
-			if (verbose) {
-				LOG.info("Request=\n{}", fhirContext.newJsonParser().setPrettyPrint(true).encodeResourceToString(bundle));
+			sha1 = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		HttpPost post = new HttpPost(attachURL);
+		if (oauthToken != null) {
+			post.addHeader(HttpHeaders.AUTHORIZATION, "Bearer " + oauthToken);
+		}
+		try (CountingInputStream in = new CountingInputStream(new DigestInputStream(new FileInputStream(file), sha1))) {
+			InputStreamEntity entity = new InputStreamEntity(in, -1, ContentType.parse(contentType)) {
+				// larger chunks than the default 4 KB
+				@Override
+				public void writeTo(OutputStream out) throws IOException {
+					IOUtils.copyLarge(getContent(), out, new byte[UPLOAD_CHUNK_SIZE]);
+				}
+			};
+			entity.setChunked(true);
+			post.setEntity(entity);
+
+			HttpResponse response = httpClient.execute(post);
+			EntityUtils.consume(response.getEntity());
+			int statusCode = response.getStatusLine().getStatusCode();
+			if (statusCode < 200 || statusCode >= 300) {
+				throw new IOException("HTTP " + statusCode + " " + response.getStatusLine().getReasonPhrase());
 			}
 
-			Bundle responseBundle = client.transaction().withBundle(bundle).execute();
-			if (verbose) {
-				LOG.info("Response=\n{}", fhirContext.newJsonParser().setPrettyPrint(true).encodeResourceToString(responseBundle));
+			// the stored file is where the store says it is, or the upload URL itself
+			String location = attachURL;
+			Header locationHeader = response.getFirstHeader(HttpHeaders.LOCATION);
+			if (locationHeader != null) {
+				location = URI.create(attachURL).resolve(locationHeader.getValue()).toString();
 			}
 
-			boolean bundleIsSuccess = responseBundle.hasEntry();
-			if (bundleIsSuccess) {
-				LOG.info("mhdsend completed: document provided");
-				System.exit(0);
+			Attachment attachment = new Attachment();
+			attachment.setUrl(location);
+			attachment.setHash(sha1.digest());
+			// Attachment.size is an unsignedInt in R4
+			if (in.getByteCount() <= Integer.MAX_VALUE) {
+				attachment.setSize((int) in.getByteCount());
 			} else {
-				LOG.error("mhdsend failed: document NOT provided: empty bundle returned");
-				System.exit(99);
+				LOG.warn("Attachment.size NOT set: {} bytes is too large", in.getByteCount());
 			}
-		} catch(InvalidRequestException e) {
-		//	e.printStackTrace();	// intentionally commented-out
-			LOG.error("mhdsend failed: document NOT provided: {}", e.getMessage());
-			System.exit(98);
+			LOG.info("attachment uploaded: location={}, bytes={}", location, in.getByteCount());
+			return attachment;
 		}
 	}
 
 	/////////////////////////////////////////////////////////////////////////////////////////////////////////
 
+	// the patient resource id from a search, else from the patient created; null if not created
+	private String findOrCreatePatient(Map<String, Object> optionMap, String serverURL, String patientId, SendAudit audit) {
+		FileCache patientCache = (FileCache) optionMap.get(OPTION_PATIENT_CACHE);
+		long lookupStart = System.nanoTime();
+		String patientResourceId = getPatientResourceId(patientId, serverURL);
+		record(audit, SendMetrics.PHASE_PATIENT_LOOKUP, System.nanoTime() - lookupStart);
+		if (patientResourceId == null) {
+			// try to create new patient
+			long createStart = System.nanoTime();
+			patientResourceId = createPatientID(
+				patientId,
+				(String) optionMap.get(OPTION_PATIENT_NANE),
+				(String) optionMap.get(OPTION_PATIENT_SEX),
+				(String) optionMap.get(OPTION_PATIENT_BIRTHDATE),
+				serverURL);
+			record(audit, SendMetrics.PHASE_PATIENT_CREATE, System.nanoTime() - createStart);
+		}
+		if (patientResourceId != null && patientCache != null) {
+			patientCache.put(serverURL, patientId, patientResourceId);
+		}
+		return patientResourceId;
+	}
+
 	private String getPatientResourceId(String patient_id, String server_url) {
 		try {
 			URIBuilder uriBuilder = new URIBuilder(server_url);
@@ -141,6 +971,19 @@ public class FhirSend extends UtilContext {
 
 	private String createPatientID(String patient_id, String patient_name, String patient_sex, String patient_birthdate, String serverURL) {
 		String patientResourceId = null;
+		Patient patient = createPatient(patient_id, patient_name, patient_sex, patient_birthdate);
+		LOG.info("patient info : {}", patient);
+		MethodOutcome result = client.create().resource(patient).prettyPrint().encodedJson().execute();
+		if (result.getCreated()) {
+			patientResourceId = getPatientResourceId(patient_id, serverURL);
+			LOG.info(patientResourceId);
+			return patientResourceId;
+		} else {
+			return null;
+		}
+	}
+
+	Patient createPatient(String patient_id, String patient_name, String patient_sex, String patient_birthdate) {
 		Patient patient = new Patient();
 		patient.addIdentifier().setValue(patient_id);
 		if (patient_name != null) {
@@ -165,21 +1008,21 @@ public class FhirSend extends UtilContext {
 				e.printStackTrace();
 			}
 		}
-		LOG.info("patient info : {}", patient);
-		IGenericClient patientClient = fhirContext.newRestfulGenericClient(serverURL);
-		MethodOutcome result = patientClient.create().resource(patient).prettyPrint().encodedJson().execute();
-		if (result.getCreated()) {
-			patientResourceId = getPatientResourceId(patient_id, serverURL);
-			LOG.info(patientResourceId);
-			return patientResourceId;
-		} else {
-			return null;
-		}
+		return patient;
+	}
+
+	// POST only if no patient has the identifier: the search getPatientResourceId does
+	void addPatientToBundle(Patient patient, String patient_id, Bundle bundle) {
+		Bundle.BundleEntryComponent entry = bundle.addEntry();
+		entry.setFullUrl(patient.getIdElement().getValue());
+		entry.setResource(patient);
+		entry.getRequest().setUrl(PATIENT).setMethod(Bundle.HTTPVerb.POST)
+			.setIfNoneExist(new URIBuilder().addParameter("identifier", patient_id).toString().substring(1));
 	}
 
 	/////////////////////////////////////////////////////////////////////////////////////////////////////////
 
-	private DocumentManifest createDocumentManifest(String patientResourceId, Map<String, Object> options) {
+	DocumentManifest createDocumentManifest(String patientResourceId, Map<String, Object> options) {
 		DocumentManifest manifest = new DocumentManifest();
 		//Document Manifest uuid
 		manifest.setId((String) options.get(OPTION_MANIFEST_UUID));
@@ -209,9 +1052,8 @@ public class FhirSend extends UtilContext {
 		LOG.info("DocumentManifest.status={}", manifest.getStatus());
 
 		// type (Required) - Kind of document set
-		Code typeCode = (Code) options.get(OPTION_MANIFEST_TYPE);
-		CodeableConcept typeCC = createCodeableConcept(typeCode);
-		manifest.setType(typeCC);
+		SendTemplate template = (SendTemplate) options.get(OPTION_TEMPLATE);
+		manifest.setType(template.concept(OPTION_MANIFEST_TYPE));
 		Coding typeCoding = manifest.getType().getCoding().get(0);
 		LOG.info("DocumentManifest.type={},{},{}",
 			typeCoding.getCode(),
@@ -240,15 +1082,21 @@ public class FhirSend extends UtilContext {
 		LOG.info("DocumentManifest.description={}", manifest.getDescription());
 
 		// content - Items in manifest
+		@SuppressWarnings("unchecked")
+		List<Map<String, Object>> documents = (List<Map<String, Object>>) options.get(OPTION_DOCUMENTS);
 		List<Reference> referenceList = new ArrayList<>();
-		referenceList.add(new Reference((String) options.get(OPTION_DOCUMENT_UUID)));
+		for (Map<String, Object> document : documents) {
+			referenceList.add(new Reference((String) document.get(OPTION_DOCUMENT_UUID)));
+		}
 		manifest.setContent(referenceList);
-		LOG.info("DocumentManifest.content={}", manifest.getContent().get(0).getReference());
+		for (Reference content : manifest.getContent()) {
+			LOG.info("DocumentManifest.content={}", content.getReference());
+		}
 
 		return (manifest);
 	}
 
-	private void addDocumentManifestToBundle(DocumentManifest manifest, Bundle bundle) {
+	void addDocumentManifestToBundle(DocumentManifest manifest, Bundle bundle) {
 		Bundle.BundleEntryComponent entry = bundle.addEntry();
 		entry.setFullUrl(manifest.getIdElement().getValue());
 		entry.setResource(manifest);
@@ -257,7 +1105,7 @@ public class FhirSend extends UtilContext {
 
 	/////////////////////////////////////////////////////////////////////////////////////////////////////////
 
-	private DocumentReference createDocumentReference(String patientResourceId, Map<String, Object> options) {
+	DocumentReference createDocumentReference(String patientResourceId, Map<String, Object> options) {
 		DocumentReference documentReference = new DocumentReference();
 
 		// documentReference uuid
@@ -287,9 +1135,8 @@ public class FhirSend extends UtilContext {
 		LOG.info("DocumentReference.status={}", documentReference.getStatus());
 
 		// type (Required) - Kind of document (LOINC if possible)
-		Code typeCode = (Code) options.get(OPTION_TYPE);
-		CodeableConcept typeCC = createCodeableConcept(typeCode);
-		documentReference.setType(typeCC);
+		SendTemplate template = (SendTemplate) options.get(OPTION_TEMPLATE);
+		documentReference.setType(template.concept(OPTION_TYPE));
 		Coding typeCoding = documentReference.getType().getCoding().get(0);
 		LOG.info("DocumentReference.type={},{},{}",
 			typeCoding.getCode(),
@@ -297,11 +1144,8 @@ public class FhirSend extends UtilContext {
 			typeCoding.getSystem());
 
 		// category (Required) - Categorization of document
-		Code categoryCode = (Code) options.get(OPTION_CATEGORY);
-		CodeableConcept categoryCC = createCodeableConcept(categoryCode);
-
 		List<CodeableConcept> categoryCCList = new ArrayList<>();
-		categoryCCList.add(categoryCC);
+		categoryCCList.add(template.concept(OPTION_CATEGORY));
 		documentReference.setCategory(categoryCCList);
 		Coding categoryCoding = documentReference.getCategory().get(0).getCoding().get(0);
 		LOG.info("DocumentReference.category={},{},{}",
@@ -368,16 +1212,8 @@ public class FhirSend extends UtilContext {
 		DocumentReference.DocumentReferenceContextComponent documentReferenceContext = new DocumentReference.DocumentReferenceContextComponent();
 
 		// event - Main clinical acts documented
-		@SuppressWarnings("unchecked")
-		List<Code> eventCodeList = (List<Code>) options.get(OPTION_EVENT);
-		if (eventCodeList != null) {
-			List<CodeableConcept> eventCCList = new ArrayList<>();
-			for (Code eventCode : eventCodeList) {
-				if (eventCode.codeSystem != null) {
-					CodeableConcept eventCC = createCodeableConcept(eventCode);
-					eventCCList.add(eventCC);
-				}
-			}
+		List<CodeableConcept> eventCCList = template.concepts(OPTION_EVENT);
+		if (eventCCList != null) {
 			documentReferenceContext.setEvent(eventCCList);
 		}
 
@@ -397,16 +1233,14 @@ public class FhirSend extends UtilContext {
 		}
 
 		// facility - Kind of facility where patient was seen
-		Code facilityCode = (Code) options.get(OPTION_FACILITY);
-		if (facilityCode != null && facilityCode.codeSystem != null) {
-			CodeableConcept facilityCC = createCodeableConcept(facilityCode);
+		CodeableConcept facilityCC = template.concept(OPTION_FACILITY);
+		if (facilityCC != null) {
 			documentReferenceContext.setFacilityType(facilityCC);
 		}
 
 		// practice - Additional details about where the content was created (e.g. clinical specialty)
-		Code practiceCode = (Code) options.get(OPTION_PRACTICE);
-		if (practiceCode != null && practiceCode.codeSystem != null) {
-			CodeableConcept practiceCC = createCodeableConcept(practiceCode);
+		CodeableConcept practiceCC = template.concept(OPTION_PRACTICE);
+		if (practiceCC != null) {
 			documentReferenceContext.setPracticeSetting(practiceCC);
 		}
 
@@ -421,8 +1255,7 @@ public class FhirSend extends UtilContext {
 			documentReference.setContext(documentReferenceContext);
 
 			if (!documentReference.getContext().getEvent().isEmpty()) {
-				List<CodeableConcept> eventCCList = documentReference.getContext().getEvent();
-				for (CodeableConcept eventCode : eventCCList) {
+				for (CodeableConcept eventCode : documentReference.getContext().getEvent()) {
 					Coding eventCoding = eventCode.getCoding().get(0);
 					LOG.info("DocumentReference.context.event={},{},{}",
 						eventCoding.getCode(),
@@ -459,16 +1292,8 @@ public class FhirSend extends UtilContext {
 		}
 
 		// security label - Document security-tags
-		@SuppressWarnings("unchecked")
-		List<Code> securityLabelCodeList = (List<Code>) options.get(OPTION_SECURITY_LABEL);
-		if (securityLabelCodeList != null) {
-			List<CodeableConcept> securityLabelCCList = new ArrayList<>();
-			for (Code securityLabelCode : securityLabelCodeList) {
-				if (securityLabelCode.codeSystem != null) {
-					CodeableConcept securityLabelCC = createCodeableConcept(securityLabelCode);
-					securityLabelCCList.add(securityLabelCC);
-				}
-			}
+		List<CodeableConcept> securityLabelCCList = template.concepts(OPTION_SECURITY_LABEL);
+		if (securityLabelCCList != null) {
 			documentReference.setSecurityLabel(securityLabelCCList);
 
 			if (!documentReference.getSecurityLabel().isEmpty()) {
@@ -485,7 +1310,7 @@ public class FhirSend extends UtilContext {
 		return (documentReference);
 	}
 
-	private void addDocumentReferenceToBundle(DocumentReference reference, Bundle bundle) {
+	void addDocumentReferenceToBundle(DocumentReference reference, Bundle bundle) {
 		Bundle.BundleEntryComponent entry = bundle.addEntry();
 		entry.setFullUrl(reference.getIdElement().getValue());
 		entry.setResource(reference);
@@ -494,20 +1319,18 @@ public class FhirSend extends UtilContext {
 
 	/////////////////////////////////////////////////////////////////////////////////////////////////////////
 
-	private Binary createBinary(Map<String, Object> options) {
+	Binary createBinary(Map<String, Object> options) {
 		Binary binary = new Binary();
 		binary.setId((String) options.get(OPTION_BINARY_UUID));
 		binary.setContentType((String) options.get(OPTION_CONTENT_TYPE));
 		LOG.info("Binary.id={}", binary.getId());
 		LOG.info("Binary.contentType={}", binary.getContentType());
 
-		byte[] byteData = getByteData((File) options.get(OPTION_DATA_BINARY));
-		binary.setData(byteData);
-
+		// Binary.data is streamed from the file by TransactionBody
 		return binary;
 	}
 
-	private void addBinaryToBundle(Binary binary, Bundle bundle) {
+	void addBinaryToBundle(Binary binary, Bundle bundle) {
 		Bundle.BundleEntryComponent entry = bundle.addEntry();
 		entry.setFullUrl(binary.getIdElement().getValue());
 		entry.setResource(binary);
@@ -525,34 +1348,4 @@ public class FhirSend extends UtilContext {
 		}
 		return codeableConcept;
 	}
-
-	private byte[] getByteData(File file) {
-		FileInputStream fin = null;
-		FileChannel ch = null;
-		byte[] bytes = new byte[0];
-		try {
-			fin = new FileInputStream(file);
-			ch = fin.getChannel();
-			int size = (int) ch.size();
-			// 2기가까지만 가능
-			MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
-			bytes = new byte[size];
-			buf.get(bytes);
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			try {
-				if (fin != null) {
-					fin.close();
-				}
-				if (ch != null) {
-					ch.close();
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
-				System.exit(1);
-			}
-		}
-		return bytes;
-	}
 }
\ No newline at end of file
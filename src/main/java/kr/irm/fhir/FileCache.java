@@ -0,0 +1,179 @@
+package kr.irm.fhir;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Key -> value per server, kept in a file shared between runs: the patient cache and the Binary index
+public class FileCache {
+	private static final Logger LOG = LoggerFactory.getLogger(FileCache.class);
+
+	private static final Map<String, FileCache> CACHES = new ConcurrentHashMap<>();
+
+	private final String name;
+	private final File file;
+	private final long ttlMillis;
+	private final int maxSize;
+	private final LinkedHashMap<String, Entry> entries;
+	private boolean dirty = false;
+
+	static class Entry {
+		final String value;
+		final long created;
+
+		Entry(String value, long created) {
+			this.value = value;
+			this.created = created;
+		}
+	}
+
+	private FileCache(String name, File file, long ttlMillis, int maxSize) {
+		this.name = name;
+		this.file = file;
+		this.ttlMillis = ttlMillis;
+		this.maxSize = maxSize;
+		// access order, so the least recently used entry is evicted first
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > FileCache.this.maxSize;
+			}
+		};
+	}
+
+	// one cache per file in a JVM, saved at exit; IllegalArgumentException: the file is open with
+	// another TTL or size (a resident server), which would not be those of this run
+	static FileCache open(String name, File file, long ttlSeconds, int maxSize) {
+		FileCache fileCache = CACHES.computeIfAbsent(file.getAbsolutePath(), path -> {
+			FileCache cache = new FileCache(name, file, ttlSeconds * 1000, maxSize);
+			cache.load();
+			Runtime.getRuntime().addShutdownHook(new Thread(cache::save, name.replace(' ', '-')));
+			return cache;
+		});
+		if (fileCache.ttlMillis != ttlSeconds * 1000 || fileCache.maxSize != maxSize) {
+			throw new IllegalArgumentException(name + " " + file + " open with ttl=" + fileCache.ttlMillis / 1000 + "s, size=" + fileCache.maxSize);
+		}
+		return fileCache;
+	}
+
+	// what exit saves, for a resident server that does not exit between runs
+	static void saveAll() {
+		for (FileCache cache : CACHES.values()) {
+			cache.save();
+		}
+	}
+
+	synchronized String get(String serverURL, String id) {
+		String key = key(serverURL, id);
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (isExpired(entry, System.currentTimeMillis())) {
+			entries.remove(key);
+			dirty = true;
+			return null;
+		}
+		return entry.value;
+	}
+
+	synchronized void put(String serverURL, String id, String value) {
+		entries.put(key(serverURL, id), new Entry(value, System.currentTimeMillis()));
+		dirty = true;
+	}
+
+	synchronized void invalidate(String serverURL, String id) {
+		if (entries.remove(key(serverURL, id)) != null) {
+			dirty = true;
+		}
+	}
+
+	synchronized void save() {
+		if (!dirty) {
+			return;
+		}
+		File lockFile = new File(file.getPath() + ".lock");
+		try (FileChannel lockChannel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			FileLock lock = lockChannel.lock();
+			try {
+				// keep what other runs saved meanwhile, unless we have a newer entry
+				Map<String, Entry> merged = new LinkedHashMap<>();
+				read(merged);
+				for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+					Entry other = merged.get(entry.getKey());
+					if (other == null || other.created <= entry.getValue().created) {
+						merged.remove(entry.getKey());
+						merged.put(entry.getKey(), entry.getValue());
+					}
+				}
+
+				File tmpFile = new File(file.getPath() + ".tmp");
+				long now = System.currentTimeMillis();
+				int skip = Math.max(merged.size() - maxSize, 0);
+				try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8))) {
+					for (Map.Entry<String, Entry> entry : merged.entrySet()) {
+						if (skip > 0) {
+							skip--;
+							continue;
+						}
+						if (!isExpired(entry.getValue(), now)) {
+							writer.println(entry.getValue().created + "\t" + entry.getKey() + "\t" + entry.getValue().value);
+						}
+					}
+				}
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				dirty = false;
+				LOG.info("{} saved: file={}, entries={}", name, file, Math.min(merged.size(), maxSize));
+			} finally {
+				lock.release();
+			}
+		} catch (IOException e) {
+			LOG.warn("{} NOT saved: {}", name, e.toString());
+		}
+	}
+
+	private synchronized void load() {
+		read(entries);
+		LOG.info("{} loaded: file={}, entries={}", name, file, entries.size());
+	}
+
+	private void read(Map<String, Entry> target) {
+		if (!file.exists()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				// created, server URL, key, value
+				String[] fields = line.split("\t");
+				if (fields.length != 4) {
+					continue;
+				}
+				Entry entry = new Entry(fields[3], Long.parseLong(fields[0]));
+				if (!isExpired(entry, now)) {
+					target.put(fields[1] + "\t" + fields[2], entry);
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			LOG.warn("{} NOT loaded: {}", name, e.toString());
+		}
+	}
+
+	private boolean isExpired(Entry entry, long now) {
+		return now - entry.created > ttlMillis;
+	}
+
+	private static String key(String serverURL, String id) {
+		return serverURL + "\t" + id;
+	}
+}
@@ -0,0 +1,243 @@
+package kr.irm.fhir;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Long-running mode: sends every file that settles in the watched directory, using the
+// command line options overridden by an optional <file>.json sidecar (same format as --batch NDJSON rows).
+public class HotFolder extends UtilContext {
+	private static final Logger LOG = LoggerFactory.getLogger(HotFolder.class);
+
+	private static final String SIDECAR_SUFFIX = ".json";
+	private static final String DONE_DIR = "done";
+	private static final String FAILED_DIR = "failed";
+	private static final String QUEUED_DIR = "queued";
+
+	private final Options opts;
+	private final CommandLine baseCommandLine;
+	private final Path watchDir;
+	private final long settleMillis;
+	private final int threads;
+	private final BlockingQueue<Path> queue;
+	private final AdaptiveLimiter limiter;
+
+	private final ThreadLocal<FhirSend> fhirSend = ThreadLocal.withInitial(FhirSend::new);
+	// files seen but not settled yet: path -> size, mtime, sidecar size and mtime (-1 if none) and when
+	// they last changed
+	private final Map<Path, long[]> pending = new HashMap<>();
+	// files queued or being sent: still in the directory until a worker moves them
+	private final Set<Path> inFlight = ConcurrentHashMap.newKeySet();
+	private volatile boolean running = true;
+
+	public HotFolder(Options opts, CommandLine cl) {
+		this.opts = opts;
+		this.baseCommandLine = cl;
+		this.watchDir = Paths.get(cl.getOptionValue(OPTION_WATCH)).toAbsolutePath();
+		this.settleMillis = Long.parseLong(cl.getOptionValue(OPTION_WATCH_SETTLE, "500"));
+		this.threads = Integer.parseInt(cl.getOptionValue(OPTION_WATCH_THREADS, "2"));
+		this.queue = new ArrayBlockingQueue<>(Integer.parseInt(cl.getOptionValue(OPTION_WATCH_QUEUE, "100")));
+		this.limiter = new AdaptiveLimiter(Integer.parseInt(cl.getOptionValue(OPTION_MAX_IN_FLIGHT, Integer.toString(threads))));
+	}
+
+	int run() {
+		if (!Files.isDirectory(watchDir)) {
+			LOG.error("directory NOT found: {}", watchDir);
+			return 1;
+		}
+		LOG.info("watching: dir={}, settle={} ms, threads={}, queue={}",
+			watchDir, settleMillis, threads, queue.remainingCapacity());
+
+		SendMetrics.get().export(baseCommandLine.getOptionValue(OPTION_METRICS_PORT), baseCommandLine.getOptionValue(OPTION_METRICS_FILE));
+
+		List<Thread> workers = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			Thread worker = new Thread(this::drain, "watch-" + i);
+			worker.start();
+			workers.add(worker);
+		}
+		// let the workers finish the file they are sending
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			running = false;
+			for (Thread worker : workers) {
+				try {
+					worker.join(TimeUnit.SECONDS.toMillis(30));
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}, "watch-stop"));
+
+		try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+			watchDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+			// files dropped while we were not running
+			rescan();
+
+			long pollMillis = Math.max(Math.min(settleMillis / 4, 250), 10);
+			while (running) {
+				WatchKey key = watchService.poll(pollMillis, TimeUnit.MILLISECONDS);
+				if (key != null) {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							rescan();
+						} else {
+							seen(watchDir.resolve((Path) event.context()));
+						}
+					}
+					key.reset();
+				}
+				queueSettled();
+			}
+		} catch (IOException e) {
+			LOG.error("watch failed: {}", e.toString());
+			return 1;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			running = false;
+		}
+
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return 0;
+	}
+
+	private void rescan() throws IOException {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(watchDir)) {
+			for (Path path : stream) {
+				seen(path);
+			}
+		}
+	}
+
+	private void seen(Path path) {
+		String name = path.getFileName().toString();
+		if (name.startsWith(".") || inFlight.contains(path) || !Files.isRegularFile(path)) {
+			return;
+		}
+		// the sidecar of a data file settles with it; any other .json file is a document
+		if (name.endsWith(SIDECAR_SUFFIX)) {
+			Path dataFile = path.resolveSibling(name.substring(0, name.length() - SIDECAR_SUFFIX.length()));
+			if (pending.containsKey(dataFile) || Files.isRegularFile(dataFile)) {
+				pending.remove(path);
+				seen(dataFile);
+				return;
+			}
+		}
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			long size = attributes.size();
+			long modified = attributes.lastModifiedTime().toMillis();
+			long sidecarSize = -1;
+			long sidecarModified = -1;
+			Path sidecar = Paths.get(path + SIDECAR_SUFFIX);
+			if (Files.isRegularFile(sidecar)) {
+				BasicFileAttributes sidecarAttributes = Files.readAttributes(sidecar, BasicFileAttributes.class);
+				sidecarSize = sidecarAttributes.size();
+				sidecarModified = sidecarAttributes.lastModifiedTime().toMillis();
+			}
+			long[] state = pending.get(path);
+			if (state == null || state[0] != size || state[1] != modified || state[2] != sidecarSize || state[3] != sidecarModified) {
+				pending.put(path, new long[] { size, modified, sidecarSize, sidecarModified, System.currentTimeMillis() });
+			}
+		} catch (IOException e) {
+			// moved away meanwhile
+			pending.remove(path);
+		}
+	}
+
+	// a file is complete once its size and mtime, and those of its sidecar, have not changed for the settle time
+	private void queueSettled() throws InterruptedException {
+		long now = System.currentTimeMillis();
+		List<Path> candidates = new ArrayList<>();
+		for (Map.Entry<Path, long[]> entry : pending.entrySet()) {
+			if (now - entry.getValue()[4] >= settleMillis) {
+				candidates.add(entry.getKey());
+			}
+		}
+		for (Path path : candidates) {
+			long[] state = pending.get(path);
+			seen(path);
+			if (pending.get(path) == state) {
+				pending.remove(path);
+				inFlight.add(path);
+				// blocks the watcher while the workers are behind
+				queue.put(path);
+			}
+		}
+	}
+
+	private void drain() {
+		// files still queued at shutdown stay in the directory for the next run
+		while (running) {
+			try {
+				Path path = queue.poll(250, TimeUnit.MILLISECONDS);
+				if (path != null) {
+					try {
+						send(path);
+					} finally {
+						// moved to done/, failed/ or queued/ by now
+						inFlight.remove(path);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private void send(Path path) {
+		Path sidecar = Paths.get(path + SIDECAR_SUFFIX);
+		Map<String, Object> optionMap = new HashMap<>();
+		SendResult result;
+		try {
+			Map<String, List<String>> row = new LinkedHashMap<>();
+			if (Files.exists(sidecar)) {
+				row.putAll(BatchSend.parseJsonRow(new String(Files.readAllBytes(sidecar), StandardCharsets.UTF_8)));
+			}
+			row.put(OPTION_DATA_BINARY, Collections.singletonList(path.toString()));
+
+			if (MHDsend.parseOptions(optionMap, opts, BatchSend.buildArgs(opts, baseCommandLine, OPTION_WATCH, row))) {
+				result = new SendResult(1, "invalid options");
+			} else {
+				optionMap.put(OPTION_OUTBOX_RETRY, Boolean.TRUE);
+				optionMap.put(OPTION_MAX_IN_FLIGHT, limiter);
+				result = fhirSend.get().sendFhir(optionMap);
+			}
+		} catch (IOException | RuntimeException e) {
+			result = new SendResult(98, e.toString());
+		}
+
+		// queued files are resent from the outbox, not from here
+		Path target = watchDir.resolve(result.isSuccess() ? DONE_DIR : result.isQueued() ? QUEUED_DIR : FAILED_DIR);
+		LOG.info("watch: file={}, exitCode={}, elapsed={} ms, message={}",
+			path.getFileName(), result.exitCode, result.elapsedMillis, result.message);
+		try {
+			Files.createDirectories(target);
+			Files.move(path, target.resolve(path.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+			if (Files.exists(sidecar)) {
+				Files.move(sidecar, target.resolve(sidecar.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			LOG.error("file NOT moved to {}: {}", target, e.toString());
+		}
+	}
+}
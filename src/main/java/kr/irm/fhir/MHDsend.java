@@ -8,9 +8,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
-import java.nio.ByteBuffer;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
@@ -18,32 +20,133 @@ public class MHDsend extends UtilContext {
 	private static final Logger LOG = LoggerFactory.getLogger(MHDsend.class);
 
 	public static void main(String[] args) {
+		SharedFhirContext.prewarm();
+		System.exit(run(args, System.out));
+	}
+
+	// a command line, run by main or by a resident server (--resident); returns the exit code
+	static int run(String[] args, PrintStream out) {
 		LOG.info("starting mhdsend...");
 		LOG.info("option args:{} ", Arrays.toString(args));
 		Options opts = new Options();
 		Map<String, Object> optionMap = new HashMap<String, Object>();
 		setOptions(opts);
 
+		CommandLine cl = null;
+		try {
+			cl = new DefaultParser().parse(opts, args);
+		} catch (ParseException e) {
+			LOG.error("mhdsend failed: invalid options: {}", e.getMessage());
+			return 1;
+		}
+
+		// quiet logging, for all the sends of a mode
+		if (cl.hasOption(OPTION_QUIET)) {
+			if (!ResidentServer.isResidentCall()) {
+				SendAudit.enable();
+			} else if (!SendAudit.isEnabled()) {
+				LOG.warn("{} NOT used in a resident call: start the resident server with --{}", OPTION_QUIET, OPTION_QUIET);
+			}
+		}
+
+		// resident mode
+		if (cl.hasOption(OPTION_RESIDENT)) {
+			if (ResidentServer.isResidentCall()) {
+				LOG.error("mhdsend failed: invalid options: --{} in a resident call", OPTION_RESIDENT);
+				return 1;
+			}
+			return ResidentServer.serve(cl.getOptionValue(OPTION_RESIDENT));
+		}
+
+		// batch mode
+		if (cl.hasOption(OPTION_BATCH)) {
+			BatchSend batchSend = new BatchSend(opts, cl);
+			return batchSend.run();
+		}
+
+		// hot folder mode
+		if (cl.hasOption(OPTION_WATCH)) {
+			if (ResidentServer.isResidentCall()) {
+				LOG.error("mhdsend failed: invalid options: --{} in a resident call", OPTION_WATCH);
+				return 1;
+			}
+			HotFolder hotFolder = new HotFolder(opts, cl);
+			return hotFolder.run();
+		}
+
+		// outbox drain mode
+		if (cl.hasOption(OPTION_OUTBOX_DRAIN)) {
+			if (parseCommonOptions(optionMap, cl) || !optionMap.containsKey(OPTION_OUTBOX)) {
+				LOG.error("mhdsend failed: invalid options: --{} needs --{}", OPTION_OUTBOX_DRAIN, OPTION_OUTBOX);
+				return 1;
+			}
+			return FhirSend.drainOutbox(optionMap);
+		}
+
+		// ledger lookup mode
+		if (cl.hasOption(OPTION_LEDGER_FIND)) {
+			if (parseCommonOptions(optionMap, cl) || !optionMap.containsKey(OPTION_LEDGER)) {
+				LOG.error("mhdsend failed: invalid options: --{} needs --{}", OPTION_LEDGER_FIND, OPTION_LEDGER);
+				return 1;
+			}
+			try {
+				return ((DeliveryLedger) optionMap.get(OPTION_LEDGER)).print(cl.getOptionValue(OPTION_LEDGER_FIND), out);
+			} catch (IOException e) {
+				LOG.error("mhdsend failed: ledger NOT read: {}", e.toString());
+				return 98;
+			}
+		}
+
+		// HELP
+		if (cl.hasOption("h") || args.length == 0) {
+			PrintWriter writer = new PrintWriter(out);
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp(writer, formatter.getWidth(),
+					"MHDsend [options]",
+					"\nSend a document to MHD DocumentRecipient", opts,
+					formatter.getLeftPadding(), formatter.getDescPadding(),
+					"Examples: $ ./MHDsend --document-status ...");
+			writer.flush();
+			return 2;
+		}
+
 		// parse options
 		if (parseOptions(optionMap, opts, args)) {
 			LOG.error("mhdsend failed: invalid options");
-			System.exit(1);
+			return 1;
 		}
 
 		FhirSend fhirSend = new FhirSend();
-		fhirSend.sendFhir(optionMap);
-
+		SendResult result = fhirSend.sendFhir(optionMap);
+		if (result.isSuccess() && optionMap.containsKey(OPTION_EXPORT_IMPORT)) {
+			result.exitCode = FhirSend.startImport(optionMap);
+		} else if (optionMap.containsKey(OPTION_EXPORT)) {
+			((NdjsonExport) optionMap.get(OPTION_EXPORT)).close();
+		}
+		if (cl.hasOption(OPTION_METRICS_FILE)) {
+			SendMetrics.get().writeFile(ResidentServer.file(cl.getOptionValue(OPTION_METRICS_FILE)));
+		}
+		return result.exitCode;
 	}
 
-	private static void setOptions(Options opts) {
+	static void setOptions(Options opts) {
 		// help
 		opts.addOption("h", "help", false, "help");
 
 		// Commons
 		opts.addOption("o", OPTION_OAUTH_TOKEN, true, "OAuth Token");
 		opts.addOption("s", OPTION_SERVER_URL, true, "FHIR Server Base URL");
+		opts.addOption(null, OPTION_ATTACH_URL, true, "Attachment store URL - upload the file there and refer to it from DocumentReference.content.attachment.url instead of sending a Binary");
 		opts.addOption(null, OPTION_TIMEOUT, true, "Timeout in seconds (default: 30)");
-		opts.addOption("v", OPTION_VERBOSE, false, "Show transaction logs");
+		opts.addOption(null, OPTION_CONNECT_TIMEOUT, true, "Connect timeout in seconds (default: 10)");
+		opts.addOption(null, OPTION_IDLE_TIMEOUT, true, "Close pooled connections idle for this many seconds (default: 60)");
+		opts.addOption(null, OPTION_MAX_CONNECTIONS, true, "Maximum connections per server (default: 20)");
+		opts.addOption(null, OPTION_COMPRESS, false, "gzip the transaction request, with the level chosen from the payload content types and size");
+		opts.addOption(null, OPTION_HTTP2, false, "Send transactions on an async client that negotiates HTTP/2 (https) and multiplexes them, HTTP/1.1 otherwise; with --" + OPTION_PATIENT_CONDITIONAL_CREATE + " patients not cached are found or created in the transaction");
+		opts.addOption("v", OPTION_VERBOSE, false, "Write each transaction and its response to the verbose file");
+		opts.addOption(null, OPTION_VERBOSE_FILE, true, "Verbose file, appended to (default: " + VerboseCapture.DEFAULT_FILE + "); implies --" + OPTION_VERBOSE);
+		opts.addOption(null, OPTION_VERBOSE_BINARY, true, "Verbose: characters of the base64 of each Binary.data written before its size and SHA-1 (default: 0)");
+		opts.addOption("q", OPTION_QUIET, false, "Log asynchronously, warnings, errors and one JSON audit line per send only");
 		opts.addOption("i", OPTION_PATIENT_ID, true, "Patient.identifier (ID)");
 		opts.addOption(null, OPTION_PATIENT_NANE, true, "Patient.identifier (ID)");
 		opts.addOption(null, OPTION_PATIENT_SEX, true, "Patient.identifier (ID)");
@@ -53,6 +156,14 @@ public class MHDsend extends UtilContext {
 		opts.addOption(null, OPTION_AUTHOR_FISRTNAME, true, "Author first name (ID)");
 		opts.addOption(null, OPTION_AUTHOR_LASTNAME, true, "Author last name (ID)");
 		opts.addOption(null, OPTION_AUTHOR_ASSIGN_UID, true, "Author.identifier.system (ID)");
+		opts.addOption(null, OPTION_PATIENT_CACHE, true, "Patient resource id cache file, shared between runs");
+		opts.addOption(null, OPTION_PATIENT_CACHE_TTL, true, "Patient cache entry lifetime in seconds (default: 86400)");
+		opts.addOption(null, OPTION_PATIENT_CACHE_SIZE, true, "Patient cache maximum entries (default: 100000)");
+		opts.addOption(null, OPTION_PATIENT_REVALIDATE, false, "Search the patient on the server even if it is cached");
+		opts.addOption(null, OPTION_PATIENT_CONDITIONAL_CREATE, false, "Find or create the patient in the document transaction (conditional create)");
+		opts.addOption(null, OPTION_BINARY_INDEX, true, "Index file of the Binary resources already on the server by content SHA-1, shared between runs");
+		opts.addOption(null, OPTION_BINARY_INDEX_TTL, true, "Binary index entry lifetime in seconds (default: 2592000)");
+		opts.addOption(null, OPTION_BINARY_VERIFY, false, "Check that an indexed Binary still exists (HEAD) before referencing it");
 
 		// DocumentManifest
 		opts.addOption(null, OPTION_MANIFEST_UUID, true, "DocumentManifest.id (UUID)");
@@ -85,27 +196,63 @@ public class MHDsend extends UtilContext {
 		opts.addOption("f", OPTION_FACILITY, true, "DocumentReference.context.facilityType (code^display^system) ");
 		opts.addOption("p", OPTION_PRACTICE, true, "DocumentReference.context.practiceSetting (code^display^system) ");
 		opts.addOption("r", OPTION_REFERENCE_ID, true, "DocumentReference.context.related - multiple (idValue^^^&assignerId&ISO^idType)");
+		opts.addOption(null, OPTION_TEMPLATE, true, "Template file - JSON object of options shared by many documents (as an NDJSON batch row), overridden by the command line; its codes are compiled once");
+		opts.addOption(null, OPTION_TERMINOLOGY, true, "Terminology file - system<TAB>code<TAB>display<TAB>value sets, one code per line (default: the packaged MHD/XDS value sets)");
+		opts.addOption(null, OPTION_TERMINOLOGY_CHECK, true, "Codes of a listed system NOT in the value set of their option: warn, strict (invalid option) or off (default: warn); missing displays are filled in");
 
 		// Binary
 		opts.addOption(null, OPTION_BINARY_UUID, true, "Binary.id (UUID)");
-		opts.addOption("d", OPTION_DATA_BINARY, true, "Binary.data (filename, max 2GB) - If you want to send more than 2GB of files, use the --attach-url instead of the --server-url option");
+		opts.addOption("d", OPTION_DATA_BINARY, true, "Binary.data - multiple (filename or directory) - use --attach-url to upload the file out-of-band instead of inline");
+
+		// Batch
+		opts.addOption(null, OPTION_BATCH, true, "Batch file - one document per row (CSV with option names as header, or NDJSON); in CSV the values of a multiple option are separated by ~, \\~ is a ~");
+		opts.addOption(null, OPTION_BATCH_THREADS, true, "Number of batch send workers (default: 4)");
+		opts.addOption(null, OPTION_BATCH_RESULT, true, "Batch result file (default: <batch file>.result.csv)");
+
+		// Hot folder
+		opts.addOption(null, OPTION_WATCH, true, "Watch a directory and send each file written there (options from <file>.json sidecar or the command line)");
+		opts.addOption(null, OPTION_WATCH_SETTLE, true, "Milliseconds a file must stay unchanged before it is sent (default: 500)");
+		opts.addOption(null, OPTION_WATCH_THREADS, true, "Number of hot folder send workers (default: 2)");
+		opts.addOption(null, OPTION_WATCH_QUEUE, true, "Maximum files waiting for a worker (default: 100)");
+		opts.addOption(null, OPTION_MAX_IN_FLIGHT, true, "Batch and watch modes: maximum concurrent transactions; the limit adapts to the server response time below it (default: number of workers)");
+
+		// Outbox
+		opts.addOption(null, OPTION_OUTBOX, true, "Outbox directory - transactions that fail with a connection error or HTTP 408/429/5xx are spooled there and resent");
+		opts.addOption(null, OPTION_OUTBOX_MAX_AGE, true, "Seconds a spooled transaction is retried before it is moved to failed/ (default: 604800)");
+		opts.addOption(null, OPTION_OUTBOX_DRAIN, false, "Resend the spooled transactions of --outbox until none is left, then exit");
+
+		// Ledger
+		opts.addOption(null, OPTION_LEDGER, true, "Ledger directory - each document delivered is recorded there, and a send whose documents were all delivered to the server is skipped");
+		opts.addOption(null, OPTION_LEDGER_FIND, true, "Print the ledger records of a document UID, manifest UID, SHA-1 or patient ID, then exit (exit code 99 if none)");
+		opts.addOption(null, OPTION_LEDGER_RESEND, false, "Send even when the ledger records the documents as delivered");
+
+		// Export
+		opts.addOption(null, OPTION_EXPORT, true, "Write the resources to NDJSON files in this directory instead of sending them (bulk load)");
+		opts.addOption(null, OPTION_EXPORT_FILE_SIZE, true, "Start a new NDJSON file when one reaches this size in MB (default: 256)");
+		opts.addOption(null, OPTION_EXPORT_IMPORT, true, "After the export, start a $import on the server, which reads the files from this base URL");
+
+		// Metrics
+		opts.addOption(null, OPTION_METRICS_PORT, true, "Batch and watch modes: serve Prometheus metrics at http://<host>:<port>/metrics");
+		opts.addOption(null, OPTION_METRICS_FILE, true, "Write Prometheus metrics to this file (every 10 seconds in batch and watch modes, and at exit)");
+
+		// Resident
+		opts.addOption(null, OPTION_RESIDENT, true, "Run as a resident server on this loopback port: MHDsend.sh hands it the command lines when MHDSEND_RESIDENT=<port>");
 	}
 
-	private static boolean parseOptions(Map<String, Object> optionMap, Options opts, String[] args) {
+	static boolean parseOptions(Map<String, Object> optionMap, Options opts, String[] args) {
 		boolean error = false;
 		CommandLineParser parser = new DefaultParser();
 
 		try {
 			CommandLine cl = parser.parse(opts, args);
 
-			// HELP
-			if (cl.hasOption("h") || args.length == 0) {
-				HelpFormatter formatter = new HelpFormatter();
-				formatter.printHelp(
-						"MHDsend [options]",
-						"\nSend a document to MHD DocumentRecipient", opts,
-						"Examples: $ ./MHDsend --document-status ...");
-				System.exit(2);
+			// template file: the command line overrides its options
+			if (cl.hasOption(OPTION_TEMPLATE)) {
+				String[] templateArgs = SendTemplate.applyFile(opts, cl, args);
+				if (templateArgs == null) {
+					return true;
+				}
+				cl = parser.parse(opts, templateArgs);
 			}
 
 			// Common
@@ -123,7 +270,21 @@ public class MHDsend extends UtilContext {
 				LOG.error("option required: {}", OPTION_SERVER_URL);
 			}
 
-			error = parseFHIROptions(optionMap, cl);
+			// attach-url
+			if (cl.hasOption(OPTION_ATTACH_URL)) {
+				String attach_url = cl.getOptionValue(OPTION_ATTACH_URL);
+				LOG.info("option {}={}", OPTION_ATTACH_URL, attach_url);
+
+				try {
+					new URL(attach_url);
+					optionMap.put(OPTION_ATTACH_URL, attach_url);
+				} catch (MalformedURLException e) {
+					error = true;
+					LOG.error("{} NOT valid: {}", OPTION_ATTACH_URL, attach_url);
+				}
+			}
+
+			error = parseFHIROptions(optionMap, cl) || error;
 		} catch (ParseException e) {
 			e.printStackTrace();
 		}
@@ -131,7 +292,7 @@ public class MHDsend extends UtilContext {
 		return error;
 	}
 
-	private static boolean parseCommonOptions(Map<String, Object> optionMap, CommandLine cl) {
+	static boolean parseCommonOptions(Map<String, Object> optionMap, CommandLine cl) {
 		boolean error = false;
 		String timeout = "30";
 
@@ -150,6 +311,151 @@ public class MHDsend extends UtilContext {
 		}
 		optionMap.put("timeout", timeout);
 
+		// connect-timeout, idle-timeout, max-connections
+		for (String option : new String[] { OPTION_CONNECT_TIMEOUT, OPTION_IDLE_TIMEOUT, OPTION_MAX_CONNECTIONS }) {
+			if (cl.hasOption(option)) {
+				String value = cl.getOptionValue(option);
+				LOG.info("option {}={}", option, value);
+
+				if (value.matches("[0-9]+")) {
+					optionMap.put(option, value);
+				} else {
+					error = true;
+					LOG.error("{} NOT valid: {}", option, value);
+				}
+			}
+		}
+
+		// compress
+		if (cl.hasOption(OPTION_COMPRESS)) {
+			LOG.info("option {}={}", OPTION_COMPRESS, true);
+			optionMap.put(OPTION_COMPRESS, Boolean.TRUE);
+		}
+
+		// http2
+		if (cl.hasOption(OPTION_HTTP2)) {
+			LOG.info("option {}={}", OPTION_HTTP2, true);
+			optionMap.put(OPTION_HTTP2, Boolean.TRUE);
+		}
+
+		// patient-cache
+		if (cl.hasOption(OPTION_PATIENT_CACHE)) {
+			String patientCacheFile = cl.getOptionValue(OPTION_PATIENT_CACHE);
+			String ttl = cl.getOptionValue(OPTION_PATIENT_CACHE_TTL, "86400");
+			String size = cl.getOptionValue(OPTION_PATIENT_CACHE_SIZE, "100000");
+			LOG.info("option {}={}, ttl={}, size={}", OPTION_PATIENT_CACHE, patientCacheFile, ttl, size);
+
+			try {
+				FileCache patientCache = FileCache.open("patient cache", ResidentServer.file(patientCacheFile), Long.parseLong(ttl), Integer.parseInt(size));
+				optionMap.put(OPTION_PATIENT_CACHE, patientCache);
+			} catch (NumberFormatException e) {
+				error = true;
+				LOG.error("{} NOT valid: ttl={}, size={}", OPTION_PATIENT_CACHE, ttl, size);
+			} catch (IllegalArgumentException e) {
+				error = true;
+				LOG.error("{} NOT valid: {}", OPTION_PATIENT_CACHE, e.getMessage());
+			}
+		}
+
+		// patient-revalidate
+		if (cl.hasOption(OPTION_PATIENT_REVALIDATE)) {
+			LOG.info("option {}={}", OPTION_PATIENT_REVALIDATE, true);
+			optionMap.put(OPTION_PATIENT_REVALIDATE, Boolean.TRUE);
+		}
+
+		// patient-conditional-create
+		if (cl.hasOption(OPTION_PATIENT_CONDITIONAL_CREATE)) {
+			LOG.info("option {}={}", OPTION_PATIENT_CONDITIONAL_CREATE, true);
+			optionMap.put(OPTION_PATIENT_CONDITIONAL_CREATE, Boolean.TRUE);
+		}
+
+		// binary-index
+		if (cl.hasOption(OPTION_BINARY_INDEX)) {
+			String binaryIndexFile = cl.getOptionValue(OPTION_BINARY_INDEX);
+			String ttl = cl.getOptionValue(OPTION_BINARY_INDEX_TTL, "2592000");
+			LOG.info("option {}={}, ttl={}", OPTION_BINARY_INDEX, binaryIndexFile, ttl);
+
+			try {
+				optionMap.put(OPTION_BINARY_INDEX, BinaryIndex.open(ResidentServer.file(binaryIndexFile), Long.parseLong(ttl)));
+			} catch (NumberFormatException e) {
+				error = true;
+				LOG.error("{} NOT valid: ttl={}", OPTION_BINARY_INDEX, ttl);
+			} catch (IllegalArgumentException e) {
+				error = true;
+				LOG.error("{} NOT valid: {}", OPTION_BINARY_INDEX, e.getMessage());
+			}
+		}
+
+		// binary-verify
+		if (cl.hasOption(OPTION_BINARY_VERIFY)) {
+			LOG.info("option {}={}", OPTION_BINARY_VERIFY, true);
+			optionMap.put(OPTION_BINARY_VERIFY, Boolean.TRUE);
+		}
+
+		// outbox
+		if (cl.hasOption(OPTION_OUTBOX)) {
+			String outboxDir = cl.getOptionValue(OPTION_OUTBOX);
+			String maxAge = cl.getOptionValue(OPTION_OUTBOX_MAX_AGE, "604800");
+			LOG.info("option {}={}, maxAge={}", OPTION_OUTBOX, outboxDir, maxAge);
+
+			try {
+				Outbox outbox = Outbox.open(ResidentServer.file(outboxDir), Long.parseLong(maxAge));
+				optionMap.put(OPTION_OUTBOX, outbox);
+			} catch (NumberFormatException e) {
+				error = true;
+				LOG.error("{} NOT valid: {}", OPTION_OUTBOX_MAX_AGE, maxAge);
+			} catch (IOException e) {
+				error = true;
+				LOG.error("{} NOT valid: {}", OPTION_OUTBOX, e.toString());
+			}
+		}
+
+		// ledger
+		if (cl.hasOption(OPTION_LEDGER)) {
+			String ledgerDir = cl.getOptionValue(OPTION_LEDGER);
+			LOG.info("option {}={}, resend={}", OPTION_LEDGER, ledgerDir, cl.hasOption(OPTION_LEDGER_RESEND));
+
+			try {
+				optionMap.put(OPTION_LEDGER, DeliveryLedger.open(ResidentServer.file(ledgerDir)));
+				if (cl.hasOption(OPTION_LEDGER_RESEND)) {
+					optionMap.put(OPTION_LEDGER_RESEND, Boolean.TRUE);
+				}
+			} catch (IOException e) {
+				error = true;
+				LOG.error("{} NOT valid: {}", OPTION_LEDGER, e.toString());
+			}
+		}
+
+		// export
+		if (cl.hasOption(OPTION_EXPORT)) {
+			String exportDir = cl.getOptionValue(OPTION_EXPORT);
+			String fileSize = cl.getOptionValue(OPTION_EXPORT_FILE_SIZE, "256");
+			LOG.info("option {}={}, fileSize={} MB", OPTION_EXPORT, exportDir, fileSize);
+
+			try {
+				NdjsonExport export = NdjsonExport.open(ResidentServer.file(exportDir), Long.parseLong(fileSize) * 1024 * 1024);
+				optionMap.put(OPTION_EXPORT, export);
+			} catch (NumberFormatException e) {
+				error = true;
+				LOG.error("{} NOT valid: {}", OPTION_EXPORT_FILE_SIZE, fileSize);
+			} catch (IOException e) {
+				error = true;
+				LOG.error("{} NOT valid: {}", OPTION_EXPORT, e.toString());
+			}
+		}
+
+		// export-import
+		if (cl.hasOption(OPTION_EXPORT_IMPORT)) {
+			String importURL = cl.getOptionValue(OPTION_EXPORT_IMPORT);
+			LOG.info("option {}={}", OPTION_EXPORT_IMPORT, importURL);
+
+			if (!cl.hasOption(OPTION_EXPORT)) {
+				error = true;
+				LOG.error("{} NOT valid: needs --{}", OPTION_EXPORT_IMPORT, OPTION_EXPORT);
+			}
+			optionMap.put(OPTION_EXPORT_IMPORT, importURL);
+		}
+
 		return error;
 	}
 
@@ -166,11 +472,21 @@ public class MHDsend extends UtilContext {
 
 		String binaryUUID = null;
 		File dataBinaryFile = null;
+		List<File> dataBinaryFiles = new ArrayList<>();
 
 		// Verbose
-		if (cl.hasOption(OPTION_VERBOSE)) {
-			LOG.info("option {}={}", OPTION_VERBOSE, true);
+		if (cl.hasOption(OPTION_VERBOSE) || cl.hasOption(OPTION_VERBOSE_FILE)) {
+			String verboseFile = cl.getOptionValue(OPTION_VERBOSE_FILE, VerboseCapture.DEFAULT_FILE);
+			String binaryChars = cl.getOptionValue(OPTION_VERBOSE_BINARY, "0");
+			LOG.info("option {}={}, file={}, binary={}", OPTION_VERBOSE, true, verboseFile, binaryChars);
+
 			optionMap.put(OPTION_VERBOSE, Boolean.TRUE);
+			if (binaryChars.matches("[0-9]{1,18}")) {
+				optionMap.put(OPTION_VERBOSE_FILE, VerboseCapture.open(ResidentServer.file(verboseFile), Long.parseLong(binaryChars)));
+			} else {
+				error = true;
+				LOG.error("{} NOT valid: {}", OPTION_VERBOSE_BINARY, binaryChars);
+			}
 		} else {
 			optionMap.put(OPTION_VERBOSE, Boolean.FALSE);
 		}
@@ -233,17 +549,30 @@ public class MHDsend extends UtilContext {
 		}
 		optionMap.put(OPTION_BINARY_UUID, binaryUUID);
 
-		// data-binary
+		// data-binary - multiple files or directories
 		if (cl.hasOption(OPTION_DATA_BINARY)) {
-			String dataPath = cl.getOptionValue(OPTION_DATA_BINARY);
-			LOG.info("option {}={}", OPTION_DATA_BINARY, dataPath);
-
-			dataBinaryFile = new File(dataPath);
-			if (dataBinaryFile.exists() && dataBinaryFile.canRead()) {
-				optionMap.put(OPTION_DATA_BINARY, dataBinaryFile);
-			} else {
-				error = true;
-				LOG.error("file NOT found: {}", dataBinaryFile);
+			for (String dataPath : cl.getOptionValues(OPTION_DATA_BINARY)) {
+				LOG.info("option {}={}", OPTION_DATA_BINARY, dataPath);
+
+				File dataPathFile = ResidentServer.file(dataPath);
+				if (dataPathFile.isDirectory()) {
+					File[] files = dataPathFile.listFiles(file -> file.isFile() && !file.isHidden());
+					if (files == null || files.length == 0) {
+						error = true;
+						LOG.error("no files in directory: {}", dataPathFile);
+						continue;
+					}
+					Arrays.sort(files);
+					dataBinaryFiles.addAll(Arrays.asList(files));
+				} else if (dataPathFile.exists() && dataPathFile.canRead()) {
+					dataBinaryFiles.add(dataPathFile);
+				} else {
+					error = true;
+					LOG.error("file NOT found: {}", dataPathFile);
+				}
+			}
+			if (!dataBinaryFiles.isEmpty()) {
+				dataBinaryFile = dataBinaryFiles.get(0);
 			}
 		} else {
 			error = true;
@@ -313,21 +642,22 @@ public class MHDsend extends UtilContext {
 		}
 		optionMap.put(OPTION_MANIFEST_STATUS, manifestStatus);
 
-		// manifest-type (Required)
-		if (cl.hasOption(OPTION_MANIFEST_TYPE)) {
-			String typeCodeValue = cl.getOptionValue(OPTION_MANIFEST_TYPE);
-			LOG.info("option {}={}", OPTION_MANIFEST_TYPE, typeCodeValue);
-
-			if (checkCode(typeCodeValue)) {
-				Code manifest_type_code = Code.splitCode(typeCodeValue);
-				optionMap.put(OPTION_MANIFEST_TYPE, manifest_type_code);
-			} else {
-				error = true;
-				LOG.error("{} NOT valid: {}", OPTION_MANIFEST_TYPE, typeCodeValue);
+		// codes - split and validated once for all the documents that share them
+		SendTemplate template = SendTemplate.compile(cl);
+		if (template != null) {
+			optionMap.put(OPTION_TEMPLATE, template);
+			for (String option : Arrays.asList(OPTION_MANIFEST_TYPE, OPTION_TYPE, OPTION_CATEGORY, OPTION_FACILITY, OPTION_PRACTICE)) {
+				if (template.code(option) != null) {
+					optionMap.put(option, template.code(option));
+				}
+			}
+			for (String option : Arrays.asList(OPTION_EVENT, OPTION_SECURITY_LABEL)) {
+				if (template.codes(option) != null) {
+					optionMap.put(option, template.codes(option));
+				}
 			}
 		} else {
 			error = true;
-			LOG.error("option required: {}", OPTION_MANIFEST_TYPE);
 		}
 
 		// manifest-created
@@ -431,40 +761,6 @@ public class MHDsend extends UtilContext {
 		}
 		optionMap.put(OPTION_DOCUMENT_STATUS, documentStatus);
 
-		// type (Required)
-		if (cl.hasOption(OPTION_TYPE)) {
-			String typeCodeValue = cl.getOptionValue(OPTION_TYPE);
-			LOG.info("option {}={}", OPTION_TYPE, typeCodeValue);
-
-			if (checkCode(typeCodeValue)) {
-				Code typeCode = Code.splitCode(cl.getOptionValue(OPTION_TYPE));
-				optionMap.put(OPTION_TYPE, typeCode);
-			} else {
-				error = true;
-				LOG.error("{} NOT valid: {}", OPTION_TYPE, typeCodeValue);
-			}
-		} else {
-			error = true;
-			LOG.error("option required: {}", OPTION_TYPE);
-		}
-
-		// category (Required)
-		if (cl.hasOption(OPTION_CATEGORY)) {
-			String categoryCodeValue = cl.getOptionValue(OPTION_CATEGORY);
-			LOG.info("option {}={}", OPTION_CATEGORY, categoryCodeValue);
-
-			if (checkCode(cl.getOptionValue(OPTION_CATEGORY))) {
-				Code catecoryCode = Code.splitCode(categoryCodeValue);
-				optionMap.put(OPTION_CATEGORY, catecoryCode);
-			} else {
-				error = true;
-				LOG.error("{} NOT valid: {}", OPTION_CATEGORY, categoryCodeValue);
-			}
-		} else {
-			error = true;
-			LOG.error("option required: {}", OPTION_CATEGORY);
-		}
-
 		// document-date
 		if (cl.hasOption(OPTION_DOCUMENT_CREATED)) {
 			String documentCreatedString = cl.getOptionValue(OPTION_DOCUMENT_CREATED);
@@ -479,27 +775,6 @@ public class MHDsend extends UtilContext {
 			}
 		}
 
-		// security-label
-		if (cl.hasOption(OPTION_SECURITY_LABEL)) {
-			List<Code> securityLabelCodeList = new ArrayList<>();
-
-			String[] securityLabels = cl.getOptionValues(OPTION_SECURITY_LABEL);
-			for (String securityLabelString : securityLabels) {
-				LOG.info("option {}={}", OPTION_SECURITY_LABEL, securityLabelString);
-
-				if (checkCode(securityLabelString)) {
-					Code securityLabelCode = Code.splitCode(securityLabelString);
-					securityLabelCodeList.add(securityLabelCode);
-				} else {
-					error = true;
-					LOG.error("{} NOT valid: {}", OPTION_SECURITY_LABEL, securityLabelString);
-					break;
-				}
-			}
-
-			optionMap.put(OPTION_SECURITY_LABEL, securityLabelCodeList);
-		}
-
 		// content-type
 		if (cl.hasOption(OPTION_CONTENT_TYPE)) {
 			String contentType = cl.getOptionValue(OPTION_CONTENT_TYPE);
@@ -536,27 +811,6 @@ public class MHDsend extends UtilContext {
 			optionMap.put(OPTION_FORMAT, format);
 		}
 
-		// event
-		if (cl.hasOption(OPTION_EVENT)) {
-			List<Code> eventCodeList = new ArrayList<>();
-
-			String[] eventCodes = cl.getOptionValues(OPTION_EVENT);
-			for (String eventCodeString : eventCodes) {
-				LOG.info("option {}={}", OPTION_EVENT, eventCodeString);
-
-				if (checkCode(eventCodeString)) {
-					Code eventCode = Code.splitCode(eventCodeString);
-					eventCodeList.add(eventCode);
-				} else {
-					error = true;
-					LOG.error("{} NOT valid: {}", OPTION_EVENT, eventCodeString);
-					break;
-				}
-			}
-
-			optionMap.put(OPTION_EVENT, eventCodeList);
-		}
-
 		// period - start
 		if (cl.hasOption(OPTION_PERIOD_START)) {
 			String startString = cl.getOptionValue(OPTION_PERIOD_START);
@@ -585,34 +839,6 @@ public class MHDsend extends UtilContext {
 			}
 		}
 
-		// facility
-		if (cl.hasOption(OPTION_FACILITY)) {
-			String facilityCodeString = cl.getOptionValue(OPTION_FACILITY);
-			LOG.info("option {}={}", OPTION_FACILITY, facilityCodeString);
-
-			if (checkCode(cl.getOptionValue(OPTION_FACILITY))) {
-				Code facilityCode = Code.splitCode(facilityCodeString);
-				optionMap.put(OPTION_FACILITY, facilityCode);
-			} else {
-				error = true;
-				LOG.error("{} NOT valid: {}", OPTION_FACILITY, facilityCodeString);
-			}
-		}
-
-		// practice
-		if (cl.hasOption(OPTION_PRACTICE)) {
-			String practiceCodeString = cl.getOptionValue(OPTION_PRACTICE);
-			LOG.info("option {}={}", OPTION_PRACTICE, practiceCodeString);
-
-			if (checkCode(cl.getOptionValue(OPTION_PRACTICE))) {
-				Code practiceCode = Code.splitCode(practiceCodeString);
-				optionMap.put(OPTION_PRACTICE, practiceCode);
-			} else {
-				error = true;
-				LOG.error("{} NOT valid: {}", OPTION_PRACTICE, practiceCodeString);
-			}
-		}
-
 		// reference-id (related)
 		if (cl.hasOption(OPTION_REFERENCE_ID)) {
 			List<Reference> referenceIdList = new ArrayList<>();
@@ -632,26 +858,54 @@ public class MHDsend extends UtilContext {
 			optionMap.put(OPTION_REFERENCE_ID, referenceIdList);
 		}
 
-		return error;
-	}
+		/////////////////////////////////////////////////////////////////////////////
+		// documents - one DocumentReference/Binary pair per data-binary file
 
-	private static String newOIDbyString(String uidSeed, int flag) {
-		BigInteger bi = null;
-		UUID uuid = null;
-		try {
-			uuid = UUID.nameUUIDFromBytes(uidSeed.getBytes("UTF-8"));
-			ByteBuffer bb = ByteBuffer.wrap(new byte[16]);
-			bb.putLong(uuid.getMostSignificantBits());
-			bb.putLong(uuid.getLeastSignificantBits());
-			bi = new BigInteger(bb.array());
+		if (dataBinaryFiles.size() > 1 && (cl.hasOption(OPTION_DOCUMENT_UUID) || cl.hasOption(OPTION_DOCUMENT_UID)
+				|| cl.hasOption(OPTION_BINARY_UUID) || cl.hasOption(OPTION_DOCUMENT_TITLE))) {
+			error = true;
+			LOG.error("{}, {}, {} and {} can only be used with a single file",
+				OPTION_DOCUMENT_UUID, OPTION_DOCUMENT_UID, OPTION_BINARY_UUID, OPTION_DOCUMENT_TITLE);
+		}
 
-		} catch (UnsupportedEncodingException e) {
-			e.printStackTrace();
+		List<Map<String, Object>> documents = new ArrayList<>();
+		for (int i = 0; i < dataBinaryFiles.size(); i++) {
+			File file = dataBinaryFiles.get(i);
+			Map<String, Object> document = new HashMap<>();
+			document.put(OPTION_DATA_BINARY, file);
+			if (i == 0) {
+				document.put(OPTION_DOCUMENT_UUID, documentUUID);
+				document.put(OPTION_DOCUMENT_UID, documentUID);
+				document.put(OPTION_BINARY_UUID, binaryUUID);
+				document.put(OPTION_DOCUMENT_TITLE, optionMap.get(OPTION_DOCUMENT_TITLE));
+			} else if (cl.hasOption(OPTION_DOCUMENT_UID_SEED)) {
+				String documentUIDSeed = cl.getOptionValue(OPTION_DOCUMENT_UID_SEED) + "/" + file.getName();
+				document.put(OPTION_DOCUMENT_UUID, newOIDbyString(documentUIDSeed, 0));
+				document.put(OPTION_DOCUMENT_UID, newOIDbyString(documentUIDSeed, 99));
+				document.put(OPTION_BINARY_UUID, newUUID());
+				document.put(OPTION_DOCUMENT_TITLE, file.getName());
+			} else {
+				document.put(OPTION_DOCUMENT_UUID, newUUID());
+				document.put(OPTION_DOCUMENT_UID, newOID());
+				document.put(OPTION_BINARY_UUID, newUUID());
+				document.put(OPTION_DOCUMENT_TITLE, file.getName());
+			}
+			documents.add(document);
+		}
+		if (documents.size() > 1) {
+			LOG.info("documents={}", documents.size());
 		}
+		optionMap.put(OPTION_DOCUMENTS, documents);
+
+		return error;
+	}
+
+	// the UUID (flag 0) or the OID of a seed: the same for the same seed
+	static String newOIDbyString(String uidSeed, int flag) {
 		if (flag == 0) {
-			return UUID_Prefix + uuid.toString();
+			return UUID_Prefix + UidGenerator.nameUUID(uidSeed);
 		} else {
-			return "2.25." + bi.abs().toString();
+			return UidGenerator.nameOID(uidSeed);
 		}
 	}
 
@@ -691,7 +945,7 @@ public class MHDsend extends UtilContext {
 		return true;
 	}
 
-	private static boolean checkCode(String code) {
+	static boolean checkCode(String code) {
 		String[] tmpCode = code.split("\\^");
 		if (tmpCode.length != 3) {
 			return false;
@@ -759,25 +1013,12 @@ public class MHDsend extends UtilContext {
 		}
 	}
 
-	private static String randomUUID() {
-		return UUID.randomUUID().toString();
-	}
-
 	private static String newUUID() {
-		return UUID_Prefix + UUID.randomUUID().toString();
+		return UUID_Prefix + UidGenerator.randomUUID();
 	}
 
 	private static String newOID() {
-		return OID_Prefix + randomOID();
-	}
-
-	private static String randomOID() {
-		UUID uuid = UUID.randomUUID();
-		ByteBuffer bb = ByteBuffer.wrap(new byte[16]);
-		bb.putLong(uuid.getMostSignificantBits());
-		bb.putLong(uuid.getLeastSignificantBits());
-		BigInteger bi = new BigInteger(bb.array());
-		return "2.25." + bi.abs().toString();
+		return OID_Prefix + UidGenerator.randomOID();
 	}
 
 	private static String convertDateToString(Date date) {
@@ -0,0 +1,297 @@
+package kr.irm.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.hl7.fhir.r4.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Resources written to per-type NDJSON files instead of sent in a transaction, for a bulk $import.
+// A file is closed and a new one started when it reaches the size limit; a resource is never split.
+// The bundle's urn:uuid references become Type/id references, as $import creates the resources with their ids.
+public class NdjsonExport {
+	private static final Logger LOG = LoggerFactory.getLogger(NdjsonExport.class);
+
+	private static final Map<String, NdjsonExport> EXPORTS = new ConcurrentHashMap<>();
+	private static final int BUFFER_SIZE = 256 * 1024;
+	private static final int MARKER_SIZE = 24;
+	private static final long POLL_MILLIS = 5000;
+	// $import input order: referenced resources first
+	private static final String[] TYPES = {"Patient", "Binary", "DocumentReference", "DocumentManifest"};
+
+	private final File dir;
+	private final long maxFileSize;
+	private final Map<String, TypeWriter> writers = new LinkedHashMap<>();
+	private final Set<String> exportedPatients = ConcurrentHashMap.newKeySet();
+
+	private NdjsonExport(File dir, long maxFileSize) {
+		this.dir = dir;
+		this.maxFileSize = maxFileSize;
+		for (String type : TYPES) {
+			writers.put(type, new TypeWriter(type));
+		}
+	}
+
+	// one export per directory in a JVM, closed at exit
+	static NdjsonExport open(File dir, long maxFileSize) throws IOException {
+		Files.createDirectories(dir.toPath());
+		return EXPORTS.computeIfAbsent(dir.getAbsolutePath(), path -> {
+			NdjsonExport export = new NdjsonExport(dir, maxFileSize);
+			Runtime.getRuntime().addShutdownHook(new Thread(export::close, "ndjson-export"));
+			return export;
+		});
+	}
+
+	static void close(File dir) {
+		NdjsonExport export = EXPORTS.get(dir.getAbsolutePath());
+		if (export != null) {
+			export.close();
+		}
+	}
+
+	// the patient id of a patient exported here, the same for every document of the patient
+	String patientReference(FhirContext fhirContext, Patient patient, String patientId) throws IOException {
+		String id = UidGenerator.nameUUID("Patient|" + patientId);
+		if (exportedPatients.add(id)) {
+			patient.setId(id);
+			writers.get("Patient").write(fhirContext.newJsonParser(), patient, null, null);
+		}
+		return "Patient/" + id;
+	}
+
+	// each Binary is written before its DocumentReference, which gets the SHA-1 taken while the file was copied
+	void write(FhirContext fhirContext, DocumentManifest manifest, List<DocumentReference> documentReferences, Map<DocumentReference, Binary> binaries,
+			   Map<Binary, File> files) throws IOException {
+		IParser parser = fhirContext.newJsonParser();
+		Map<String, String> references = new HashMap<>();
+		references.put(manifest.getIdElement().getValue(), "DocumentManifest/" + logicalId(manifest));
+		for (DocumentReference documentReference : documentReferences) {
+			references.put(documentReference.getIdElement().getValue(), "DocumentReference/" + logicalId(documentReference));
+			Binary binary = binaries.get(documentReference);
+			if (binary != null) {
+				references.put(binary.getIdElement().getValue(), "Binary/" + logicalId(binary));
+			}
+		}
+
+		for (DocumentReference documentReference : documentReferences) {
+			Attachment attachment = documentReference.getContentFirstRep().getAttachment();
+			Binary binary = binaries.get(documentReference);
+			if (binary != null) {
+				byte[][] digest = new byte[1][];
+				binary.setId(logicalId(binary));
+				writers.get("Binary").write(parser, binary, files.get(binary), sha1 -> digest[0] = sha1);
+				attachment.setHash(digest[0]);
+			}
+			if (attachment.hasUrl() && references.containsKey(attachment.getUrl())) {
+				attachment.setUrl(references.get(attachment.getUrl()));
+			}
+			documentReference.setId(logicalId(documentReference));
+			writers.get("DocumentReference").write(parser, documentReference, null, null);
+		}
+
+		for (Reference content : manifest.getContent()) {
+			if (references.containsKey(content.getReference())) {
+				content.setReference(references.get(content.getReference()));
+			}
+		}
+		manifest.setId(logicalId(manifest));
+		writers.get("DocumentManifest").write(parser, manifest, null, null);
+	}
+
+	// the next open of the directory, in a resident server, starts a new export
+	synchronized void close() {
+		EXPORTS.remove(dir.getAbsolutePath(), this);
+		for (TypeWriter writer : writers.values()) {
+			writer.close();
+		}
+	}
+
+	private List<File> files(String type) {
+		return writers.get(type).files;
+	}
+
+	// the id without urn:uuid:
+	private static String logicalId(Resource resource) {
+		return resource.getIdElement().getValue().replaceFirst("^urn:uuid:", "");
+	}
+
+	/////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+	// --export-import: the server reads the files from baseURL, so the directory must be published there
+	static int startImport(Map<String, Object> optionMap, HttpClient httpClient) {
+		NdjsonExport export = (NdjsonExport) optionMap.get(UtilContext.OPTION_EXPORT);
+		export.close();
+		String serverURL = (String) optionMap.get(UtilContext.OPTION_SERVER_URL);
+		String baseURL = ((String) optionMap.get(UtilContext.OPTION_EXPORT_IMPORT)).replaceAll("/+$", "");
+		String oauthToken = (String) optionMap.get(UtilContext.OPTION_OAUTH_TOKEN);
+
+		Parameters parameters = new Parameters();
+		parameters.addParameter().setName("inputFormat").setValue(new CodeType("application/fhir+ndjson"));
+		parameters.addParameter().setName("inputSource").setValue(new UriType(baseURL));
+		for (String type : TYPES) {
+			for (File file : export.files(type)) {
+				Parameters.ParametersParameterComponent input = parameters.addParameter().setName("input");
+				input.addPart().setName("type").setValue(new CodeType(type));
+				input.addPart().setName("url").setValue(new UriType(baseURL + "/" + file.getName()));
+			}
+		}
+		Parameters.ParametersParameterComponent storageDetail = parameters.addParameter().setName("storageDetail");
+		storageDetail.addPart().setName("type").setValue(new CodeType("https"));
+		String body = SharedFhirContext.get().newJsonParser().encodeResourceToString(parameters);
+
+		HttpPost post = new HttpPost(serverURL.replaceAll("/+$", "") + "/$import");
+		post.addHeader(HttpHeaders.ACCEPT, TransactionBody.CONTENT_TYPE.getMimeType());
+		post.addHeader("Prefer", "respond-async");
+		post.setEntity(new StringEntity(body, TransactionBody.CONTENT_TYPE));
+		try {
+			HttpResponse response = execute(httpClient, post, oauthToken);
+			int statusCode = response.getStatusLine().getStatusCode();
+			String message = IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8);
+			Header statusLocation = response.getFirstHeader("Content-Location");
+			if (statusCode != 202 || statusLocation == null) {
+				LOG.error("$import NOT started: HTTP {}: {}", statusCode, message);
+				return 98;
+			}
+			LOG.info("$import started: status={}", statusLocation.getValue());
+			return pollImport(httpClient, statusLocation.getValue(), oauthToken);
+		} catch (IOException e) {
+			LOG.error("$import NOT started: {}", e.toString());
+			return 98;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return 98;
+		}
+	}
+
+	// 202 while the import runs, then 200 with the outcome
+	private static int pollImport(HttpClient httpClient, String statusURL, String oauthToken) throws IOException, InterruptedException {
+		while (true) {
+			HttpGet get = new HttpGet(statusURL);
+			get.addHeader(HttpHeaders.ACCEPT, "application/json");
+			HttpResponse response = execute(httpClient, get, oauthToken);
+			int statusCode = response.getStatusLine().getStatusCode();
+			String message = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+			if (statusCode == 200) {
+				LOG.info("$import completed: {}", message);
+				return 0;
+			}
+			if (statusCode != 202) {
+				LOG.error("$import failed: HTTP {}: {}", statusCode, message);
+				return 98;
+			}
+			Header progress = response.getFirstHeader("X-Progress");
+			LOG.info("$import in progress{}", progress == null ? "" : ": " + progress.getValue());
+			long wait = POLL_MILLIS;
+			Header retryAfter = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+			if (retryAfter != null) {
+				try {
+					wait = Long.parseLong(retryAfter.getValue().trim()) * 1000;
+				} catch (NumberFormatException e) {
+					// HTTP date: keep the default
+				}
+			}
+			Thread.sleep(wait);
+		}
+	}
+
+	private static HttpResponse execute(HttpClient httpClient, HttpRequestBase request, String oauthToken) throws IOException {
+		if (oauthToken != null) {
+			request.addHeader(HttpHeaders.AUTHORIZATION, "Bearer " + oauthToken);
+		}
+		return httpClient.execute(request);
+	}
+
+	/////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+	// Type.0001.ndjson, Type.0002.ndjson, ...
+	private class TypeWriter {
+		private final String type;
+		private final List<File> files = new ArrayList<>();
+		private FileOutputStream fileOut;
+		private CountingOutputStream out;
+
+		TypeWriter(String type) {
+			this.type = type;
+		}
+
+		// file: streamed into Binary.data, the SHA-1 of its content handed to digestSink
+		synchronized void write(IParser parser, Resource resource, File file, TransactionBody.DigestSink digestSink) throws IOException {
+			if (out == null) {
+				File next = new File(dir, String.format("%s.%04d.ndjson", type, files.size() + 1));
+				fileOut = new FileOutputStream(next);
+				out = new CountingOutputStream(new BufferedOutputStream(fileOut, BUFFER_SIZE));
+				files.add(next);
+			}
+			long start = out.getByteCount();
+			try {
+				writeLine(parser, resource, file, digestSink);
+			} catch (IOException e) {
+				// no partial line, e.g. of a file that changed while it was copied; the next line starts a new file
+				out.flush();
+				fileOut.getChannel().truncate(start);
+				close();
+				throw e;
+			}
+			if (out.getByteCount() >= maxFileSize) {
+				close();
+			}
+		}
+
+		private void writeLine(IParser parser, Resource resource, File file, TransactionBody.DigestSink digestSink) throws IOException {
+			if (file == null) {
+				out.write(parser.encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8));
+			} else {
+				// the same marker split as TransactionBody, so the file is never held in memory
+				byte[] marker = new byte[MARKER_SIZE];
+				new SecureRandom().nextBytes(marker);
+				Binary binary = (Binary) resource;
+				binary.setData(marker);
+				String json;
+				try {
+					json = parser.encodeResourceToString(binary);
+				} finally {
+					binary.setData(null);
+				}
+				String encodedMarker = Base64.getEncoder().encodeToString(marker);
+				int at = json.indexOf(encodedMarker);
+				out.write(json.substring(0, at).getBytes(StandardCharsets.UTF_8));
+				try (InputStream in = new TransactionBody.LazyBase64Stream(file, file.length(), digestSink)) {
+					IOUtils.copyLarge(in, out, new byte[BUFFER_SIZE]);
+				}
+				out.write(json.substring(at + encodedMarker.length()).getBytes(StandardCharsets.UTF_8));
+			}
+			out.write('\n');
+		}
+
+		synchronized void close() {
+			if (out == null) {
+				return;
+			}
+			try {
+				out.close();
+				LOG.info("ndjson file written: {}, {} bytes", files.get(files.size() - 1), files.get(files.size() - 1).length());
+			} catch (IOException e) {
+				LOG.error("ndjson file NOT written: {}: {}", files.get(files.size() - 1), e.toString());
+			}
+			out = null;
+		}
+	}
+}
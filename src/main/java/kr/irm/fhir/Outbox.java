@@ -0,0 +1,448 @@
+package kr.irm.fhir;
+
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.util.EntityUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Transactions that could not be delivered, kept as their serialized request body in a spool
+// directory. The body file is synced before its journal record, so a record never points to a partial body.
+public class Outbox {
+	private static final Logger LOG = LoggerFactory.getLogger(Outbox.class);
+
+	private static final Map<String, Outbox> OUTBOXES = new ConcurrentHashMap<>();
+
+	private static final String JOURNAL = "journal";
+	private static final String BODY_SUFFIX = ".json";
+	private static final String FAILED_DIR = "failed";
+
+	// journal records: PUT id created serverURL | LEDGER id ledgerDir delivery... | TRY id attempts nextAttempt |
+	// DONE id | DEAD id reason
+	private static final String PUT = "PUT";
+	private static final String LEDGER = "LEDGER";
+	private static final String TRY = "TRY";
+	private static final String DONE = "DONE";
+	private static final String DEAD = "DEAD";
+
+	private static final long BACKOFF_BASE_MILLIS = 2000;
+	private static final long BACKOFF_MAX_MILLIS = 15 * 60 * 1000;
+
+	private final File dir;
+	private final File journalFile;
+	private final long maxAgeMillis;
+	private ScheduledExecutorService retrier = null;
+	private FileChannel retryLockChannel = null;
+	private int dead = 0;
+
+	static class Entry {
+		final String id;
+		final long created;
+		final String serverURL;
+		int attempts = 0;
+		long nextAttempt;
+		// recorded in the ledger once delivered
+		File ledgerDir = null;
+		DeliveryLedger.Delivery delivery = null;
+
+		Entry(String id, long created, String serverURL) {
+			this.id = id;
+			this.created = created;
+			this.serverURL = serverURL;
+			this.nextAttempt = created;
+		}
+	}
+
+	private Outbox(File dir, long maxAgeMillis) {
+		this.dir = dir;
+		this.journalFile = new File(dir, JOURNAL);
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+	// one outbox per directory in a JVM
+	static Outbox open(File dir, long maxAgeSeconds) throws IOException {
+		Files.createDirectories(dir.toPath());
+		return OUTBOXES.computeIfAbsent(dir.getAbsolutePath(), path -> new Outbox(dir, maxAgeSeconds * 1000));
+	}
+
+	// write the body, sync it, then journal it with the delivery for the ledger, if any
+	String spool(String serverURL, TransactionBody body, File ledgerDir, DeliveryLedger.Delivery delivery) throws IOException {
+		long created = System.currentTimeMillis();
+		String id = created + "-" + UidGenerator.randomUUID();
+		File tmpFile = new File(dir, id + ".tmp");
+		try {
+			try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+				body.writeTo(out);
+				out.getChannel().force(true);
+			}
+			Files.move(tmpFile.toPath(), bodyFile(id).toPath(), StandardCopyOption.ATOMIC_MOVE);
+			syncDirectory();
+
+			List<String[]> records = new ArrayList<>();
+			records.add(new String[]{PUT, id, Long.toString(created), serverURL});
+			if (ledgerDir != null) {
+				records.add(ledgerRecord(id, ledgerDir, delivery));
+			}
+			append(records);
+		} catch (IOException | RuntimeException e) {
+			// a body without a journal record would never be retried
+			Files.deleteIfExists(tmpFile.toPath());
+			Files.deleteIfExists(bodyFile(id).toPath());
+			throw e;
+		}
+		LOG.info("transaction spooled to outbox: id={}, bytes={}", id, bodyFile(id).length());
+		return id;
+	}
+
+	// resend due transactions from a background thread while the process runs
+	synchronized void startRetrier(HttpClient httpClient, String oauthToken) {
+		if (retrier != null) {
+			return;
+		}
+		retrier = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "outbox-retry");
+			thread.setDaemon(true);
+			return thread;
+		});
+		if (!lockRetry()) {
+			LOG.info("outbox retried by another process: dir={}", dir);
+		}
+		retrier.scheduleWithFixedDelay(() -> {
+			// takes over once the other process exits
+			if (!lockRetry()) {
+				return;
+			}
+			try {
+				retryDue(httpClient, oauthToken);
+			} catch (RuntimeException e) {
+				LOG.warn("outbox retry failed: {}", e.toString());
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+	}
+
+	// resend until every transaction is delivered, expired or rejected
+	int drain(HttpClient httpClient, String oauthToken) {
+		if (!lockRetry()) {
+			LOG.error("outbox NOT drained: another process is retrying {}", dir);
+			return 1;
+		}
+		try {
+			long nextAttempt;
+			while ((nextAttempt = retryDue(httpClient, oauthToken)) >= 0) {
+				Thread.sleep(Math.max(nextAttempt - System.currentTimeMillis(), 10));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return 1;
+		}
+		LOG.info("outbox drained: dir={}, dead={}", dir, dead);
+		return dead == 0 ? 0 : 99;
+	}
+
+	// one pass over the journal; returns when the next pending transaction is due, or -1 if none is left
+	private long retryDue(HttpClient httpClient, String oauthToken) {
+		long now = System.currentTimeMillis();
+		List<Entry> due = new ArrayList<>();
+		long nextAttempt = -1;
+		for (Entry entry : replay()) {
+			if (entry.nextAttempt <= now) {
+				due.add(entry);
+			} else if (nextAttempt < 0 || entry.nextAttempt < nextAttempt) {
+				nextAttempt = entry.nextAttempt;
+			}
+		}
+
+		for (Entry entry : due) {
+			if (now - entry.created > maxAgeMillis) {
+				kill(entry, "expired after " + entry.attempts + " attempts");
+				continue;
+			}
+			Bundle[] responseBundle = new Bundle[1];
+			Integer statusCode = deliver(entry, httpClient, oauthToken, responseBundle);
+			if (statusCode != null && statusCode >= 200 && statusCode < 300) {
+				done(entry, responseBundle[0]);
+			} else if (statusCode == null || isRetryable(statusCode)) {
+				entry.attempts++;
+				entry.nextAttempt = System.currentTimeMillis() + backoff(entry.attempts);
+				try {
+					append(TRY, entry.id, Integer.toString(entry.attempts), Long.toString(entry.nextAttempt));
+				} catch (IOException e) {
+					LOG.warn("outbox journal NOT written: {}", e.toString());
+				}
+				if (nextAttempt < 0 || entry.nextAttempt < nextAttempt) {
+					nextAttempt = entry.nextAttempt;
+				}
+			} else {
+				kill(entry, "HTTP " + statusCode);
+			}
+		}
+		return nextAttempt;
+	}
+
+	// HTTP status, or null if the server could not be reached; the response bundle is kept for the ledger
+	private Integer deliver(Entry entry, HttpClient httpClient, String oauthToken, Bundle[] responseBundle) {
+		HttpPost post = new HttpPost(entry.serverURL);
+		post.addHeader(HttpHeaders.ACCEPT, TransactionBody.CONTENT_TYPE.getMimeType());
+		if (oauthToken != null) {
+			post.addHeader(HttpHeaders.AUTHORIZATION, "Bearer " + oauthToken);
+		}
+		post.setEntity(new FileEntity(bodyFile(entry.id), TransactionBody.CONTENT_TYPE));
+		try {
+			HttpResponse response = httpClient.execute(post);
+			int statusCode = response.getStatusLine().getStatusCode();
+			if (statusCode >= 200 && statusCode < 300 && entry.delivery != null && response.getEntity() != null) {
+				try (Reader reader = new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8)) {
+					responseBundle[0] = SharedFhirContext.get().newJsonParser().parseResource(Bundle.class, reader);
+				} catch (DataFormatException e) {
+					LOG.warn("outbox response NOT parsed: id={}, {}", entry.id, e.getMessage());
+				}
+			} else if (statusCode >= 200 && statusCode < 300) {
+				EntityUtils.consume(response.getEntity());
+			} else {
+				String message = response.getEntity() == null ? "" : IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8);
+				LOG.warn("outbox delivery failed: id={}, attempt={}, HTTP {} {}", entry.id, entry.attempts + 1, statusCode, message);
+			}
+			return statusCode;
+		} catch (IOException e) {
+			LOG.warn("outbox delivery failed: id={}, attempt={}, {}", entry.id, entry.attempts + 1, e.toString());
+			return null;
+		}
+	}
+
+	private void done(Entry entry, Bundle responseBundle) {
+		if (entry.delivery != null) {
+			try {
+				if (responseBundle == null) {
+					throw new IOException("no transaction-response bundle");
+				}
+				DeliveryLedger.open(entry.ledgerDir).record(entry.serverURL, entry.delivery, responseBundle);
+			} catch (IOException e) {
+				LOG.warn("delivery NOT recorded in ledger: id={}, {}", entry.id, e.toString());
+			}
+		}
+		try {
+			append(DONE, entry.id);
+			Files.deleteIfExists(bodyFile(entry.id).toPath());
+			LOG.info("outbox delivered: id={}, attempts={}", entry.id, entry.attempts + 1);
+		} catch (IOException e) {
+			LOG.warn("outbox journal NOT written: {}", e.toString());
+		}
+	}
+
+	// keep the body in failed/ for inspection
+	private void kill(Entry entry, String reason) {
+		dead++;
+		try {
+			File failedDir = new File(dir, FAILED_DIR);
+			Files.createDirectories(failedDir.toPath());
+			Files.move(bodyFile(entry.id).toPath(), new File(failedDir, entry.id + BODY_SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			append(DEAD, entry.id, reason);
+			LOG.error("outbox transaction NOT delivered: id={}, {}", entry.id, reason);
+		} catch (IOException e) {
+			LOG.warn("outbox journal NOT written: {}", e.toString());
+		}
+	}
+
+	// exponential with equal jitter, so retries of many transactions spread out
+	private static long backoff(int attempts) {
+		long delay = Math.min(BACKOFF_BASE_MILLIS << Math.min(attempts - 1, 20), BACKOFF_MAX_MILLIS);
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+
+	static boolean isRetryable(int statusCode) {
+		return statusCode == 408 || statusCode == 429 || statusCode >= 500;
+	}
+
+	static boolean isRetryable(Throwable e) {
+		if (e instanceof BaseServerResponseException) {
+			return isRetryable(((BaseServerResponseException) e).getStatusCode());
+		}
+		return e instanceof IOException;
+	}
+
+	/////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+	private File bodyFile(String id) {
+		return new File(dir, id + BODY_SUFFIX);
+	}
+
+	private static String[] ledgerRecord(String id, File ledgerDir, DeliveryLedger.Delivery delivery) {
+		List<String> fields = new ArrayList<>(Arrays.asList(LEDGER, id, ledgerDir.getAbsolutePath()));
+		fields.addAll(delivery.toFields());
+		return fields.toArray(new String[0]);
+	}
+
+	private void append(String... fields) throws IOException {
+		append(Collections.singletonList(fields));
+	}
+
+	// other processes spool into the same directory: the journal is only touched under a file lock
+	private synchronized void append(List<String[]> records) throws IOException {
+		StringBuilder lines = new StringBuilder();
+		for (String[] fields : records) {
+			lines.append(String.join("\t", fields)).append('\n');
+		}
+		byte[] record = lines.toString().getBytes(StandardCharsets.UTF_8);
+		try (FileChannel lockChannel = openLock()) {
+			FileLock lock = lockChannel.lock();
+			try (FileChannel journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				// drop a record torn by a crash, so the next one does not run on from it
+				long size = completeLength(journal);
+				journal.truncate(size);
+				ByteBuffer bytes = ByteBuffer.wrap(record);
+				while (bytes.hasRemaining()) {
+					size += journal.write(bytes, size);
+				}
+				journal.force(true);
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	// pending transactions by replaying the journal; compacts it when mostly finished records are left
+	synchronized List<Entry> replay() {
+		Map<String, Entry> entries = new LinkedHashMap<>();
+		int records = 0;
+		try (FileChannel lockChannel = openLock()) {
+			FileLock lock = lockChannel.lock();
+			try {
+				if (journalFile.exists()) {
+					// a torn last record from a crash is not read
+					long complete;
+					try (FileChannel journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ)) {
+						complete = completeLength(journal);
+					}
+					try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+						new BoundedInputStream(new FileInputStream(journalFile), complete), StandardCharsets.UTF_8))) {
+						String line;
+						while ((line = reader.readLine()) != null) {
+							records++;
+							String[] fields = line.split("\t", -1);
+							try {
+								if (PUT.equals(fields[0]) && fields.length == 4) {
+									entries.put(fields[1], new Entry(fields[1], Long.parseLong(fields[2]), fields[3]));
+								} else if (TRY.equals(fields[0]) && fields.length == 4 && entries.containsKey(fields[1])) {
+									entries.get(fields[1]).attempts = Integer.parseInt(fields[2]);
+									entries.get(fields[1]).nextAttempt = Long.parseLong(fields[3]);
+								} else if (LEDGER.equals(fields[0]) && fields.length >= 6 && entries.containsKey(fields[1])) {
+									entries.get(fields[1]).ledgerDir = new File(fields[2]);
+									entries.get(fields[1]).delivery = DeliveryLedger.Delivery.fromFields(Arrays.asList(fields).subList(3, fields.length));
+								} else if (DONE.equals(fields[0]) || DEAD.equals(fields[0])) {
+									entries.remove(fields[1]);
+								}
+							} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+								LOG.warn("outbox journal record skipped: {}", line);
+							}
+						}
+					}
+				}
+				entries.values().removeIf(entry -> !bodyFile(entry.id).exists());
+
+				if (records > 2 * entries.size() + 64) {
+					compact(entries.values());
+				}
+			} finally {
+				lock.release();
+			}
+		} catch (IOException e) {
+			LOG.warn("outbox journal NOT read: {}", e.toString());
+		}
+		return new ArrayList<>(entries.values());
+	}
+
+	private void compact(Collection<Entry> entries) throws IOException {
+		File tmpFile = new File(dir, JOURNAL + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(tmpFile);
+			 Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+			for (Entry entry : entries) {
+				writer.write(String.join("\t", PUT, entry.id, Long.toString(entry.created), entry.serverURL) + "\n");
+				if (entry.delivery != null) {
+					writer.write(String.join("\t", ledgerRecord(entry.id, entry.ledgerDir, entry.delivery)) + "\n");
+				}
+				writer.write(String.join("\t", TRY, entry.id, Integer.toString(entry.attempts), Long.toString(entry.nextAttempt)) + "\n");
+			}
+			writer.flush();
+			out.getChannel().force(true);
+		}
+		Files.move(tmpFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory();
+	}
+
+	// the length of the journal up to the end of its last complete record
+	private static long completeLength(FileChannel journal) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		long end = journal.size();
+		while (end > 0) {
+			long start = Math.max(end - buffer.capacity(), 0);
+			buffer.clear();
+			buffer.limit((int) (end - start));
+			while (buffer.hasRemaining()) {
+				if (journal.read(buffer, start + buffer.position()) == -1) {
+					break;
+				}
+			}
+			for (int i = buffer.position() - 1; i >= 0; i--) {
+				if (buffer.get(i) == '\n') {
+					return start + i + 1;
+				}
+			}
+			end = start;
+		}
+		return 0;
+	}
+
+	private FileChannel openLock() throws IOException {
+		return FileChannel.open(new File(dir, JOURNAL + ".lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+	}
+
+	// only one process resends from a directory; held until exit
+	private synchronized boolean lockRetry() {
+		try {
+			if (retryLockChannel == null) {
+				retryLockChannel = FileChannel.open(new File(dir, "retry.lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				if (retryLockChannel.tryLock() == null) {
+					retryLockChannel.close();
+					retryLockChannel = null;
+					return false;
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			LOG.warn("outbox retry lock NOT taken: {}", e.toString());
+			return false;
+		}
+	}
+
+	// make a rename durable; not supported on every platform
+	private void syncDirectory() {
+		try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// best effort
+		}
+	}
+}
@@ -0,0 +1,347 @@
+package kr.irm.fhir;
+
+import org.apache.log4j.*;
+import org.apache.log4j.spi.LoggingEvent;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+// --resident <port>: a JVM that stays up with the FHIR context and the connections warm, and runs the
+// command lines MHDsend.sh hands it through ResidentClient exactly as MHDsend would run them.
+// It listens on the loopback interface only, and a caller must show the secret written to a file
+// that only the server's user can read. The log lines of a call are relayed to its caller and
+// appended to MHDsend.log in the caller's directory; relative paths are resolved there too.
+public class ResidentServer extends UtilContext {
+	private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(ResidentServer.class);
+
+	private static final String MDC_CALL = "resident-call";
+	private static final int MAX_ARGS = 10000;
+	private static final int MAX_STRING = 1024 * 1024;
+
+	// the caller's directory, inherited by the threads a call starts
+	private static final InheritableThreadLocal<File> WORKING_DIR = new InheritableThreadLocal<>();
+	private static final Map<String, Call> CALLS = new ConcurrentHashMap<>();
+	private static final AtomicLong callIds = new AtomicLong();
+
+	// a path of the command line, relative to the caller's directory in a resident call
+	static File file(String path) {
+		File file = new File(path);
+		File workingDir = WORKING_DIR.get();
+		return workingDir == null || file.isAbsolute() ? file : new File(workingDir, path);
+	}
+
+	static boolean isResidentCall() {
+		return WORKING_DIR.get() != null;
+	}
+
+	// a function run by a pool thread on behalf of this thread's call: the pool threads outlive the
+	// call that started them, so they do not inherit the call of the task
+	static <T, R> Function<T, R> inCall(Function<T, R> function) {
+		Object id = MDC.get(MDC_CALL);
+		File workingDir = WORKING_DIR.get();
+		if (id == null) {
+			return function;
+		}
+		return value -> {
+			Object previousId = MDC.get(MDC_CALL);
+			File previousDir = WORKING_DIR.get();
+			MDC.put(MDC_CALL, id);
+			WORKING_DIR.set(workingDir);
+			try {
+				return function.apply(value);
+			} finally {
+				if (previousId == null) {
+					MDC.remove(MDC_CALL);
+				} else {
+					MDC.put(MDC_CALL, previousId);
+				}
+				WORKING_DIR.set(previousDir);
+			}
+		};
+	}
+
+	// an executor whose tasks run in the call of the thread that hands them over
+	static Executor callExecutor(Executor executor) {
+		return task -> {
+			Function<Runnable, Void> call = inCall(runnable -> {
+				runnable.run();
+				return null;
+			});
+			executor.execute(() -> call.apply(task));
+		};
+	}
+
+	// runs until the JVM is stopped; returns only if the server cannot start
+	static int serve(String portValue) {
+		int port;
+		try {
+			port = Integer.parseInt(portValue);
+		} catch (NumberFormatException e) {
+			LOG.error("{} NOT valid: {}", OPTION_RESIDENT, portValue);
+			return 1;
+		}
+
+		ServerSocket serverSocket;
+		File secretFile = ResidentClient.secretFile(port);
+		try {
+			serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+			writeSecret(secretFile);
+		} catch (IOException e) {
+			LOG.error("resident server NOT started: {}", e.toString());
+			return 1;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			secretFile.delete();
+			try {
+				serverSocket.close();
+			} catch (IOException e) {
+				// exiting
+			}
+		}, "resident-server"));
+
+		Logger.getRootLogger().addAppender(new RelayAppender());
+		SharedFhirContext.get();
+		AtomicInteger threadNumber = new AtomicInteger();
+		ExecutorService calls = Executors.newCachedThreadPool(runnable -> new Thread(runnable, "resident-" + threadNumber.incrementAndGet()));
+		LOG.info("resident server: {}:{}, secret={}", serverSocket.getInetAddress().getHostAddress(), port, secretFile);
+
+		while (!serverSocket.isClosed()) {
+			try {
+				Socket socket = serverSocket.accept();
+				calls.execute(() -> handle(socket));
+			} catch (IOException e) {
+				if (!serverSocket.isClosed()) {
+					LOG.warn("resident call NOT accepted: {}", e.toString());
+				}
+			}
+		}
+		return 0;
+	}
+
+	private static void writeSecret(File secretFile) throws IOException {
+		byte[] random = new byte[32];
+		new SecureRandom().nextBytes(random);
+		StringBuilder secret = new StringBuilder();
+		for (byte b : random) {
+			secret.append(String.format("%02x", b));
+		}
+		Path dir = secretFile.getParentFile().toPath();
+		Path path = secretFile.toPath();
+		Files.deleteIfExists(path);
+		if (dir.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			// created private: no window in which another user can open them
+			Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+			// made before, with the umask
+			Files.setPosixFilePermissions(dir, PosixFilePermissions.fromString("rwx------"));
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} else {
+			// not a POSIX file system: the permissions of the user's home apply
+			Files.createDirectories(dir);
+			Files.createFile(path);
+		}
+		Files.write(secretFile.toPath(), secret.toString().getBytes(StandardCharsets.US_ASCII));
+		secretValue = secret.toString();
+	}
+
+	private static volatile String secretValue;
+
+	private static void handle(Socket socket) {
+		try (Socket connection = socket) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+			if (in.readInt() != ResidentClient.PROTOCOL_VERSION) {
+				LOG.warn("resident call NOT accepted: protocol version");
+				return;
+			}
+			byte[] secret = ResidentClient.readString(in, MAX_STRING).getBytes(StandardCharsets.US_ASCII);
+			if (!MessageDigest.isEqual(secret, secretValue.getBytes(StandardCharsets.US_ASCII))) {
+				LOG.warn("resident call NOT accepted: secret");
+				return;
+			}
+			File workingDir = new File(ResidentClient.readString(in, MAX_STRING));
+			int argc = in.readInt();
+			if (argc < 0 || argc > MAX_ARGS) {
+				LOG.warn("resident call NOT accepted: {} arguments", argc);
+				return;
+			}
+			String[] args = new String[argc];
+			for (int i = 0; i < argc; i++) {
+				args[i] = ResidentClient.readString(in, MAX_STRING);
+			}
+
+			Call call = new Call(out, workingDir);
+			String id = Long.toString(callIds.incrementAndGet());
+			CALLS.put(id, call);
+			MDC.put(MDC_CALL, id);
+			WORKING_DIR.set(workingDir);
+			int exitCode;
+			try {
+				exitCode = MHDsend.run(args, call.printStream);
+			} catch (RuntimeException e) {
+				LOG.error("mhdsend failed: {}", e.toString());
+				exitCode = 98;
+			} finally {
+				// what a run saves at exit
+				FileCache.saveAll();
+				call.printStream.flush();
+				MDC.remove(MDC_CALL);
+				WORKING_DIR.remove();
+				CALLS.remove(id);
+				call.close();
+			}
+			call.exit(exitCode);
+		} catch (IOException e) {
+			LOG.warn("resident call failed: {}", e.toString());
+		}
+	}
+
+	/////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+	// one call: its output to the caller, its log lines also to MHDsend.log in the caller's directory
+	private static class Call {
+		private final DataOutputStream out;
+		private final Layout layout;
+		private final Appender logFile;
+		final PrintStream printStream;
+		private boolean broken = false;
+
+		Call(DataOutputStream out, File workingDir) {
+			this.out = out;
+			Appender console = rootAppender("Console");
+			this.layout = copyLayout(console != null ? console.getLayout() : null);
+			this.logFile = openLogFile(rootAppender("File"), workingDir);
+			this.printStream = new PrintStream(new BufferedOutputStream(new OutputStream() {
+				@Override
+				public void write(int b) {
+					write(new byte[]{(byte) b}, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+					output(b, off, len);
+				}
+			}), true);
+		}
+
+		// a PatternLayout formats into a buffer of its own: the server's appenders may be formatting
+		// with theirs at the same time on another thread
+		private static Layout copyLayout(Layout layout) {
+			if (layout instanceof PatternLayout) {
+				return new PatternLayout(((PatternLayout) layout).getConversionPattern());
+			}
+			return layout != null ? layout : new PatternLayout();
+		}
+
+		// an appender of log4j.properties, also when --quiet moved it behind the AsyncAppender
+		private static Appender rootAppender(String name) {
+			Logger root = Logger.getRootLogger();
+			Appender appender = root.getAppender(name);
+			Appender async = root.getAppender(SendAudit.ASYNC_APPENDER);
+			if (appender == null && async instanceof AsyncAppender) {
+				appender = ((AsyncAppender) async).getAppender(name);
+			}
+			return appender;
+		}
+
+		// the same file name, size and layout as the server's own log file, unless it is that file
+		private static Appender openLogFile(Appender serverFile, File workingDir) {
+			if (!(serverFile instanceof RollingFileAppender)) {
+				return null;
+			}
+			RollingFileAppender template = (RollingFileAppender) serverFile;
+			File file = new File(workingDir, new File(template.getFile()).getName());
+			if (file.getAbsoluteFile().equals(new File(template.getFile()).getAbsoluteFile())) {
+				return null;
+			}
+			try {
+				RollingFileAppender appender = new RollingFileAppender(copyLayout(template.getLayout()), file.getPath(), true);
+				appender.setMaximumFileSize(template.getMaximumFileSize());
+				appender.setMaxBackupIndex(template.getMaxBackupIndex());
+				return appender;
+			} catch (IOException e) {
+				LOG.warn("resident call log file NOT opened: {}", e.toString());
+				return null;
+			}
+		}
+
+		void log(LoggingEvent event) {
+			StringBuilder line = new StringBuilder(layout.format(event));
+			String[] throwable = event.getThrowableStrRep();
+			if (layout.ignoresThrowable() && throwable != null) {
+				for (String s : throwable) {
+					line.append(s).append(Layout.LINE_SEP);
+				}
+			}
+			byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+			output(bytes, 0, bytes.length);
+			if (logFile != null) {
+				logFile.doAppend(event);
+			}
+		}
+
+		// a caller that went away does not stop the call
+		synchronized void output(byte[] bytes, int off, int len) {
+			if (broken || len == 0) {
+				return;
+			}
+			try {
+				out.writeByte(ResidentClient.FRAME_OUTPUT);
+				out.writeInt(len);
+				out.write(bytes, off, len);
+				out.flush();
+			} catch (IOException e) {
+				broken = true;
+			}
+		}
+
+		synchronized void exit(int exitCode) throws IOException {
+			out.writeByte(ResidentClient.FRAME_EXIT);
+			out.writeInt(exitCode);
+			out.flush();
+		}
+
+		void close() {
+			if (logFile != null) {
+				logFile.close();
+			}
+		}
+	}
+
+	// the log lines of the threads of a call to that call; others only to the server's appenders
+	private static class RelayAppender extends AppenderSkeleton {
+		@Override
+		protected void append(LoggingEvent event) {
+			Object id = event.getMDC(MDC_CALL);
+			Call call = id == null ? null : CALLS.get(id);
+			if (call != null) {
+				call.log(event);
+			}
+		}
+
+		@Override
+		public boolean requiresLayout() {
+			return false;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
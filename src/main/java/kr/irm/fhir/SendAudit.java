@@ -0,0 +1,129 @@
+package kr.irm.fhir;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.apache.log4j.Appender;
+import org.apache.log4j.AsyncAppender;
+import org.apache.log4j.Level;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// --quiet: the appenders of log4j.properties are moved behind a bounded AsyncAppender, so a send
+// never waits for the console or the log file, and only warnings and errors are logged, but for one
+// JSON line per send: its ids, patient, bytes, the time of each phase and the outcome.
+// One SendAudit is the record of one send; the phases are also in SendMetrics.
+public class SendAudit extends UtilContext {
+	private static final Logger LOG = LoggerFactory.getLogger(SendAudit.class);
+
+	static final String ASYNC_APPENDER = "Async";
+	// events waiting for the appenders; when full, events are discarded and counted rather than
+	// holding up the sends
+	private static final int BUFFER_SIZE = 8192;
+	// besides the audit lines, the start and the summary of a batch
+	private static final Class<?>[] INFO_LOGGERS = {SendAudit.class, BatchSend.class, SendMetrics.class};
+
+	private static volatile boolean enabled = false;
+
+	private final AtomicLongArray phaseNanos = new AtomicLongArray(SendMetrics.PHASES.length);
+	private volatile String patientResourceId;
+	private volatile long requestBytes = -1;
+
+	static boolean isEnabled() {
+		return enabled;
+	}
+
+	// once per JVM; the level and the appenders of a resident server are those of all its calls
+	static synchronized void enable() {
+		if (enabled) {
+			return;
+		}
+		org.apache.log4j.Logger root = org.apache.log4j.Logger.getRootLogger();
+		AsyncAppender async = new AsyncAppender();
+		async.setName(ASYNC_APPENDER);
+		async.setBufferSize(BUFFER_SIZE);
+		async.setBlocking(false);
+		List<Appender> appenders = new ArrayList<>();
+		for (Enumeration<?> e = root.getAllAppenders(); e.hasMoreElements(); ) {
+			appenders.add((Appender) e.nextElement());
+		}
+		for (Appender appender : appenders) {
+			root.removeAppender(appender);
+			async.addAppender(appender);
+		}
+		root.addAppender(async);
+		root.setLevel(Level.WARN);
+		for (Class<?> logger : INFO_LOGGERS) {
+			org.apache.log4j.Logger.getLogger(logger).setLevel(Level.INFO);
+		}
+		// what is still waiting when the JVM exits
+		Runtime.getRuntime().addShutdownHook(new Thread(async::close, "log-flush"));
+		enabled = true;
+		LOG.info("option {}={}, bufferSize={}", OPTION_QUIET, true, BUFFER_SIZE);
+	}
+
+	// the record of a send, null when not --quiet
+	static SendAudit start() {
+		return enabled ? new SendAudit() : null;
+	}
+
+	void record(String phase, long nanos) {
+		phaseNanos.addAndGet(SendMetrics.phaseIndex(phase), nanos);
+	}
+
+	void setPatientResourceId(String patientResourceId) {
+		this.patientResourceId = patientResourceId;
+	}
+
+	void setRequestBytes(long requestBytes) {
+		this.requestBytes = requestBytes;
+	}
+
+	// the audit line of the send
+	void log(Map<String, Object> optionMap, SendResult result, long fileBytes) {
+		JsonObject record = new JsonObject();
+		record.addProperty("exitCode", result.exitCode);
+		record.addProperty("message", result.message);
+		record.addProperty("server", (String) optionMap.get(OPTION_SERVER_URL));
+		record.addProperty("patient", (String) optionMap.get(OPTION_PATIENT_ID));
+		record.addProperty("patientResource", patientResourceId);
+		record.addProperty("manifestUuid", (String) optionMap.get(OPTION_MANIFEST_UUID));
+		record.addProperty("manifestUid", (String) optionMap.get(OPTION_MANIFEST_UID));
+
+		JsonArray documents = new JsonArray();
+		for (Map<String, Object> document : BatchSend.documents(optionMap)) {
+			JsonObject entry = new JsonObject();
+			File file = (File) document.get(OPTION_DATA_BINARY);
+			entry.addProperty("file", file.getPath());
+			entry.addProperty("bytes", file.length());
+			entry.addProperty("documentUuid", (String) document.get(OPTION_DOCUMENT_UUID));
+			entry.addProperty("documentUid", (String) document.get(OPTION_DOCUMENT_UID));
+			entry.addProperty("binaryUuid", (String) document.get(OPTION_BINARY_UUID));
+			documents.add(entry);
+		}
+		record.add("documents", documents);
+		record.addProperty("fileBytes", fileBytes);
+		if (requestBytes >= 0) {
+			record.addProperty("requestBytes", requestBytes);
+		}
+
+		// milliseconds of the phases that were run
+		JsonObject phases = new JsonObject();
+		for (int i = 0; i < SendMetrics.PHASES.length; i++) {
+			long nanos = phaseNanos.get(i);
+			if (nanos > 0) {
+				phases.addProperty(SendMetrics.PHASES[i], Math.round(nanos / 1e4) / 1e2);
+			}
+		}
+		phases.addProperty(SendMetrics.PHASE_TOTAL, result.elapsedMillis);
+		record.add("phases", phases);
+		record.addProperty("locations", result.locations.size());
+		LOG.info("{}", record);
+	}
+}
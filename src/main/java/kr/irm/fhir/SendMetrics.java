@@ -0,0 +1,399 @@
+package kr.irm.fhir;
+
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Time per phase of a send, outcomes and bytes, for the whole JVM. Exported as a JMX MXBean and as
+// Prometheus text over HTTP or to a file; batch mode prints a summary at the end.
+public class SendMetrics implements SendMetricsMXBean {
+	private static final Logger LOG = LoggerFactory.getLogger(SendMetrics.class);
+
+	// the phases of a send, in order
+	static final String PHASE_PATIENT_LOOKUP = "patient_lookup";
+	static final String PHASE_PATIENT_CREATE = "patient_create";
+	static final String PHASE_PREPARE = "prepare";
+	static final String PHASE_ENCODE = "encode";
+	static final String PHASE_CONNECT = "connect";
+	// the request body is written while the files are read and base64-encoded, so this includes the file reading
+	static final String PHASE_UPLOAD = "upload";
+	static final String PHASE_SERVER = "server";
+	static final String PHASE_RESPONSE = "response";
+	static final String PHASE_TOTAL = "total";
+	static final String[] PHASES = {
+		PHASE_PATIENT_LOOKUP, PHASE_PATIENT_CREATE, PHASE_PREPARE, PHASE_ENCODE,
+		PHASE_CONNECT, PHASE_UPLOAD, PHASE_SERVER, PHASE_RESPONSE, PHASE_TOTAL
+	};
+
+	private static final String OBJECT_NAME = "kr.irm.fhir:type=SendMetrics";
+	private static final long FILE_INTERVAL_SECONDS = 10;
+
+	private static final SendMetrics INSTANCE = new SendMetrics();
+
+	private final Map<String, Histogram> phases = new LinkedHashMap<>();
+	private final ConcurrentMap<Integer, LongAdder> outcomes = new ConcurrentHashMap<>();
+	private final LongAdder fileBytes = new LongAdder();
+	private final LongAdder requestBytes = new LongAdder();
+	private final LongAdder patientCacheHits = new LongAdder();
+	private final LongAdder patientCacheMisses = new LongAdder();
+	private final LongAdder binaryIndexHits = new LongAdder();
+	private final LongAdder binaryIndexMisses = new LongAdder();
+	private final LongAdder reusedBytes = new LongAdder();
+	private final AtomicLong startupMillis = new AtomicLong(-1);
+	private boolean exported = false;
+
+	private SendMetrics() {
+		for (String phase : PHASES) {
+			phases.put(phase, new Histogram());
+		}
+	}
+
+	static SendMetrics get() {
+		return INSTANCE;
+	}
+
+	void record(String phase, long nanos) {
+		phases.get(phase).record(nanos);
+	}
+
+	static int phaseIndex(String phase) {
+		for (int i = 0; i < PHASES.length; i++) {
+			if (PHASES[i].equals(phase)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException(phase);
+	}
+
+	void recordSend(int exitCode, long elapsedMillis, long bytes) {
+		outcomes.computeIfAbsent(exitCode, code -> new LongAdder()).increment();
+		record(PHASE_TOTAL, TimeUnit.MILLISECONDS.toNanos(elapsedMillis));
+		fileBytes.add(bytes);
+	}
+
+	void recordRequestBytes(long bytes) {
+		requestBytes.add(bytes);
+	}
+
+	void recordPatientCache(boolean hit) {
+		(hit ? patientCacheHits : patientCacheMisses).increment();
+	}
+
+	// bytes: size of the file that was referenced instead of uploaded, on a hit
+	void recordBinaryIndex(boolean hit, long bytes) {
+		(hit ? binaryIndexHits : binaryIndexMisses).increment();
+		if (hit) {
+			reusedBytes.add(bytes);
+		}
+	}
+
+	// JVM start to the first request (or export) of the run: JVM, class loading, logging and FHIR context
+	void recordStartup() {
+		if (startupMillis.get() >= 0) {
+			return;
+		}
+		long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+		if (startupMillis.compareAndSet(-1, uptime)) {
+			LOG.info("startup: {} ms to the first request, fhir context {} ms", uptime, SharedFhirContext.getCreateMillis());
+		}
+	}
+
+	// JMX always; Prometheus over HTTP and/or to a file when asked for
+	synchronized void export(String port, String file) {
+		if (exported) {
+			return;
+		}
+		exported = true;
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+		} catch (Exception e) {
+			LOG.warn("metrics NOT registered in JMX: {}", e.toString());
+		}
+
+		if (port != null) {
+			try {
+				HttpServer server = HttpServer.create(new InetSocketAddress(Integer.parseInt(port)), 0);
+				server.createContext("/metrics", exchange -> {
+					byte[] text = toPrometheus().getBytes(StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+					exchange.sendResponseHeaders(200, text.length);
+					try (OutputStream out = exchange.getResponseBody()) {
+						out.write(text);
+					}
+				});
+				server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+					Thread thread = new Thread(runnable, "metrics-http");
+					thread.setDaemon(true);
+					return thread;
+				}));
+				server.start();
+				LOG.info("metrics: http://localhost:{}/metrics", port);
+			} catch (IOException | NumberFormatException e) {
+				LOG.error("metrics port NOT opened: {}", e.toString());
+			}
+		}
+
+		if (file != null) {
+			File metricsFile = ResidentServer.file(file);
+			ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "metrics-file");
+				thread.setDaemon(true);
+				return thread;
+			});
+			writer.scheduleWithFixedDelay(() -> writeFile(metricsFile), FILE_INTERVAL_SECONDS, FILE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> writeFile(metricsFile), "metrics-file-final"));
+			LOG.info("metrics: file={}", metricsFile);
+		}
+	}
+
+	// replaced atomically, as the node_exporter textfile collector expects
+	void writeFile(File file) {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		try {
+			Files.write(tmpFile.toPath(), toPrometheus().getBytes(StandardCharsets.UTF_8));
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOG.warn("metrics file NOT written: {}", e.toString());
+		}
+	}
+
+	String toPrometheus() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("# HELP mhdsend_phase_seconds Time spent in each phase of a send\n");
+		sb.append("# TYPE mhdsend_phase_seconds summary\n");
+		for (Map.Entry<String, Histogram> phase : phases.entrySet()) {
+			Histogram histogram = phase.getValue();
+			for (double quantile : new double[] { 0.5, 0.95, 0.99 }) {
+				sb.append("mhdsend_phase_seconds{phase=\"").append(phase.getKey()).append("\",quantile=\"").append(quantile).append("\"} ")
+					.append(histogram.percentileMicros(quantile) / 1e6).append('\n');
+			}
+			sb.append("mhdsend_phase_seconds_sum{phase=\"").append(phase.getKey()).append("\"} ").append(histogram.sumMicros.sum() / 1e6).append('\n');
+			sb.append("mhdsend_phase_seconds_count{phase=\"").append(phase.getKey()).append("\"} ").append(histogram.count.sum()).append('\n');
+		}
+		sb.append("# HELP mhdsend_sends_total Sends by exit code\n");
+		sb.append("# TYPE mhdsend_sends_total counter\n");
+		for (Map.Entry<Integer, LongAdder> outcome : new TreeMap<>(outcomes).entrySet()) {
+			sb.append("mhdsend_sends_total{exit_code=\"").append(outcome.getKey()).append("\"} ").append(outcome.getValue().sum()).append('\n');
+		}
+		sb.append("# HELP mhdsend_file_bytes_total Bytes of the documents delivered\n");
+		sb.append("# TYPE mhdsend_file_bytes_total counter\n");
+		sb.append("mhdsend_file_bytes_total ").append(fileBytes.sum()).append('\n');
+		sb.append("# HELP mhdsend_request_bytes_total Bytes of the transaction requests sent\n");
+		sb.append("# TYPE mhdsend_request_bytes_total counter\n");
+		sb.append("mhdsend_request_bytes_total ").append(requestBytes.sum()).append('\n');
+		sb.append("# HELP mhdsend_patient_cache_total Patient cache lookups\n");
+		sb.append("# TYPE mhdsend_patient_cache_total counter\n");
+		sb.append("mhdsend_patient_cache_total{result=\"hit\"} ").append(patientCacheHits.sum()).append('\n');
+		sb.append("mhdsend_patient_cache_total{result=\"miss\"} ").append(patientCacheMisses.sum()).append('\n');
+		sb.append("# HELP mhdsend_binary_index_total Binary index lookups\n");
+		sb.append("# TYPE mhdsend_binary_index_total counter\n");
+		sb.append("mhdsend_binary_index_total{result=\"hit\"} ").append(binaryIndexHits.sum()).append('\n');
+		sb.append("mhdsend_binary_index_total{result=\"miss\"} ").append(binaryIndexMisses.sum()).append('\n');
+		sb.append("# HELP mhdsend_reused_bytes_total Bytes of the documents referenced to a Binary already on the server\n");
+		sb.append("# TYPE mhdsend_reused_bytes_total counter\n");
+		sb.append("mhdsend_reused_bytes_total ").append(reusedBytes.sum()).append('\n');
+		if (startupMillis.get() >= 0) {
+			sb.append("# HELP mhdsend_startup_seconds Time from JVM start to the first request\n");
+			sb.append("# TYPE mhdsend_startup_seconds gauge\n");
+			sb.append("mhdsend_startup_seconds ").append(startupMillis.get() / 1e3).append('\n');
+			sb.append("# HELP mhdsend_fhir_context_seconds Time to create and warm the FHIR context\n");
+			sb.append("# TYPE mhdsend_fhir_context_seconds gauge\n");
+			sb.append("mhdsend_fhir_context_seconds ").append(SharedFhirContext.getCreateMillis() / 1e3).append('\n');
+		}
+		return sb.toString();
+	}
+
+	// one line per phase that was run
+	void logSummary() {
+		LOG.info(String.format("%-16s %8s %10s %10s %10s %10s", "phase", "count", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+		for (Map.Entry<String, Histogram> phase : phases.entrySet()) {
+			Histogram histogram = phase.getValue();
+			if (histogram.count.sum() == 0) {
+				continue;
+			}
+			LOG.info(String.format("%-16s %8d %10.1f %10.1f %10.1f %10.1f", phase.getKey(), histogram.count.sum(),
+				histogram.percentileMicros(0.5) / 1e3, histogram.percentileMicros(0.95) / 1e3,
+				histogram.percentileMicros(0.99) / 1e3, histogram.max.get() / 1e3));
+		}
+	}
+
+	/////////////////////////////////////////////////////////////////////////////////////////////////////////
+	// SendMetricsMXBean
+
+	@Override
+	public Map<String, Long> getSends() {
+		Map<String, Long> sends = new TreeMap<>();
+		for (Map.Entry<Integer, LongAdder> outcome : outcomes.entrySet()) {
+			sends.put("exit-code " + outcome.getKey(), outcome.getValue().sum());
+		}
+		return sends;
+	}
+
+	@Override
+	public long getFileBytes() {
+		return fileBytes.sum();
+	}
+
+	@Override
+	public long getRequestBytes() {
+		return requestBytes.sum();
+	}
+
+	@Override
+	public long getPatientCacheHits() {
+		return patientCacheHits.sum();
+	}
+
+	@Override
+	public long getPatientCacheMisses() {
+		return patientCacheMisses.sum();
+	}
+
+	@Override
+	public long getBinaryIndexHits() {
+		return binaryIndexHits.sum();
+	}
+
+	@Override
+	public long getBinaryIndexMisses() {
+		return binaryIndexMisses.sum();
+	}
+
+	@Override
+	public long getReusedBytes() {
+		return reusedBytes.sum();
+	}
+
+	@Override
+	public long getStartupMillis() {
+		return startupMillis.get();
+	}
+
+	@Override
+	public long getFhirContextMillis() {
+		return SharedFhirContext.getCreateMillis();
+	}
+
+	@Override
+	public Map<String, PhaseStatistics> getPhases() {
+		Map<String, PhaseStatistics> statistics = new LinkedHashMap<>();
+		for (Map.Entry<String, Histogram> phase : phases.entrySet()) {
+			statistics.put(phase.getKey(), new PhaseStatistics(phase.getValue()));
+		}
+		return statistics;
+	}
+
+	public static class PhaseStatistics {
+		private final long count;
+		private final double meanMillis;
+		private final double p50Millis;
+		private final double p95Millis;
+		private final double p99Millis;
+		private final double maxMillis;
+
+		PhaseStatistics(Histogram histogram) {
+			this.count = histogram.count.sum();
+			this.meanMillis = count == 0 ? 0 : histogram.sumMicros.sum() / 1e3 / count;
+			this.p50Millis = histogram.percentileMicros(0.5) / 1e3;
+			this.p95Millis = histogram.percentileMicros(0.95) / 1e3;
+			this.p99Millis = histogram.percentileMicros(0.99) / 1e3;
+			this.maxMillis = histogram.max.get() / 1e3;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMeanMillis() {
+			return meanMillis;
+		}
+
+		public double getP50Millis() {
+			return p50Millis;
+		}
+
+		public double getP95Millis() {
+			return p95Millis;
+		}
+
+		public double getP99Millis() {
+			return p99Millis;
+		}
+
+		public double getMaxMillis() {
+			return maxMillis;
+		}
+	}
+
+	/////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+	// log-linear buckets of microseconds: 8 per power of two, so a percentile is within about 12%
+	static class Histogram {
+		private static final int SUB_BUCKET_BITS = 3;
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+		private static final int MAX_EXPONENT = 40;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(SUB_BUCKETS * (MAX_EXPONENT + 1));
+		final LongAdder count = new LongAdder();
+		final LongAdder sumMicros = new LongAdder();
+		final AtomicLong max = new AtomicLong();
+
+		void record(long nanos) {
+			long micros = Math.max(nanos / 1000, 1);
+			buckets.incrementAndGet(index(micros));
+			count.increment();
+			sumMicros.add(micros);
+			max.accumulateAndGet(micros, Math::max);
+		}
+
+		// upper bound of the bucket holding the percentile
+		long percentileMicros(double percentile) {
+			long total = count.sum();
+			if (total == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(percentile * total);
+			long seen = 0;
+			for (int i = 0; i < buckets.length(); i++) {
+				seen += buckets.get(i);
+				if (seen >= rank) {
+					return Math.min(lowerBound(i + 1), max.get());
+				}
+			}
+			return max.get();
+		}
+
+		static int index(long micros) {
+			int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+			int subBucket = (int) (exponent >= SUB_BUCKET_BITS
+				? micros >> (exponent - SUB_BUCKET_BITS)
+				: micros << (SUB_BUCKET_BITS - exponent)) & (SUB_BUCKETS - 1);
+			return exponent * SUB_BUCKETS + subBucket;
+		}
+
+		static long lowerBound(int index) {
+			int exponent = index / SUB_BUCKETS;
+			long mantissa = SUB_BUCKETS + index % SUB_BUCKETS;
+			return exponent >= SUB_BUCKET_BITS
+				? mantissa << (exponent - SUB_BUCKET_BITS)
+				: mantissa >> (SUB_BUCKET_BITS - exponent);
+		}
+	}
+}
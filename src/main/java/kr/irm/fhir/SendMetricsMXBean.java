@@ -0,0 +1,29 @@
+package kr.irm.fhir;
+
+import java.util.Map;
+
+// kr.irm.fhir:type=SendMetrics
+public interface SendMetricsMXBean {
+
+	Map<String, Long> getSends();
+
+	long getFileBytes();
+
+	long getRequestBytes();
+
+	long getPatientCacheHits();
+
+	long getPatientCacheMisses();
+
+	long getBinaryIndexHits();
+
+	long getBinaryIndexMisses();
+
+	long getReusedBytes();
+
+	long getStartupMillis();
+
+	long getFhirContextMillis();
+
+	Map<String, SendMetrics.PhaseStatistics> getPhases();
+}
@@ -0,0 +1,58 @@
+package kr.irm.fhir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SendResult {
+
+	int exitCode;
+	String message;
+	long elapsedMillis;
+	// not sent: the ledger records the documents as delivered
+	boolean skipped;
+	List<String> locations = new ArrayList<>();
+
+	public SendResult(int exitCode, String message) {
+		this.exitCode = exitCode;
+		this.message = message;
+	}
+
+	public int getExitCode() {
+		return exitCode;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	public List<String> getLocations() {
+		return locations;
+	}
+
+	public boolean isSuccess() {
+		return exitCode == 0;
+	}
+
+	public boolean isSkipped() {
+		return skipped;
+	}
+
+	// not delivered yet, but spooled to the outbox for a resend
+	public boolean isQueued() {
+		return exitCode == 75;
+	}
+
+	@Override
+	public String toString() {
+		return "SendResult{" +
+			"exitCode = " + exitCode +
+			", message = " + message +
+			", elapsedMillis = " + elapsedMillis +
+			", locations = " + locations +
+			"}";
+	}
+}
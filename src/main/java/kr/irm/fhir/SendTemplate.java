@@ -0,0 +1,229 @@
+package kr.irm.fhir;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The code options that stay the same for many documents (manifest type, type, category, facility,
+// practice, events, security labels), split, checked against the terminology and built into
+// CodeableConcepts once, then copied into each DocumentManifest/DocumentReference. A template is
+// compiled the first time its option values are seen, so the rows of a batch, the files of a hot
+// folder and the calls of a resident server that share them share one template.
+// --template <file> names a template: a JSON object of options, as in an NDJSON batch row, that the
+// options of the command line and of a batch row override.
+public class SendTemplate extends UtilContext {
+	private static final Logger LOG = LoggerFactory.getLogger(SendTemplate.class);
+
+	private static final List<String> CODE_OPTIONS = Arrays.asList(
+		OPTION_MANIFEST_TYPE, OPTION_TYPE, OPTION_CATEGORY, OPTION_FACILITY, OPTION_PRACTICE, OPTION_EVENT, OPTION_SECURITY_LABEL);
+	private static final List<String> MULTIPLE = Arrays.asList(OPTION_EVENT, OPTION_SECURITY_LABEL);
+	private static final List<String> REQUIRED = Arrays.asList(OPTION_MANIFEST_TYPE, OPTION_TYPE, OPTION_CATEGORY);
+	private static final List<String> KEY_OPTIONS = new ArrayList<>(CODE_OPTIONS);
+
+	static {
+		KEY_OPTIONS.add(OPTION_TERMINOLOGY);
+		KEY_OPTIONS.add(OPTION_TERMINOLOGY_CHECK);
+	}
+	// codes that differ on every row are not worth keeping; the cache starts over when full
+	private static final int MAX_TEMPLATES = 1000;
+
+	private static final Map<String, SendTemplate> COMPILED = new ConcurrentHashMap<>();
+	private static final Map<String, TemplateFile> FILES = new ConcurrentHashMap<>();
+
+	private final String name;
+	private final Map<String, List<Code>> codes = new HashMap<>();
+	private final Map<String, List<CodeableConcept>> concepts = new HashMap<>();
+
+	private SendTemplate(String name) {
+		this.name = name;
+	}
+
+	// null if a code option is not valid; a template with errors is not kept, so each failing row logs them
+	static SendTemplate compile(CommandLine cl) {
+		String name = cl.hasOption(OPTION_TEMPLATE) ? templateName(cl.getOptionValue(OPTION_TEMPLATE)) : "command line";
+		StringBuilder key = new StringBuilder(name);
+		for (String option : KEY_OPTIONS) {
+			key.append('\u0001').append(option);
+			String[] values = cl.getOptionValues(option);
+			if (values != null) {
+				for (String value : values) {
+					key.append('\u0000').append(value);
+				}
+			}
+		}
+		// codes checked against an edited terminology file are checked again
+		key.append('\u0001').append(Terminology.modified(cl.getOptionValue(OPTION_TERMINOLOGY)));
+
+		SendTemplate template = COMPILED.get(key.toString());
+		if (template != null) {
+			LOG.info("option {}={}, compiled", OPTION_TEMPLATE, template.name);
+			return template;
+		}
+		if (COMPILED.size() >= MAX_TEMPLATES) {
+			COMPILED.clear();
+		}
+		// the first rows of a batch wait for one compile
+		return COMPILED.computeIfAbsent(key.toString(), k -> compile(name, cl));
+	}
+
+	private static SendTemplate compile(String name, CommandLine cl) {
+		SendTemplate template = new SendTemplate(name);
+		if (template.build(cl)) {
+			return null;
+		}
+		LOG.info("template compiled: {}", name);
+		return template;
+	}
+
+	private boolean build(CommandLine cl) {
+		boolean error = false;
+
+		// terminology - the codes are checked here, once per template
+		String mode = cl.getOptionValue(OPTION_TERMINOLOGY_CHECK, Terminology.MODE_WARN);
+		Terminology terminology = null;
+		if (!Terminology.MODES.contains(mode)) {
+			error = true;
+			LOG.error("{} NOT valid: {}", OPTION_TERMINOLOGY_CHECK, mode);
+		} else if (!Terminology.MODE_OFF.equals(mode)) {
+			try {
+				terminology = Terminology.open(cl.getOptionValue(OPTION_TERMINOLOGY));
+			} catch (IOException e) {
+				error = true;
+				LOG.error("{} NOT valid: {}", OPTION_TERMINOLOGY, e.toString());
+			}
+		}
+
+		for (String option : CODE_OPTIONS) {
+			String[] values = cl.getOptionValues(option);
+			if (values == null) {
+				if (REQUIRED.contains(option)) {
+					error = true;
+					LOG.error("option required: {}", option);
+				}
+				continue;
+			}
+
+			List<Code> optionCodes = new ArrayList<>();
+			List<CodeableConcept> optionConcepts = new ArrayList<>();
+			for (String value : MULTIPLE.contains(option) ? values : new String[]{values[0]}) {
+				LOG.info("option {}={}", option, value);
+
+				if (!MHDsend.checkCode(value)) {
+					error = true;
+					LOG.error("{} NOT valid: {}", option, value);
+					break;
+				}
+				Code code = Code.splitCode(value);
+				code = terminology != null ? terminology.check(option, code, mode) : Terminology.intern(code);
+				if (code == null) {
+					error = true;
+					break;
+				}
+				optionCodes.add(code);
+				optionConcepts.add(FhirSend.createCodeableConcept(code));
+			}
+			codes.put(option, Collections.unmodifiableList(optionCodes));
+			concepts.put(option, optionConcepts);
+		}
+		return error;
+	}
+
+	// the Code of a single code option, null if not given
+	Code code(String option) {
+		List<Code> optionCodes = codes.get(option);
+		return optionCodes == null || optionCodes.isEmpty() ? null : optionCodes.get(0);
+	}
+
+	// the Codes of a multiple code option, null if not given
+	List<Code> codes(String option) {
+		return codes.get(option);
+	}
+
+	// a copy of the CodeableConcept of a single code option for one resource, null if not given
+	CodeableConcept concept(String option) {
+		List<CodeableConcept> optionConcepts = concepts.get(option);
+		return optionConcepts == null || optionConcepts.isEmpty() ? null : optionConcepts.get(0).copy();
+	}
+
+	// copies of the CodeableConcepts of a multiple code option for one resource, null if not given
+	List<CodeableConcept> concepts(String option) {
+		List<CodeableConcept> optionConcepts = concepts.get(option);
+		if (optionConcepts == null) {
+			return null;
+		}
+		List<CodeableConcept> copies = new ArrayList<>(optionConcepts.size());
+		for (CodeableConcept concept : optionConcepts) {
+			copies.add(concept.copy());
+		}
+		return copies;
+	}
+
+	/////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+	// the arguments with the options of the template file in front; null if the file is not valid
+	static String[] applyFile(Options opts, CommandLine cl, String[] args) {
+		String path = cl.getOptionValue(OPTION_TEMPLATE);
+		LOG.info("option {}={}", OPTION_TEMPLATE, path);
+
+		Map<String, List<String>> templateOptions;
+		try {
+			templateOptions = load(ResidentServer.file(path));
+		} catch (IOException | RuntimeException e) {
+			LOG.error("{} NOT valid: {}: {}", OPTION_TEMPLATE, path, e.toString());
+			return null;
+		}
+
+		List<String> merged = new ArrayList<>();
+		for (Map.Entry<String, List<String>> entry : templateOptions.entrySet()) {
+			String option = entry.getKey();
+			if (opts.getOption(option) == null || OPTION_TEMPLATE.equals(option)) {
+				LOG.error("{} NOT valid: {}: option {}", OPTION_TEMPLATE, path, option);
+				return null;
+			}
+			if (!cl.hasOption(option)) {
+				BatchSend.addArg(opts, merged, option, entry.getValue());
+			}
+		}
+		merged.addAll(Arrays.asList(args));
+		return merged.toArray(new String[0]);
+	}
+
+	// read again only when the file changes
+	private static Map<String, List<String>> load(File file) throws IOException {
+		long modified = file.lastModified();
+		TemplateFile templateFile = FILES.get(file.getAbsolutePath());
+		if (templateFile == null || templateFile.modified != modified) {
+			String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+			templateFile = new TemplateFile(modified, BatchSend.parseJsonRow(json));
+			FILES.put(file.getAbsolutePath(), templateFile);
+			LOG.info("template file loaded: {}, options={}", file, templateFile.options.size());
+		}
+		return templateFile.options;
+	}
+
+	// the file name without its extension
+	private static String templateName(String path) {
+		String name = new File(path).getName();
+		int dot = name.lastIndexOf('.');
+		return dot > 0 ? name.substring(0, dot) : name;
+	}
+
+	private static class TemplateFile {
+		final long modified;
+		final Map<String, List<String>> options;
+
+		TemplateFile(long modified, Map<String, List<String>> options) {
+			this.modified = modified;
+			this.options = options;
+		}
+	}
+}
@@ -0,0 +1,287 @@
+package kr.irm.fhir;
+
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleResponseConsumer;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.config.TlsConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.client5.http.ssl.ClientTlsStrategyBuilder;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.nio.AsyncRequestProducer;
+import org.apache.hc.core5.http.nio.DataStreamChannel;
+import org.apache.hc.core5.http.nio.RequestChannel;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.H2ConnectionException;
+import org.apache.hc.core5.http.nio.ssl.TlsStrategy;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.http2.impl.nio.ProtocolNegotiationException;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.ssl.SSLContexts;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+// The async clients of a run (--http2), one pair per setting of --max-connections and the timeouts,
+// as SharedHttpClient. An https server is tried with h2 (ALPN): all its transactions
+// are multiplexed as streams of one connection. A server that does not negotiate h2, and any http
+// server, gets pooled HTTP/1.1 connections instead. A few I/O threads serve all requests, so no
+// thread waits for a response.
+public class SharedAsyncClient extends UtilContext {
+	private static final Logger LOG = LoggerFactory.getLogger(SharedAsyncClient.class);
+
+	// settings -> clients
+	private static final Map<String, SharedAsyncClient> CLIENTS = new HashMap<>();
+
+	private final CloseableHttpAsyncClient h2Client;
+	private final CloseableHttpAsyncClient http1Client;
+	// server URL -> true: h2, false: HTTP/1.1; from a TLS handshake before the first request, else
+	// not known until a first request has completed
+	private final Map<String, Boolean> h2Servers = new ConcurrentHashMap<>();
+	private final int connectTimeout;
+	private final int timeout;
+
+	private SharedAsyncClient(CloseableHttpAsyncClient h2Client, CloseableHttpAsyncClient http1Client, int connectTimeout, int timeout) {
+		this.h2Client = h2Client;
+		this.http1Client = http1Client;
+		this.connectTimeout = connectTimeout;
+		this.timeout = timeout;
+	}
+
+	static synchronized SharedAsyncClient get(Map<String, Object> optionMap) {
+		int maxConnections = Integer.parseInt((String) optionMap.getOrDefault(OPTION_MAX_CONNECTIONS, "20"));
+		int connectTimeout = Integer.parseInt((String) optionMap.getOrDefault(OPTION_CONNECT_TIMEOUT, "10"));
+		int idleTimeout = Integer.parseInt((String) optionMap.getOrDefault(OPTION_IDLE_TIMEOUT, "60"));
+		int timeout = Integer.parseInt((String) optionMap.get(OPTION_TIMEOUT));
+		String settings = maxConnections + "/" + connectTimeout + "/" + timeout + "/" + idleTimeout;
+		SharedAsyncClient sharedClient = CLIENTS.get(settings);
+		if (sharedClient == null) {
+			TlsStrategy tlsStrategy = ClientTlsStrategyBuilder.create().setSslContext(SSLContexts.createSystemDefault()).build();
+			ConnectionConfig connectionConfig = ConnectionConfig.custom()
+				.setConnectTimeout(Timeout.ofSeconds(connectTimeout))
+				.setSocketTimeout(Timeout.ofSeconds(timeout))
+				.setValidateAfterInactivity(TimeValue.ofSeconds(2))
+				.build();
+			RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectionRequestTimeout(Timeout.ofSeconds(timeout))
+				.setResponseTimeout(Timeout.ofSeconds(timeout))
+				.build();
+			IOReactorConfig ioReactorConfig = IOReactorConfig.custom().setSoTimeout(Timeout.ofSeconds(timeout)).build();
+
+			// one connection per server; the server's SETTINGS may lower the streams allowed on it
+			CloseableHttpAsyncClient h2Client = HttpAsyncClients.customHttp2()
+				.setTlsStrategy(tlsStrategy)
+				.setH2Config(H2Config.custom().setPushEnabled(false).setMaxConcurrentStreams(maxConnections * 50).build())
+				.setDefaultConnectionConfig(connectionConfig)
+				.setDefaultRequestConfig(requestConfig)
+				.setIOReactorConfig(ioReactorConfig)
+				.evictIdleConnections(TimeValue.ofSeconds(idleTimeout))
+				.build();
+
+			// HTTP/1.1 needs a connection per request in flight
+			PoolingAsyncClientConnectionManager connectionManager = PoolingAsyncClientConnectionManagerBuilder.create()
+				.setTlsStrategy(tlsStrategy)
+				.setDefaultTlsConfig(TlsConfig.custom().setVersionPolicy(HttpVersionPolicy.FORCE_HTTP_1).build())
+				.setDefaultConnectionConfig(connectionConfig)
+				.setMaxConnPerRoute(maxConnections)
+				.setMaxConnTotal(maxConnections * 2)
+				.build();
+			CloseableHttpAsyncClient http1Client = HttpAsyncClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.setIOReactorConfig(ioReactorConfig)
+				.evictExpiredConnections()
+				.evictIdleConnections(TimeValue.ofSeconds(idleTimeout))
+				.build();
+
+			h2Client.start();
+			http1Client.start();
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				h2Client.close(CloseMode.GRACEFUL);
+				http1Client.close(CloseMode.GRACEFUL);
+			}, "async-http-client"));
+			sharedClient = new SharedAsyncClient(h2Client, http1Client, connectTimeout, timeout);
+			CLIENTS.put(settings, sharedClient);
+			LOG.info("async http client: h2 for https servers that negotiate it, HTTP/1.1 otherwise, maxConnections={}, connectTimeout={}s, timeout={}s, idleTimeout={}s",
+				maxConnections, connectTimeout, timeout, idleTimeout);
+		}
+		return sharedClient;
+	}
+
+	// request must be repeatable: a first request is sent again on HTTP/1.1 when h2 could not be set up
+	// with the server, or when it failed before any of it was written; any other failure may come after
+	// the server committed the transaction, and goes to the caller
+	void execute(String serverURL, AsyncRequestProducer request, HttpClientContext context, FutureCallback<SimpleHttpResponse> callerCallback) {
+		FutureCallback<SimpleHttpResponse> callback = inCall(callerCallback);
+		Boolean h2 = h2Servers.get(serverURL);
+		if (h2 == null && serverURL.regionMatches(true, 0, "https:", 0, 6)) {
+			h2 = negotiatesH2(serverURL);
+		}
+		if (Boolean.FALSE.equals(h2) || !serverURL.regionMatches(true, 0, "https:", 0, 6)) {
+			http1Client.execute(request, SimpleResponseConsumer.create(), context, callback);
+			return;
+		}
+		if (h2 != null) {
+			h2Client.execute(request, SimpleResponseConsumer.create(), context, callback);
+			return;
+		}
+
+		TrackedRequest trackedRequest = new TrackedRequest(request);
+		h2Client.execute(trackedRequest, SimpleResponseConsumer.create(), context, new FutureCallback<SimpleHttpResponse>() {
+			@Override
+			public void completed(SimpleHttpResponse response) {
+				h2Servers.putIfAbsent(serverURL, Boolean.TRUE);
+				callback.completed(response);
+			}
+
+			@Override
+			public void failed(Exception e) {
+				boolean negotiation = isNegotiationFailure(e, trackedRequest.sent);
+				if (Boolean.TRUE.equals(h2Servers.get(serverURL)) || (!negotiation && trackedRequest.sent)) {
+					callback.failed(e);
+					return;
+				}
+				if (!negotiation) {
+					// e.g. no connection: says nothing about h2
+					LOG.info("request NOT sent with h2 to {}: {}; sending with HTTP/1.1", serverURL, e.toString());
+				} else if (h2Servers.putIfAbsent(serverURL, Boolean.FALSE) == null) {
+					LOG.info("h2 NOT negotiated with {}: {}; HTTP/1.1 from now on", serverURL, e.toString());
+				}
+				http1Client.execute(request, SimpleResponseConsumer.create(), context, callback);
+			}
+
+			@Override
+			public void cancelled() {
+				callback.cancelled();
+			}
+		});
+	}
+
+	// whether the server selects h2 in ALPN, from a TLS handshake alone; null if there was none. A server
+	// that does not speak h2 may take the h2 preface and a request for HTTP/1.1 and close the connection,
+	// which can then not be told from a failure after the request was sent
+	private Boolean negotiatesH2(String serverURL) {
+		Boolean h2 = h2Servers.get(serverURL);
+		if (h2 != null) {
+			return h2;
+		}
+		try {
+			URI uri = new URI(serverURL);
+			int port = uri.getPort() < 0 ? 443 : uri.getPort();
+			Socket socket = new Socket();
+			socket.connect(new InetSocketAddress(uri.getHost(), port), connectTimeout * 1000);
+			socket.setSoTimeout(timeout * 1000);
+			try (SSLSocket sslSocket = (SSLSocket) SSLContexts.createSystemDefault().getSocketFactory().createSocket(socket, uri.getHost(), port, true)) {
+				SSLParameters parameters = sslSocket.getSSLParameters();
+				parameters.setApplicationProtocols(new String[]{"h2", "http/1.1"});
+				sslSocket.setSSLParameters(parameters);
+				sslSocket.startHandshake();
+				h2 = "h2".equals(sslSocket.getApplicationProtocol());
+			}
+		} catch (IOException | URISyntaxException e) {
+			LOG.info("h2 NOT known for {}: {}", serverURL, e.toString());
+			return null;
+		}
+		if (h2Servers.putIfAbsent(serverURL, h2) == null && !h2) {
+			LOG.info("h2 NOT negotiated with {}: HTTP/1.1 from now on", serverURL);
+		}
+		return h2Servers.get(serverURL);
+	}
+
+	// ALPN without h2, a TLS handshake failure, or an h2 connection error before the request was sent
+	private static boolean isNegotiationFailure(Throwable e, boolean sent) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof ProtocolNegotiationException || cause instanceof SSLHandshakeException
+				|| (cause instanceof H2ConnectionException && !sent)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// a request that records whether any of it was handed to a connection
+	private static class TrackedRequest implements AsyncRequestProducer {
+		private final AsyncRequestProducer request;
+		volatile boolean sent = false;
+
+		TrackedRequest(AsyncRequestProducer request) {
+			this.request = request;
+		}
+
+		@Override
+		public void sendRequest(RequestChannel channel, HttpContext context) throws HttpException, IOException {
+			sent = true;
+			request.sendRequest(channel, context);
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return request.isRepeatable();
+		}
+
+		@Override
+		public void failed(Exception cause) {
+			request.failed(cause);
+		}
+
+		@Override
+		public int available() {
+			return request.available();
+		}
+
+		@Override
+		public void produce(DataStreamChannel channel) throws IOException {
+			request.produce(channel);
+		}
+
+		@Override
+		public void releaseResources() {
+			request.releaseResources();
+		}
+	}
+
+	// the callbacks run on the I/O reactor threads, in the resident call of the request
+	private static FutureCallback<SimpleHttpResponse> inCall(FutureCallback<SimpleHttpResponse> callback) {
+		Function<Runnable, Void> call = ResidentServer.inCall(task -> {
+			task.run();
+			return null;
+		});
+		return new FutureCallback<SimpleHttpResponse>() {
+			@Override
+			public void completed(SimpleHttpResponse response) {
+				call.apply(() -> callback.completed(response));
+			}
+
+			@Override
+			public void failed(Exception e) {
+				call.apply(() -> callback.failed(e));
+			}
+
+			@Override
+			public void cancelled() {
+				call.apply(callback::cancelled);
+			}
+		};
+	}
+}
@@ -0,0 +1,77 @@
+package kr.irm.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// The FhirContext of the JVM, created on first use or ahead of it by prewarm(). Only the resource
+// types of MHD are scanned up front; HAPI scans any other type when it is first needed.
+// Not DEFERRED_MODEL_SCANNING: the children of a type scanned lazily are missed by a parser
+// running concurrently on another thread.
+public class SharedFhirContext {
+	private static final Logger LOG = LoggerFactory.getLogger(SharedFhirContext.class);
+
+	private static final List<Class<? extends IBaseResource>> MHD_TYPES = Arrays.asList(
+		Bundle.class, DocumentManifest.class, DocumentReference.class, Binary.class, Patient.class);
+
+	private static final FutureTask<FhirContext> CONTEXT = new FutureTask<>(SharedFhirContext::create);
+	private static final AtomicBoolean started = new AtomicBoolean();
+	private static volatile long createMillis = -1;
+
+	// create the context on a background thread while the caller parses options and reads files
+	static void prewarm() {
+		if (started.compareAndSet(false, true)) {
+			Thread thread = new Thread(CONTEXT, "fhir-context");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	static FhirContext get() {
+		if (started.compareAndSet(false, true)) {
+			CONTEXT.run();
+		}
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return CONTEXT.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					throw new IllegalStateException("FHIR context NOT created", e.getCause());
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	// time taken to create and warm the context, -1 while it is not ready
+	static long getCreateMillis() {
+		return createMillis;
+	}
+
+	private static FhirContext create() {
+		long start = System.nanoTime();
+		FhirContext fhirContext = FhirContext.forR4();
+		for (Class<? extends IBaseResource> type : MHD_TYPES) {
+			fhirContext.getResourceDefinition(type);
+		}
+		// loads the parser and JSON writer classes
+		fhirContext.newJsonParser().encodeResourceToString(new Bundle().setType(Bundle.BundleType.TRANSACTION));
+		createMillis = (System.nanoTime() - start) / 1000000;
+		LOG.info("fhir context ready: {} ms, types={}", createMillis, MHD_TYPES.size());
+		return fhirContext;
+	}
+}
@@ -0,0 +1,94 @@
+package kr.irm.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.ssl.SSLContexts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// The HTTP client of a run: patient searches and creates (through HAPI), attachment uploads and
+// transactions all share its connection pool and TLS session cache. A resident server keeps one
+// client per setting of --max-connections and the timeouts, so each call gets the client its
+// options ask for, as in a run of its own.
+public class SharedHttpClient extends UtilContext {
+	private static final Logger LOG = LoggerFactory.getLogger(SharedHttpClient.class);
+
+	// settings -> client
+	private static final Map<String, Client> CLIENTS = new HashMap<>();
+
+	private static class Client {
+		final CloseableHttpClient httpClient;
+		// HAPI clients on httpClient: the factory of the FhirContext holds only one HTTP client
+		final ApacheRestfulClientFactory clientFactory;
+
+		Client(CloseableHttpClient httpClient, ApacheRestfulClientFactory clientFactory) {
+			this.httpClient = httpClient;
+			this.clientFactory = clientFactory;
+		}
+	}
+
+	static CloseableHttpClient get(FhirContext fhirContext, Map<String, Object> optionMap) {
+		return client(fhirContext, optionMap).httpClient;
+	}
+
+	// a HAPI client of the server on the HTTP client of the options
+	static IGenericClient newGenericClient(FhirContext fhirContext, Map<String, Object> optionMap, String serverURL) {
+		return client(fhirContext, optionMap).clientFactory.newGenericClient(serverURL);
+	}
+
+	private static synchronized Client client(FhirContext fhirContext, Map<String, Object> optionMap) {
+		int maxConnections = Integer.parseInt((String) optionMap.getOrDefault(OPTION_MAX_CONNECTIONS, "20"));
+		int connectTimeout = Integer.parseInt((String) optionMap.getOrDefault(OPTION_CONNECT_TIMEOUT, "10"));
+		int idleTimeout = Integer.parseInt((String) optionMap.getOrDefault(OPTION_IDLE_TIMEOUT, "60"));
+		int timeout = Integer.parseInt((String) optionMap.get(OPTION_TIMEOUT));
+		String settings = maxConnections + "/" + connectTimeout + "/" + timeout + "/" + idleTimeout;
+		Client client = CLIENTS.get(settings);
+		if (client == null) {
+			// one SSLContext, so TLS sessions are resumed on new connections
+			Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+				.register("http", PlainConnectionSocketFactory.getSocketFactory())
+				.register("https", new SSLConnectionSocketFactory(SSLContexts.createSystemDefault()))
+				.build();
+			PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(registry);
+			connectionManager.setDefaultMaxPerRoute(maxConnections);
+			connectionManager.setMaxTotal(maxConnections * 2);
+			connectionManager.setValidateAfterInactivity(2000);
+
+			RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(connectTimeout * 1000)
+				.setConnectionRequestTimeout(timeout * 1000)
+				.setSocketTimeout(timeout * 1000)
+				.build();
+
+			CloseableHttpClient httpClient = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.evictExpiredConnections()
+				.evictIdleConnections(idleTimeout, TimeUnit.SECONDS)
+				// connections are not tied to a TLS principal, so any of them can be reused
+				.disableConnectionState()
+				.build();
+			ApacheRestfulClientFactory clientFactory = new ApacheRestfulClientFactory(fhirContext);
+			clientFactory.setHttpClient(httpClient);
+			client = new Client(httpClient, clientFactory);
+			CLIENTS.put(settings, client);
+			LOG.info("http client: maxConnections={}, connectTimeout={}s, timeout={}s, idleTimeout={}s",
+				maxConnections, connectTimeout, timeout, idleTimeout);
+		}
+		return client;
+	}
+}
@@ -0,0 +1,273 @@
+package kr.irm.fhir;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The codes of the MHD/XDS value sets (type, class, facility, practice, confidentiality), checked
+// offline when the codes of a template are compiled, with no $validate-code round trip to a server.
+// The file (--terminology, or terminology.tsv on the classpath: etc/MHDsend/ before the jar) is
+// memory-mapped when it is a file, and indexed by (system, code) with an open-addressing table of
+// line offsets: a lookup hashes the key and compares it in place, nothing else of a line is decoded.
+public class Terminology extends UtilContext {
+	private static final Logger LOG = LoggerFactory.getLogger(Terminology.class);
+
+	static final String MODE_WARN = "warn";
+	static final String MODE_STRICT = "strict";
+	static final String MODE_OFF = "off";
+	static final List<String> MODES = Arrays.asList(MODE_WARN, MODE_STRICT, MODE_OFF);
+
+	private static final String RESOURCE = "terminology.tsv";
+	// the value set of each code option; the codes of other options are not checked
+	private static final Map<String, String> VALUE_SETS = new HashMap<>();
+	private static final int MAX_INTERNED = 100000;
+
+	static {
+		VALUE_SETS.put(OPTION_MANIFEST_TYPE, "type");
+		VALUE_SETS.put(OPTION_TYPE, "type");
+		VALUE_SETS.put(OPTION_CATEGORY, "class");
+		VALUE_SETS.put(OPTION_FACILITY, "facility");
+		VALUE_SETS.put(OPTION_PRACTICE, "practice");
+		VALUE_SETS.put(OPTION_SECURITY_LABEL, "confidentiality");
+	}
+
+	private static final Map<String, Terminology> REGISTRIES = new ConcurrentHashMap<>();
+	private static final Map<String, Code> INTERNED = new ConcurrentHashMap<>();
+
+	private final ByteBuffer buffer;
+	// line offset + 1 of each (system, code), 0 if empty
+	private final int[] table;
+	private final int mask;
+	private final Set<String> systems = new HashSet<>();
+	private int codes = 0;
+	private long modified;
+
+	private Terminology(ByteBuffer buffer) {
+		this.buffer = buffer;
+		int lines = 1;
+		for (int i = 0; i < buffer.limit(); i++) {
+			if (buffer.get(i) == '\n') {
+				lines++;
+			}
+		}
+		int capacity = Integer.highestOneBit(Math.max(lines, 8) * 2 - 1) << 1;
+		this.table = new int[capacity];
+		this.mask = capacity - 1;
+		index();
+	}
+
+	// one registry per file in a JVM, loaded again when the file changes; path null for the packaged one
+	static Terminology open(String path) throws IOException {
+		String key = path == null ? RESOURCE : ResidentServer.file(path).getAbsolutePath();
+		long modified = modified(path);
+		Terminology terminology = REGISTRIES.get(key);
+		if (terminology == null || terminology.modified != modified) {
+			synchronized (REGISTRIES) {
+				terminology = REGISTRIES.get(key);
+				if (terminology == null || terminology.modified != modified) {
+					terminology = path == null ? openResource() : new Terminology(map(ResidentServer.file(path).toPath()));
+					terminology.modified = modified;
+					REGISTRIES.put(key, terminology);
+					LOG.info("terminology loaded: {}, codes={}, systems={}", path == null ? RESOURCE : path, terminology.codes, terminology.systems);
+				}
+			}
+		}
+		return terminology;
+	}
+
+	// 0 for the packaged one
+	static long modified(String path) {
+		return path == null ? 0 : ResidentServer.file(path).lastModified();
+	}
+
+	private static Terminology openResource() throws IOException {
+		URL url = Terminology.class.getClassLoader().getResource(RESOURCE);
+		if (url == null) {
+			throw new IOException(RESOURCE + " NOT found");
+		}
+		if ("file".equals(url.getProtocol())) {
+			try {
+				return new Terminology(map(Paths.get(url.toURI())));
+			} catch (URISyntaxException e) {
+				throw new IOException(e);
+			}
+		}
+		// in the jar
+		try (InputStream in = url.openStream()) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				out.write(buf, 0, n);
+			}
+			return new Terminology(ByteBuffer.wrap(out.toByteArray()));
+		}
+	}
+
+	private static ByteBuffer map(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("terminology file too large: " + path);
+			}
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	// system<TAB>code<TAB>display<TAB>value sets; # comments
+	private void index() {
+		int limit = buffer.limit();
+		int lineStart = 0;
+		int systemStart = -1;
+		int systemEnd = -1;
+		while (lineStart < limit) {
+			int lineEnd = indexOf((byte) '\n', lineStart, limit);
+			int systemTab = indexOf((byte) '\t', lineStart, lineEnd);
+			int codeTab = indexOf((byte) '\t', systemTab + 1, lineEnd);
+			if (buffer.get(lineStart) != '#' && codeTab < lineEnd) {
+				int slot = hash(lineStart, codeTab) & mask;
+				while (table[slot] != 0 && !equals(table[slot] - 1, lineStart, codeTab - lineStart)) {
+					slot = (slot + 1) & mask;
+				}
+				if (table[slot] == 0) {
+					table[slot] = lineStart + 1;
+					codes++;
+				}
+				// the lines of a system are usually together
+				if (systemStart < 0 || systemEnd - systemStart != systemTab - lineStart || !equals(systemStart, lineStart, systemTab - lineStart)) {
+					systems.add(decode(lineStart, systemTab));
+					systemStart = lineStart;
+					systemEnd = systemTab;
+				}
+			}
+			lineStart = lineEnd + 1;
+		}
+	}
+
+	// the Code of an option value checked against the value set of the option: with the display of the
+	// registry when the value has none, interned; null if the code is not valid in strict mode
+	Code check(String option, Code code, String mode) {
+		String valueSet = VALUE_SETS.get(option);
+		if (MODE_OFF.equals(mode) || valueSet == null || !systems.contains(code.codeSystem)) {
+			return intern(code);
+		}
+
+		String problem = null;
+		int line = lookup(code.codeSystem, code.codeValue);
+		if (line < 0) {
+			problem = "NOT in terminology";
+		} else {
+			int limit = buffer.limit();
+			int lineEnd = indexOf((byte) '\n', line, limit);
+			int codeTab = indexOf((byte) '\t', indexOf((byte) '\t', line, lineEnd) + 1, lineEnd);
+			int displayTab = indexOf((byte) '\t', codeTab + 1, lineEnd);
+			String display = decode(codeTab + 1, displayTab);
+			List<String> valueSets = Arrays.asList(decode(Math.min(displayTab + 1, lineEnd), lineEnd).trim().split(","));
+			if (!valueSets.contains(valueSet)) {
+				problem = "NOT in value set " + valueSet;
+			} else if (code.displayName == null || code.displayName.isEmpty()) {
+				code = new Code(code.codeValue, display, code.codeSystem);
+			} else if (!code.displayName.equals(display)) {
+				LOG.warn("{} display differs from terminology: {}^{}^{}, display={}", option, code.codeValue, code.displayName, code.codeSystem, display);
+			}
+		}
+
+		if (problem != null) {
+			if (MODE_STRICT.equals(mode)) {
+				LOG.error("{} {}: {}^{}", option, problem, code.codeValue, code.codeSystem);
+				return null;
+			}
+			LOG.warn("{} {}: {}^{}", option, problem, code.codeValue, code.codeSystem);
+		}
+		return intern(code);
+	}
+
+	// the same Code instance for the same code across the documents of a JVM; a Code is never changed
+	static Code intern(Code code) {
+		if (INTERNED.size() >= MAX_INTERNED) {
+			return code;
+		}
+		String key = code.codeSystem + '\u0000' + code.codeValue + '\u0000' + code.displayName;
+		Code interned = INTERNED.putIfAbsent(key, code);
+		return interned != null ? interned : code;
+	}
+
+	// the offset of the line of (system, code), -1 if none
+	private int lookup(String system, String code) {
+		byte[] key = (system + '\t' + code).getBytes(StandardCharsets.UTF_8);
+		int hash = 0x811c9dc5;
+		for (byte b : key) {
+			hash = (hash ^ (b & 0xff)) * 0x01000193;
+		}
+		for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+			int line = table[slot] - 1;
+			if (matches(line, key)) {
+				return line;
+			}
+		}
+		return -1;
+	}
+
+	// FNV-1a of the bytes from start to end, as lookup hashes its key
+	private int hash(int start, int end) {
+		int hash = 0x811c9dc5;
+		for (int i = start; i < end; i++) {
+			hash = (hash ^ (buffer.get(i) & 0xff)) * 0x01000193;
+		}
+		return hash;
+	}
+
+	private boolean matches(int line, byte[] key) {
+		if (line + key.length >= buffer.limit() || buffer.get(line + key.length) != '\t') {
+			return false;
+		}
+		for (int i = 0; i < key.length; i++) {
+			if (buffer.get(line + i) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean equals(int a, int b, int length) {
+		if (buffer.get(a + length) != buffer.get(b + length)) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (buffer.get(a + i) != buffer.get(b + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int indexOf(byte b, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (buffer.get(i) == b) {
+				return i;
+			}
+		}
+		return to;
+	}
+
+	private String decode(int start, int end) {
+		byte[] bytes = new byte[Math.max(end - start, 0)];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(start + i);
+		}
+		String value = new String(bytes, StandardCharsets.UTF_8);
+		return value.endsWith("\r") ? value.substring(0, value.length() - 1) : value;
+	}
+}
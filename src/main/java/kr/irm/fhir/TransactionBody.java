@@ -0,0 +1,455 @@
+package kr.irm.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.apache.hc.core5.http.nio.AsyncEntityProducer;
+import org.apache.hc.core5.http.nio.DataStreamChannel;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.*;
+
+// Transaction bundle JSON with the Binary.data of each file base64-encoded straight from
+// its FileChannel while the body is written, so the memory needed does not depend on the file size.
+// The SHA-1 of each file is computed in the same read and written into the Attachment.hash that
+// follows its Binary, so the integrity metadata costs no second read of the file.
+public class TransactionBody {
+
+	public static final ContentType CONTENT_TYPE = ContentType.create("application/fhir+json", StandardCharsets.UTF_8);
+
+	private static final int MARKER_SIZE = 24;
+	// a SHA-1 is 20 bytes, 28 characters in base64: the placeholder has the same length
+	private static final int HASH_SIZE = 20;
+	private static final int CHUNK_SIZE = 3 * 16 * 1024;
+
+	// JSON segments; slot i is written between segment i and i + 1
+	private final List<byte[]> segments = new ArrayList<>();
+	private final List<Slot> slots = new ArrayList<>();
+	// the files in body order, with their length when the body was built
+	private final List<File> files = new ArrayList<>();
+	private final List<Long> lengths = new ArrayList<>();
+	private final List<String> contentTypes = new ArrayList<>();
+	// the SHA-1 of each file as last streamed, for the verbose dump and the ledger
+	private volatile byte[][] lastDigests;
+
+	// the base64 of a file, or the base64 SHA-1 of a file written earlier in the body
+	private static class Slot {
+		final int file;
+		final boolean hash;
+
+		Slot(int file, boolean hash) {
+			this.file = file;
+			this.hash = hash;
+		}
+	}
+
+	public TransactionBody(FhirContext fhirContext, Bundle bundle, Map<Binary, File> payloads) {
+		this(fhirContext, bundle, payloads, Collections.emptyMap());
+	}
+
+	// hashes: the attachments that get the SHA-1 of a payload file; each must follow that file's Binary in the bundle
+	public TransactionBody(FhirContext fhirContext, Bundle bundle, Map<Binary, File> payloads, Map<Attachment, File> hashes) {
+		// encode the bundle once with a random marker in place of each Binary.data and Attachment.hash
+		SecureRandom random = new SecureRandom();
+		Map<String, Binary> dataMarkers = new HashMap<>();
+		Map<String, File> hashMarkers = new HashMap<>();
+		for (Map.Entry<Binary, File> payload : payloads.entrySet()) {
+			byte[] marker = new byte[MARKER_SIZE];
+			random.nextBytes(marker);
+			payload.getKey().setData(marker);
+			dataMarkers.put(Base64.getEncoder().encodeToString(marker), payload.getKey());
+		}
+		for (Map.Entry<Attachment, File> hash : hashes.entrySet()) {
+			byte[] marker = new byte[HASH_SIZE];
+			random.nextBytes(marker);
+			hash.getKey().setHash(marker);
+			hashMarkers.put(Base64.getEncoder().encodeToString(marker), hash.getValue());
+		}
+		String json;
+		try {
+			json = fhirContext.newJsonParser().encodeResourceToString(bundle);
+		} finally {
+			for (Binary binary : payloads.keySet()) {
+				binary.setData(null);
+			}
+			for (Attachment attachment : hashes.keySet()) {
+				attachment.setHash(null);
+			}
+		}
+
+		// split the JSON at the markers, in document order
+		TreeMap<Integer, String> positions = new TreeMap<>();
+		for (String marker : dataMarkers.keySet()) {
+			positions.put(indexOf(json, marker), marker);
+		}
+		for (String marker : hashMarkers.keySet()) {
+			positions.put(indexOf(json, marker), marker);
+		}
+		Map<File, Integer> fileIndex = new HashMap<>();
+		int start = 0;
+		for (Map.Entry<Integer, String> position : positions.entrySet()) {
+			segments.add(json.substring(start, position.getKey()).getBytes(StandardCharsets.UTF_8));
+			String marker = position.getValue();
+			if (dataMarkers.containsKey(marker)) {
+				Binary binary = dataMarkers.get(marker);
+				File file = payloads.get(binary);
+				fileIndex.put(file, files.size());
+				slots.add(new Slot(files.size(), false));
+				files.add(file);
+				lengths.add(file.length());
+				contentTypes.add(binary.getContentType());
+			} else {
+				Integer index = fileIndex.get(hashMarkers.get(marker));
+				if (index == null) {
+					throw new IllegalStateException("Attachment.hash placed before the Binary of " + hashMarkers.get(marker));
+				}
+				slots.add(new Slot(index, true));
+			}
+			start = position.getKey() + marker.length();
+		}
+		segments.add(json.substring(start).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static int indexOf(String json, String marker) {
+		int index = json.indexOf(marker);
+		if (index < 0) {
+			throw new IllegalStateException("marker NOT found in encoded bundle");
+		}
+		return index;
+	}
+
+	public long getContentLength() {
+		long length = 0;
+		for (byte[] segment : segments) {
+			length += segment.length;
+		}
+		for (Slot slot : slots) {
+			length += slot.hash ? base64Length(HASH_SIZE) : base64Length(lengths.get(slot.file));
+		}
+		return length;
+	}
+
+	// Binary.contentType of each payload, in body order
+	public List<String> getContentTypes() {
+		return Collections.unmodifiableList(contentTypes);
+	}
+
+	// base64 length of each payload, in body order
+	public List<Long> getPayloadLengths() {
+		List<Long> payloadLengths = new ArrayList<>();
+		for (long length : lengths) {
+			payloadLengths.add(base64Length(length));
+		}
+		return payloadLengths;
+	}
+
+	// segments, files and hashes are opened one after the other, so a hash is taken after its file was read
+	public InputStream openStream() {
+		byte[][] digests = new byte[files.size()][];
+		lastDigests = digests;
+		return new SequenceInputStream(new Enumeration<InputStream>() {
+			private int next = 0;
+
+			@Override
+			public boolean hasMoreElements() {
+				return next < segments.size() + slots.size();
+			}
+
+			@Override
+			public InputStream nextElement() {
+				int index = next++;
+				if (index % 2 == 0) {
+					return new ByteArrayInputStream(segments.get(index / 2));
+				}
+				Slot slot = slots.get(index / 2);
+				if (slot.hash) {
+					// no digest only when the stream is closed before its file was read to the end
+					byte[] digest = digests[slot.file];
+					return new ByteArrayInputStream(digest == null ? new byte[0] : Base64.getEncoder().encode(digest));
+				}
+				return new LazyBase64Stream(files.get(slot.file), lengths.get(slot.file), digest -> digests[slot.file] = digest);
+			}
+		});
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		try (InputStream in = openStream()) {
+			byte[] buf = new byte[CHUNK_SIZE];
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				out.write(buf, 0, n);
+			}
+		}
+	}
+
+	// request entity that re-opens the files on each write, so it can be retried
+	public AbstractHttpEntity toHttpEntity() {
+		AbstractHttpEntity entity = new AbstractHttpEntity() {
+			@Override
+			public boolean isRepeatable() {
+				return true;
+			}
+
+			@Override
+			public long getContentLength() {
+				return TransactionBody.this.getContentLength();
+			}
+
+			@Override
+			public InputStream getContent() {
+				return openStream();
+			}
+
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				TransactionBody.this.writeTo(out);
+			}
+
+			@Override
+			public boolean isStreaming() {
+				return false;
+			}
+		};
+		entity.setContentType(CONTENT_TYPE.toString());
+		return entity;
+	}
+
+	// request entity for the async client, written as fast as the connection (or the h2 stream window) takes it;
+	// writing[0] and writing[1] get the times the body started and finished
+	AsyncEntityProducer toAsyncEntityProducer(long[] writing) {
+		return new AsyncEntityProducer() {
+			private final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+			private InputStream in;
+			private boolean eof = false;
+
+			@Override
+			public boolean isRepeatable() {
+				return true;
+			}
+
+			@Override
+			public String getContentType() {
+				return CONTENT_TYPE.toString();
+			}
+
+			@Override
+			public long getContentLength() {
+				return TransactionBody.this.getContentLength();
+			}
+
+			@Override
+			public String getContentEncoding() {
+				return null;
+			}
+
+			@Override
+			public boolean isChunked() {
+				return false;
+			}
+
+			@Override
+			public Set<String> getTrailerNames() {
+				return null;
+			}
+
+			@Override
+			public int available() {
+				return eof ? 0 : Math.max(buffer.remaining(), 1);
+			}
+
+			@Override
+			public void produce(DataStreamChannel channel) throws IOException {
+				if (in == null) {
+					in = openStream();
+					buffer.limit(0);
+					writing[0] = System.nanoTime();
+				}
+				while (true) {
+					if (!buffer.hasRemaining()) {
+						int n = in.read(buffer.array(), 0, buffer.capacity());
+						if (n == -1) {
+							eof = true;
+							channel.endStream();
+							writing[1] = System.nanoTime();
+							return;
+						}
+						buffer.position(0);
+						buffer.limit(n);
+					}
+					if (channel.write(buffer) == 0) {
+						// called again when the channel takes more
+						return;
+					}
+				}
+			}
+
+			@Override
+			public void failed(Exception cause) {
+				releaseResources();
+			}
+
+			// also before a retry, which re-opens the files
+			@Override
+			public void releaseResources() {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
+						// read only
+					}
+					in = null;
+				}
+				eof = false;
+			}
+		};
+	}
+
+	// the base64 SHA-1 of a file of the body as last streamed, null if it was not
+	String getDigest(File file) {
+		byte[][] digests = lastDigests;
+		int i = files.indexOf(file);
+		return digests == null || i < 0 || digests[i] == null ? null : Base64.getEncoder().encodeToString(digests[i]);
+	}
+
+	// the JSON as sent, but for each Binary.data: at most binaryChars characters of its base64, then its
+	// size, the SHA-1 computed when it was last streamed and the file name; each segment is written as is
+	void writeDump(OutputStream out, long binaryChars) throws IOException {
+		byte[][] digests = lastDigests;
+		for (int i = 0; i < segments.size(); i++) {
+			out.write(segments.get(i));
+			if (i >= slots.size()) {
+				continue;
+			}
+			Slot slot = slots.get(i);
+			File file = files.get(slot.file);
+			byte[] digest = digests == null ? null : digests[slot.file];
+			if (slot.hash) {
+				out.write((digest != null ? Base64.getEncoder().encodeToString(digest) : "<sha1: " + file.getName() + ">").getBytes(StandardCharsets.UTF_8));
+				continue;
+			}
+			if (binaryChars > 0) {
+				try (InputStream in = new LazyBase64Stream(file, lengths.get(slot.file), d -> { })) {
+					byte[] buf = new byte[CHUNK_SIZE];
+					long left = Math.min(binaryChars, base64Length(lengths.get(slot.file)));
+					int n;
+					while (left > 0 && (n = in.read(buf, 0, (int) Math.min(buf.length, left))) != -1) {
+						out.write(buf, 0, n);
+						left -= n;
+					}
+				}
+			}
+			String placeholder = "<" + lengths.get(slot.file) + " bytes"
+				+ (digest != null ? ", sha1 " + Base64.getEncoder().encodeToString(digest) : "")
+				+ ": " + file.getName() + ">";
+			out.write(placeholder.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private static long base64Length(long length) {
+		return 4 * ((length + 2) / 3);
+	}
+
+	/////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+	interface DigestSink {
+		void accept(byte[] digest);
+	}
+
+	// base64 of a file, opened on first read and closed at end of file; hands over the SHA-1 of what it read
+	static class LazyBase64Stream extends InputStream {
+		private final File file;
+		private final long expectedLength;
+		private final DigestSink digestSink;
+		private final MessageDigest sha1;
+		private FileChannel channel;
+		private final ByteBuffer raw = ByteBuffer.allocate(CHUNK_SIZE);
+		private byte[] encoded = new byte[0];
+		private int position = 0;
+		private long count = 0;
+		private boolean eof = false;
+
+		LazyBase64Stream(File file, long expectedLength, DigestSink digestSink) {
+			this.file = file;
+			this.expectedLength = expectedLength;
+			this.digestSink = digestSink;
+			try {
+				this.sha1 = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n = read(b, 0, 1);
+			return n == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (position >= encoded.length && !fill()) {
+				return -1;
+			}
+			int n = Math.min(len, encoded.length - position);
+			System.arraycopy(encoded, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		private boolean fill() throws IOException {
+			if (eof) {
+				return false;
+			}
+			if (channel == null) {
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			}
+			// read whole chunks so only the last one needs padding
+			raw.clear();
+			while (raw.hasRemaining()) {
+				if (channel.read(raw) == -1) {
+					eof = true;
+					break;
+				}
+			}
+			raw.flip();
+			count += raw.remaining();
+			// Content-Length and Attachment.size were taken from the file length
+			if (count > expectedLength) {
+				throw new IOException("file changed while sending: " + file + ": more than " + expectedLength + " bytes");
+			}
+			sha1.update(raw.duplicate());
+			if (eof) {
+				close();
+				if (count != expectedLength) {
+					throw new IOException("file changed while sending: " + file + ": " + count + " bytes, expected " + expectedLength);
+				}
+				digestSink.accept(sha1.digest());
+			}
+			if (!raw.hasRemaining()) {
+				return false;
+			}
+			encoded = Base64.getEncoder().encode(raw).array();
+			position = 0;
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (channel != null) {
+				channel.close();
+				channel = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package kr.irm.fhir;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+// The ids of the documents: random UUIDs and 2.25.<UUID as decimal> OIDs, and the same derived from a
+// seed (--manifest-uid-seed, --document-uid-seed). Each thread has its own generator, seeded once from
+// the shared SecureRandom that UUID.randomUUID() would lock on every id, and its own MD5 digest.
+// The 128-bit value is rendered straight to decimal: the same digits as new BigInteger(bytes).abs().
+public class UidGenerator {
+
+	private static final SecureRandom SEEDER = new SecureRandom();
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final long BILLION = 1000000000L;
+
+	private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(() -> {
+		try {
+			SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+			random.setSeed(SEEDER.generateSeed(32));
+			return random;
+		} catch (NoSuchAlgorithmException e) {
+			return new SecureRandom();
+		}
+	});
+	private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new InternalError("MD5 not supported", e);
+		}
+	});
+	private static final ThreadLocal<byte[]> BYTES = ThreadLocal.withInitial(() -> new byte[16]);
+
+	// as UUID.randomUUID().toString()
+	static String randomUUID() {
+		byte[] bytes = BYTES.get();
+		RANDOM.get().nextBytes(bytes);
+		bytes[6] = (byte) ((bytes[6] & 0x0f) | 0x40);
+		bytes[8] = (byte) ((bytes[8] & 0x3f) | 0x80);
+		return uuid(bytes);
+	}
+
+	// 2.25.<random UUID as decimal>
+	static String randomOID() {
+		byte[] bytes = BYTES.get();
+		RANDOM.get().nextBytes(bytes);
+		bytes[6] = (byte) ((bytes[6] & 0x0f) | 0x40);
+		bytes[8] = (byte) ((bytes[8] & 0x3f) | 0x80);
+		return oid(bytes);
+	}
+
+	// as UUID.nameUUIDFromBytes(seed as UTF-8).toString()
+	static String nameUUID(String seed) {
+		return uuid(nameBytes(seed));
+	}
+
+	// 2.25.<name UUID of seed as decimal>
+	static String nameOID(String seed) {
+		return oid(nameBytes(seed));
+	}
+
+	private static byte[] nameBytes(String seed) {
+		byte[] bytes = MD5.get().digest(seed.getBytes(StandardCharsets.UTF_8));
+		bytes[6] = (byte) ((bytes[6] & 0x0f) | 0x30);
+		bytes[8] = (byte) ((bytes[8] & 0x3f) | 0x80);
+		return bytes;
+	}
+
+	private static String uuid(byte[] bytes) {
+		char[] chars = new char[36];
+		int c = 0;
+		for (int i = 0; i < 16; i++) {
+			if (i == 4 || i == 6 || i == 8 || i == 10) {
+				chars[c++] = '-';
+			}
+			chars[c++] = HEX[(bytes[i] >> 4) & 0x0f];
+			chars[c++] = HEX[bytes[i] & 0x0f];
+		}
+		return new String(chars);
+	}
+
+	// "2.25." and the absolute value of the bytes as a signed 128-bit number, in decimal
+	static String oid(byte[] bytes) {
+		long hi = 0;
+		long lo = 0;
+		for (int i = 0; i < 8; i++) {
+			hi = (hi << 8) | (bytes[i] & 0xff);
+			lo = (lo << 8) | (bytes[i + 8] & 0xff);
+		}
+		if (hi < 0) {
+			lo = -lo;
+			hi = lo == 0 ? -hi : ~hi;
+		}
+
+		// 32-bit limbs, most significant first, divided by 10^9 until nothing is left
+		long[] limbs = {hi >>> 32, hi & 0xffffffffL, lo >>> 32, lo & 0xffffffffL};
+		char[] digits = new char[5 + 39];
+		int d = digits.length;
+		boolean zero;
+		do {
+			long remainder = 0;
+			zero = true;
+			for (int i = 0; i < 4; i++) {
+				long current = (remainder << 32) | limbs[i];
+				limbs[i] = current / BILLION;
+				remainder = current % BILLION;
+				zero &= limbs[i] == 0;
+			}
+			// nine digits, or those left of the most significant chunk
+			for (int i = 0; i < 9 && (!zero || remainder != 0 || i == 0); i++) {
+				digits[--d] = (char) ('0' + remainder % 10);
+				remainder /= 10;
+			}
+		} while (!zero);
+		digits[--d] = '.';
+		digits[--d] = '5';
+		digits[--d] = '2';
+		digits[--d] = '.';
+		digits[--d] = '2';
+		return new String(digits, d, digits.length - d);
+	}
+}
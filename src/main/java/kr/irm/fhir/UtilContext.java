@@ -16,7 +16,15 @@ public class UtilContext {
 	public static final String OPTION_SERVER_URL = "server-url";
 	public static final String OPTION_ATTACH_URL = "attach-url";
 	public static final String OPTION_TIMEOUT = "timeout";
+	public static final String OPTION_CONNECT_TIMEOUT = "connect-timeout";
+	public static final String OPTION_IDLE_TIMEOUT = "idle-timeout";
+	public static final String OPTION_MAX_CONNECTIONS = "max-connections";
+	public static final String OPTION_COMPRESS = "compress";
+	public static final String OPTION_HTTP2 = "http2";
 	public static final String OPTION_VERBOSE = "verbose";
+	public static final String OPTION_VERBOSE_FILE = "verbose-file";
+	public static final String OPTION_VERBOSE_BINARY = "verbose-binary";
+	public static final String OPTION_QUIET = "quiet";
 	public static final String OPTION_PATIENT_ID = "patient-id";
 	public static final String OPTION_PATIENT_NANE = "patient-name";
 	public static final String OPTION_PATIENT_SEX = "patient-sex";
@@ -27,6 +35,18 @@ public class UtilContext {
 	public static final String OPTION_AUTHOR_LASTNAME = "author-lastname";
 	public static final String OPTION_AUTHOR_ASSIGN_UID = "author-assign-uid";
 
+	// Patient cache
+	public static final String OPTION_PATIENT_CACHE = "patient-cache";
+	public static final String OPTION_PATIENT_CACHE_TTL = "patient-cache-ttl";
+	public static final String OPTION_PATIENT_CACHE_SIZE = "patient-cache-size";
+	public static final String OPTION_PATIENT_REVALIDATE = "patient-revalidate";
+	public static final String OPTION_PATIENT_CONDITIONAL_CREATE = "patient-conditional-create";
+
+	// Binary index
+	public static final String OPTION_BINARY_INDEX = "binary-index";
+	public static final String OPTION_BINARY_INDEX_TTL = "binary-index-ttl";
+	public static final String OPTION_BINARY_VERIFY = "binary-verify";
+
 	// Document Manifest
 	public static final String OPTION_MANIFEST_UUID = "manifest-uuid";
 	public static final String OPTION_MANIFEST_UID = "manifest-uid";
@@ -63,6 +83,53 @@ public class UtilContext {
 	public static final String OPTION_BINARY_UUID = "binary-uuid";
 	public static final String OPTION_DATA_BINARY = "data-binary";
 
+	// one map of document-uuid, document-uid, binary-uuid, data-binary and document-title per file
+	public static final String OPTION_DOCUMENTS = "documents";
+
+	// Batch
+	public static final String OPTION_BATCH = "batch";
+	public static final String OPTION_BATCH_THREADS = "batch-threads";
+	public static final String OPTION_BATCH_RESULT = "batch-result";
+
+	// Hot folder
+	public static final String OPTION_WATCH = "watch";
+	public static final String OPTION_WATCH_SETTLE = "watch-settle";
+	public static final String OPTION_WATCH_THREADS = "watch-threads";
+	public static final String OPTION_WATCH_QUEUE = "watch-queue";
+	// batch and watch modes: upper bound of the adaptive in-flight transaction limit
+	public static final String OPTION_MAX_IN_FLIGHT = "max-in-flight";
+
+	// Outbox
+	public static final String OPTION_OUTBOX = "outbox";
+	public static final String OPTION_OUTBOX_MAX_AGE = "outbox-max-age";
+	public static final String OPTION_OUTBOX_DRAIN = "outbox-drain";
+	// set by the long-running modes, which resend spooled transactions in the background
+	public static final String OPTION_OUTBOX_RETRY = "outbox-retry";
+
+	// Ledger
+	public static final String OPTION_LEDGER = "ledger";
+	public static final String OPTION_LEDGER_FIND = "ledger-find";
+	public static final String OPTION_LEDGER_RESEND = "ledger-resend";
+
+	// Export
+	public static final String OPTION_EXPORT = "export";
+	public static final String OPTION_EXPORT_FILE_SIZE = "export-file-size";
+	public static final String OPTION_EXPORT_IMPORT = "export-import";
+
+	// Metrics
+	public static final String OPTION_METRICS_PORT = "metrics-port";
+	public static final String OPTION_METRICS_FILE = "metrics-file";
+
+	// Template
+	public static final String OPTION_TEMPLATE = "template";
+
+	// Terminology
+	public static final String OPTION_TERMINOLOGY = "terminology";
+	public static final String OPTION_TERMINOLOGY_CHECK = "terminology-check";
+
+	// Resident
+	public static final String OPTION_RESIDENT = "resident";
+
 	// XDS
 
 }
\ No newline at end of file
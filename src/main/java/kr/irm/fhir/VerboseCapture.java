@@ -0,0 +1,74 @@
+package kr.irm.fhir;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// --verbose: each transaction and its response appended to a capture file of its own (--verbose-file)
+// instead of the log. The request is written after it was sent, segment by segment, with each
+// Binary.data replaced by its size and SHA-1 (--verbose-binary: after its first characters); the
+// response is encoded straight into the file. Nothing of either is held in memory as a whole.
+public class VerboseCapture {
+	private static final Logger LOG = LoggerFactory.getLogger(VerboseCapture.class);
+
+	static final String DEFAULT_FILE = "MHDsend-verbose.log";
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final Map<String, VerboseCapture> CAPTURES = new ConcurrentHashMap<>();
+
+	private final File file;
+	private final long binaryChars;
+	private OutputStream out;
+
+	private VerboseCapture(File file, long binaryChars) {
+		this.file = file;
+		this.binaryChars = binaryChars;
+	}
+
+	// one capture per file and binary cap in a JVM, flushed after each transaction
+	static VerboseCapture open(File file, long binaryChars) {
+		return CAPTURES.computeIfAbsent(file.getAbsolutePath() + "\u0000" + binaryChars, key -> new VerboseCapture(file, binaryChars));
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	// response: the response bundle, or null with the failure
+	synchronized void write(String serverURL, TransactionBody body, Bundle response, String failure) {
+		try {
+			if (out == null) {
+				out = new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE);
+			}
+			String time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+			header("[" + time + "] Request=POST " + serverURL + ", " + body.getContentLength() + " bytes");
+			body.writeDump(out, binaryChars);
+			out.write('\n');
+			if (response != null) {
+				header("Response=");
+				Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+				SharedFhirContext.get().newJsonParser().setPrettyPrint(true).encodeResourceToWriter(response, writer);
+				writer.flush();
+				out.write('\n');
+			} else {
+				header("Failure=");
+				out.write(String.valueOf(failure).getBytes(StandardCharsets.UTF_8));
+				out.write('\n');
+			}
+			out.flush();
+		} catch (IOException | RuntimeException e) {
+			LOG.warn("transaction NOT written to verbose file: {}: {}", file, e.toString());
+		}
+	}
+
+	private void header(String line) throws IOException {
+		out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,203 @@
+package kr.irm.fhir;
+
+import junit.framework.TestCase;
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+public class DeliveryLedgerTest extends TestCase {
+
+	private static final String SERVER_URL = "http://127.0.0.1:9/fhir";
+
+	private File dir;
+	private DeliveryLedger ledger;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("DeliveryLedgerTest").toFile();
+		ledger = DeliveryLedger.open(dir);
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	public void testDeliveredAfterAppend() throws IOException {
+		ledger.append(Arrays.asList(record("m1", "d1", "s1"), record("m1", "d2", "s2")));
+
+		List<String[]> records = ledger.delivered(SERVER_URL, "m1", Arrays.asList("d1", "d2"));
+		assertEquals(2, records.size());
+		assertEquals("d1", records.get(0)[DeliveryLedger.DOCUMENT_UID]);
+		assertEquals("s1", records.get(0)[DeliveryLedger.SHA1]);
+		assertEquals("d2", records.get(1)[DeliveryLedger.DOCUMENT_UID]);
+	}
+
+	public void testNotDelivered() throws IOException {
+		ledger.append(Collections.singletonList(record("m1", "d1", "s1")));
+
+		// every document of the manifest, to the same server
+		assertNull(ledger.delivered(SERVER_URL, "m1", Arrays.asList("d1", "d2")));
+		assertNull(ledger.delivered(SERVER_URL, "m2", Collections.singletonList("d1")));
+		assertNull(ledger.delivered(SERVER_URL + "/2", "m1", Collections.singletonList("d1")));
+		assertNull(ledger.delivered(SERVER_URL, "m1", Collections.singletonList("s1")));
+	}
+
+	public void testLastRecordOfADocument() throws IOException {
+		ledger.append(Collections.singletonList(record("m1", "d1", "s1")));
+		ledger.append(Collections.singletonList(record("m1", "d1", "s2")));
+
+		assertEquals("s2", ledger.delivered(SERVER_URL, "m1", Collections.singletonList("d1")).get(0)[DeliveryLedger.SHA1]);
+	}
+
+	// a value with a tab or newline would split the record
+	public void testFieldsSanitized() throws IOException {
+		String[] record = record("m1", "d1", "s1");
+		record[DeliveryLedger.DOCUMENT_LOCATION] = "a\tb\nc";
+		ledger.append(Collections.singletonList(record));
+
+		assertEquals("a b c", ledger.delivered(SERVER_URL, "m1", Collections.singletonList("d1")).get(0)[DeliveryLedger.DOCUMENT_LOCATION]);
+		assertEquals(1, Files.readAllLines(new File(dir, "ledger").toPath()).size());
+	}
+
+	// records appended by another process are indexed when the ledger is next read
+	public void testRecordsOfAnotherProcess() throws IOException {
+		ledger.append(Collections.singletonList(record("m1", "d1", "s1")));
+		appendLine(line(record("m2", "d2", "s2")));
+
+		assertNotNull(ledger.delivered(SERVER_URL, "m2", Collections.singletonList("d2")));
+		assertNotNull(ledger.delivered(SERVER_URL, "m1", Collections.singletonList("d1")));
+	}
+
+	// a line is indexed only once its end is written; a line torn by a crash is skipped
+	public void testTornLine() throws IOException {
+		String line = line(record("m1", "d1", "s1"));
+		appendLine(line.substring(0, 40));
+		assertNull(ledger.delivered(SERVER_URL, "m1", Collections.singletonList("d1")));
+		appendLine(line.substring(40));
+		assertNotNull(ledger.delivered(SERVER_URL, "m1", Collections.singletonList("d1")));
+
+		appendLine(line(record("m2", "d2", "s2")).substring(0, 40));
+		ledger.append(Collections.singletonList(record("m3", "d3", "s3")));
+		assertNull(ledger.delivered(SERVER_URL, "m2", Collections.singletonList("d2")));
+		assertNotNull(ledger.delivered(SERVER_URL, "m3", Collections.singletonList("d3")));
+		List<String> lines = Files.readAllLines(new File(dir, "ledger").toPath());
+		assertEquals(3, lines.size());
+	}
+
+	public void testIndexRebuiltWhenInvalid() throws IOException {
+		ledger.append(Arrays.asList(record("m1", "d1", "s1"), record("m2", "d2", "s2")));
+		try (RandomAccessFile index = new RandomAccessFile(new File(dir, "ledger.index.16384"), "rw")) {
+			index.writeLong(0);
+		}
+		assertNotNull(ledger.delivered(SERVER_URL, "m1", Collections.singletonList("d1")));
+		assertNotNull(ledger.delivered(SERVER_URL, "m2", Collections.singletonList("d2")));
+	}
+
+	// a ledger shorter than the index says, e.g. restored from a backup
+	public void testIndexRebuiltWhenLedgerShrinks() throws IOException {
+		ledger.append(Collections.singletonList(record("m1", "d1", "s1")));
+		ledger.append(Collections.singletonList(record("m2", "d2", "s2")));
+		File ledgerFile = new File(dir, "ledger");
+		String first = Files.readAllLines(ledgerFile.toPath()).get(0);
+		Files.write(ledgerFile.toPath(), (first + "\n").getBytes(StandardCharsets.UTF_8));
+
+		assertNotNull(ledger.delivered(SERVER_URL, "m1", Collections.singletonList("d1")));
+		assertNull(ledger.delivered(SERVER_URL, "m2", Collections.singletonList("d2")));
+	}
+
+	// three keys per record and the patient id: past half of the initial 16384 slots the index moves to a
+	// file twice as large
+	public void testIndexGrows() throws IOException {
+		List<String[]> records = new ArrayList<>();
+		for (int i = 0; i < 3000; i++) {
+			records.add(record("m" + i, "d" + i, "s" + i));
+		}
+		ledger.append(records);
+
+		assertTrue(new File(dir, "ledger.index.32768").isFile());
+		assertFalse(new File(dir, "ledger.index.16384").exists());
+		for (int i = 0; i < 3000; i++) {
+			List<String[]> delivered = ledger.delivered(SERVER_URL, "m" + i, Collections.singletonList("d" + i));
+			assertNotNull("d" + i, delivered);
+			assertEquals("s" + i, delivered.get(0)[DeliveryLedger.SHA1]);
+		}
+	}
+
+	public void testRecordFromResponse() throws IOException {
+		List<String[]> documents = Arrays.asList(
+			new String[] {"d1", "s1", "urn:uuid:1"},
+			new String[] {"d2", "s2", "http://store/2"});
+		DeliveryLedger.Delivery delivery = new DeliveryLedger.Delivery("m1", "p1", "MBD-D", documents);
+		Bundle response = new Bundle();
+		for (String location : new String[] {"DocumentManifest/1", "Binary/1", "DocumentReference/1", "Patient/1", "DocumentReference/2"}) {
+			response.addEntry().getResponse().setLocation(location).setEtag("W/\"1\"");
+		}
+		ledger.record(SERVER_URL, delivery, response);
+
+		List<String[]> records = ledger.delivered(SERVER_URL, "m1", Arrays.asList("d1", "d2"));
+		assertEquals("DocumentReference/1", records.get(0)[DeliveryLedger.DOCUMENT_LOCATION]);
+		assertEquals("Binary/1", records.get(0)[DeliveryLedger.BINARY_LOCATION]);
+		assertEquals("DocumentManifest/1", records.get(0)[DeliveryLedger.MANIFEST_LOCATION]);
+		assertEquals("p1", records.get(0)[DeliveryLedger.PATIENT_ID]);
+		assertEquals("DocumentReference/2", records.get(1)[DeliveryLedger.DOCUMENT_LOCATION]);
+		// no Binary in the transaction: the URL of the attachment
+		assertEquals("http://store/2", records.get(1)[DeliveryLedger.BINARY_LOCATION]);
+		assertEquals("", records.get(1)[DeliveryLedger.BINARY_ETAG]);
+	}
+
+	public void testPrintByAnyKey() throws IOException {
+		ledger.append(Arrays.asList(record("m1", "d1", "s1"), record("m1", "d2", "s2")));
+
+		assertEquals(2, print("m1").size());
+		assertEquals(1, print("s2").size());
+		assertEquals(2, print("p1").size());
+		assertEquals(0, print("m2").size());
+	}
+
+	/////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+	private static String[] record(String manifestUid, String documentUid, String sha1) {
+		String[] record = new String[DeliveryLedger.FIELDS.length];
+		record[DeliveryLedger.SERVER] = SERVER_URL;
+		record[DeliveryLedger.MANIFEST_UID] = manifestUid;
+		record[DeliveryLedger.DOCUMENT_UID] = documentUid;
+		record[DeliveryLedger.PATIENT_ID] = "p1";
+		record[DeliveryLedger.SHA1] = sha1;
+		record[DeliveryLedger.DOCUMENT_LOCATION] = "DocumentReference/" + documentUid;
+		return record;
+	}
+
+	private static String line(String[] record) {
+		StringBuilder line = new StringBuilder("1");
+		for (int i = 1; i < record.length; i++) {
+			line.append('\t').append(record[i] == null ? "" : record[i]);
+		}
+		return line.append('\n').toString();
+	}
+
+	private void appendLine(String line) throws IOException {
+		Files.write(new File(dir, "ledger").toPath(), line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+	}
+
+	// the records printed, without the header
+	private List<String> print(String value) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int status = ledger.print(value, new PrintStream(out, true, "UTF-8"));
+		List<String> lines = new ArrayList<>(Arrays.asList(new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n")));
+		assertEquals(String.join("\t", DeliveryLedger.FIELDS), lines.remove(0));
+		assertEquals(lines.isEmpty() ? 99 : 0, status);
+		return lines;
+	}
+}
@@ -0,0 +1,167 @@
+package kr.irm.fhir;
+
+import junit.framework.TestCase;
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class OutboxTest extends TestCase {
+
+	private static final String SERVER_URL = "http://127.0.0.1:9/fhir";
+
+	private File dir;
+	private Outbox outbox;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("OutboxTest").toFile();
+		outbox = Outbox.open(dir, 3600);
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		delete(dir);
+	}
+
+	public void testSpooledTransactionsReplayed() throws IOException {
+		String first = outbox.spool(SERVER_URL, body(), null, null);
+		String second = outbox.spool(SERVER_URL + "/2", body(), null, null);
+
+		List<Outbox.Entry> entries = outbox.replay();
+		assertEquals(2, entries.size());
+		assertEquals(first, entries.get(0).id);
+		assertEquals(SERVER_URL, entries.get(0).serverURL);
+		assertEquals(second, entries.get(1).id);
+		assertEquals(SERVER_URL + "/2", entries.get(1).serverURL);
+		assertNull(entries.get(0).delivery);
+		assertTrue(new File(dir, first + ".json").isFile());
+	}
+
+	public void testDeliveryForLedgerReplayed() throws IOException {
+		File ledgerDir = new File(dir, "ledger");
+		DeliveryLedger.Delivery delivery = new DeliveryLedger.Delivery("1.2.3", "p1", "MBD",
+			Collections.singletonList(new String[] {"1.2.4", "sha1=", "urn:uuid:1"}));
+		outbox.spool(SERVER_URL, body(), ledgerDir, delivery);
+
+		Outbox.Entry entry = outbox.replay().get(0);
+		assertEquals(ledgerDir.getAbsolutePath(), entry.ledgerDir.getAbsolutePath());
+		assertEquals("1.2.3", entry.delivery.manifestUid);
+		assertEquals("p1", entry.delivery.patientId);
+		assertEquals("MBD", entry.delivery.entries);
+		assertEquals(1, entry.delivery.documents.size());
+		assertTrue(Arrays.equals(new String[] {"1.2.4", "sha1=", "urn:uuid:1"}, entry.delivery.documents.get(0)));
+	}
+
+	public void testFinishedTransactionsNotReplayed() throws IOException {
+		String done = outbox.spool(SERVER_URL, body(), null, null);
+		String dead = outbox.spool(SERVER_URL, body(), null, null);
+		String pending = outbox.spool(SERVER_URL, body(), null, null);
+		journal("DONE\t" + done + "\nDEAD\t" + dead + "\tHTTP 400\n");
+
+		List<Outbox.Entry> entries = outbox.replay();
+		assertEquals(1, entries.size());
+		assertEquals(pending, entries.get(0).id);
+	}
+
+	public void testAttemptsReplayed() throws IOException {
+		String id = outbox.spool(SERVER_URL, body(), null, null);
+		journal("TRY\t" + id + "\t1\t100\nTRY\t" + id + "\t2\t200\n");
+
+		Outbox.Entry entry = outbox.replay().get(0);
+		assertEquals(2, entry.attempts);
+		assertEquals(200, entry.nextAttempt);
+	}
+
+	// a crash in the middle of an append leaves a partial last line
+	public void testTornRecordSkipped() throws IOException {
+		String id = outbox.spool(SERVER_URL, body(), null, null);
+		journal("TRY\t" + id + "\t1\t100\nTRY\t" + id + "\t2\t2");
+		Outbox.Entry entry = outbox.replay().get(0);
+		assertEquals(id, entry.id);
+		assertEquals(1, entry.attempts);
+		assertEquals(100, entry.nextAttempt);
+
+		// the next append drops it instead of running on from it
+		String next = outbox.spool(SERVER_URL, body(), null, null);
+		List<Outbox.Entry> entries = outbox.replay();
+		assertEquals(2, entries.size());
+		assertEquals(1, entries.get(0).attempts);
+		assertEquals(next, entries.get(1).id);
+		String journal = new String(Files.readAllBytes(new File(dir, "journal").toPath()), StandardCharsets.UTF_8);
+		assertFalse(journal.contains("\t2\t2"));
+		assertTrue(journal.endsWith("\n"));
+	}
+
+	public void testInvalidRecordSkipped() throws IOException {
+		String id = outbox.spool(SERVER_URL, body(), null, null);
+		journal("TRY\t" + id + "\tx\t100\nPUT\t3\n");
+		List<Outbox.Entry> entries = outbox.replay();
+		assertEquals(1, entries.size());
+		assertEquals(0, entries.get(0).attempts);
+	}
+
+	// a body of a crash before its PUT, or a PUT whose body is gone, is not retried
+	public void testCrashLeftovers() throws IOException {
+		Files.write(new File(dir, "1-orphan.json").toPath(), "{}".getBytes(StandardCharsets.UTF_8));
+		String id = outbox.spool(SERVER_URL, body(), null, null);
+		journal("PUT\t2-gone\t2\t" + SERVER_URL + "\n");
+
+		List<Outbox.Entry> entries = outbox.replay();
+		assertEquals(1, entries.size());
+		assertEquals(id, entries.get(0).id);
+	}
+
+	public void testCompactionKeepsPendingTransactions() throws IOException {
+		File ledgerDir = new File(dir, "ledger");
+		DeliveryLedger.Delivery delivery = new DeliveryLedger.Delivery("1.2.3", "p1", "MD",
+			Collections.singletonList(new String[] {"1.2.4", "sha1=", ""}));
+		String pending = outbox.spool(SERVER_URL, body(), ledgerDir, delivery);
+		StringBuilder records = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			String id = outbox.spool(SERVER_URL, body(), null, null);
+			records.append("DONE\t").append(id).append('\n');
+		}
+		records.append("TRY\t").append(pending).append("\t4\t400\n");
+		journal(records.toString());
+
+		assertEquals(1, outbox.replay().size());
+		List<String> lines = Files.readAllLines(new File(dir, "journal").toPath(), StandardCharsets.UTF_8);
+		assertEquals(3, lines.size());
+
+		List<Outbox.Entry> entries = outbox.replay();
+		assertEquals(1, entries.size());
+		Outbox.Entry entry = entries.get(0);
+		assertEquals(pending, entry.id);
+		assertEquals(4, entry.attempts);
+		assertEquals(400, entry.nextAttempt);
+		assertEquals("1.2.3", entry.delivery.manifestUid);
+		assertEquals("", entry.delivery.documents.get(0)[2]);
+	}
+
+	/////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+	private static TransactionBody body() {
+		return new TransactionBody(SharedFhirContext.get(), new Bundle(), Collections.emptyMap());
+	}
+
+	private void journal(String records) throws IOException {
+		Files.write(new File(dir, "journal").toPath(), records.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,190 @@
+package kr.irm.fhir;
+
+import junit.framework.TestCase;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DocumentReference;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+public class TransactionBodyTest extends TestCase {
+
+	// around the 48 KB read chunk and the 3-byte base64 groups
+	private static final int[] SIZES = {0, 1, 2, 3, 4, 5, 49151, 49152, 49153, 100000};
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("TransactionBodyTest").toFile();
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	public void testBinaryDataAtMarkers() throws IOException {
+		Bundle bundle = new Bundle();
+		Map<Binary, File> payloads = new LinkedHashMap<>();
+		List<byte[]> contents = new ArrayList<>();
+		for (int size : SIZES) {
+			byte[] content = randomBytes(size);
+			contents.add(content);
+			Binary binary = new Binary();
+			binary.setContentType("application/octet-stream");
+			bundle.addEntry().setResource(binary);
+			payloads.put(binary, write("payload-" + size, content));
+		}
+
+		TransactionBody body = new TransactionBody(SharedFhirContext.get(), bundle, payloads);
+		byte[] json = write(body);
+
+		Bundle sent = SharedFhirContext.get().newJsonParser().parseResource(Bundle.class, new String(json, "UTF-8"));
+		assertEquals(SIZES.length, sent.getEntry().size());
+		for (int i = 0; i < SIZES.length; i++) {
+			Binary binary = (Binary) sent.getEntry().get(i).getResource();
+			assertTrue("payload " + SIZES[i], Arrays.equals(contents.get(i), binary.getData() == null ? new byte[0] : binary.getData()));
+			assertEquals("application/octet-stream", binary.getContentType());
+		}
+		// the markers are not left in the resources
+		for (Binary binary : payloads.keySet()) {
+			assertNull(binary.getData());
+		}
+	}
+
+	public void testContentLengthIsExact() throws IOException {
+		for (int size : SIZES) {
+			Bundle bundle = new Bundle();
+			Binary binary = new Binary();
+			bundle.addEntry().setResource(binary);
+			TransactionBody body = new TransactionBody(SharedFhirContext.get(), bundle,
+				Collections.singletonMap(binary, write("payload-" + size, randomBytes(size))));
+			assertEquals("size " + size, body.getContentLength(), write(body).length);
+		}
+	}
+
+	// a retry re-opens the files and sends the same bytes
+	public void testStreamIsRepeatable() throws IOException {
+		Bundle bundle = new Bundle();
+		Binary binary = new Binary();
+		bundle.addEntry().setResource(binary);
+		TransactionBody body = new TransactionBody(SharedFhirContext.get(), bundle,
+			Collections.singletonMap(binary, write("payload", randomBytes(70000))));
+		assertTrue(Arrays.equals(write(body), write(body)));
+	}
+
+	// each Attachment.hash gets the SHA-1 of the file read for its Binary, and the length stays exact
+	public void testAttachmentHashOfEachFile() throws IOException, NoSuchAlgorithmException {
+		Bundle bundle = new Bundle();
+		Map<Binary, File> payloads = new HashMap<>();
+		Map<Attachment, File> hashes = new HashMap<>();
+		List<byte[]> contents = new ArrayList<>();
+		for (int size : new int[] {0, 49153, 3}) {
+			byte[] content = randomBytes(size);
+			contents.add(content);
+			File file = write("payload-" + size, content);
+			Binary binary = new Binary();
+			bundle.addEntry().setResource(binary);
+			DocumentReference documentReference = new DocumentReference();
+			Attachment attachment = documentReference.addContent().getAttachment();
+			bundle.addEntry().setResource(documentReference);
+			payloads.put(binary, file);
+			hashes.put(attachment, file);
+		}
+
+		TransactionBody body = new TransactionBody(SharedFhirContext.get(), bundle, payloads, hashes);
+		byte[] json = write(body);
+		assertEquals(body.getContentLength(), json.length);
+
+		Bundle sent = SharedFhirContext.get().newJsonParser().parseResource(Bundle.class, new String(json, "UTF-8"));
+		for (int i = 0; i < contents.size(); i++) {
+			byte[] sha1 = MessageDigest.getInstance("SHA-1").digest(contents.get(i));
+			DocumentReference documentReference = (DocumentReference) sent.getEntry().get(2 * i + 1).getResource();
+			assertTrue(Arrays.equals(sha1, documentReference.getContentFirstRep().getAttachment().getHash()));
+			assertEquals(Base64.getEncoder().encodeToString(sha1), body.getDigest(new File(dir, "payload-" + contents.get(i).length)));
+		}
+		for (Attachment attachment : hashes.keySet()) {
+			assertFalse(attachment.hasHash());
+		}
+	}
+
+	public void testAttachmentHashBeforeBinaryRejected() throws IOException {
+		File file = write("payload", randomBytes(10));
+		Bundle bundle = new Bundle();
+		DocumentReference documentReference = new DocumentReference();
+		Attachment attachment = documentReference.addContent().getAttachment();
+		bundle.addEntry().setResource(documentReference);
+		Binary binary = new Binary();
+		bundle.addEntry().setResource(binary);
+		try {
+			new TransactionBody(SharedFhirContext.get(), bundle, Collections.singletonMap(binary, file), Collections.singletonMap(attachment, file));
+			fail("Attachment.hash before its Binary accepted");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	public void testAbortWhenFileGrows() throws IOException {
+		File file = write("payload", randomBytes(60000));
+		TransactionBody body = body(file);
+		try (FileOutputStream out = new FileOutputStream(file, true)) {
+			out.write(1);
+		}
+		assertChanged(body);
+	}
+
+	public void testAbortWhenFileShrinks() throws IOException {
+		File file = write("payload", randomBytes(60000));
+		TransactionBody body = body(file);
+		write("payload", randomBytes(59999));
+		assertChanged(body);
+	}
+
+	/////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+	private TransactionBody body(File file) {
+		Bundle bundle = new Bundle();
+		Binary binary = new Binary();
+		bundle.addEntry().setResource(binary);
+		return new TransactionBody(SharedFhirContext.get(), bundle, Collections.singletonMap(binary, file));
+	}
+
+	private static void assertChanged(TransactionBody body) {
+		try {
+			write(body);
+			fail("body written for a changed file");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("file changed while sending"));
+		}
+	}
+
+	static byte[] write(TransactionBody body) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		body.writeTo(out);
+		return out.toByteArray();
+	}
+
+	File write(String name, byte[] content) throws IOException {
+		File file = new File(dir, name);
+		Files.write(file.toPath(), content);
+		return file;
+	}
+
+	static byte[] randomBytes(int size) {
+		byte[] bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,72 @@
+package kr.irm.fhir;
+
+import junit.framework.TestCase;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+// Seeded ids must stay byte-identical to those of UUID.nameUUIDFromBytes and new BigInteger(bytes).abs()
+public class UidGeneratorTest extends TestCase {
+
+	private static final int SEEDS = 200000;
+
+	public void testNameUUIDMatchesJdk() {
+		for (int i = 0; i < SEEDS; i++) {
+			String seed = "seed-" + i;
+			assertEquals(seed, UUID.nameUUIDFromBytes(seed.getBytes(StandardCharsets.UTF_8)).toString(), UidGenerator.nameUUID(seed));
+		}
+	}
+
+	public void testNameOIDMatchesBigInteger() {
+		for (int i = 0; i < SEEDS; i++) {
+			String seed = "seed-" + i;
+			UUID uuid = UUID.nameUUIDFromBytes(seed.getBytes(StandardCharsets.UTF_8));
+			assertEquals(seed, "2.25." + new BigInteger(bytes(uuid)).abs(), UidGenerator.nameOID(seed));
+		}
+	}
+
+	public void testOIDOfEdgeValues() {
+		byte[][] edges = new byte[8][16];
+		Arrays.fill(edges[1], (byte) 0xff);
+		Arrays.fill(edges[2], (byte) 0xff);
+		edges[2][0] = 0x7f;
+		edges[3][0] = (byte) 0x80;
+		edges[4][15] = 1;
+		edges[5][7] = 1;
+		Arrays.fill(edges[6], 8, 16, (byte) 0xff);
+		edges[7][0] = (byte) 0x80;
+		edges[7][8] = (byte) 0x80;
+		for (byte[] bytes : edges) {
+			assertEquals(Arrays.toString(bytes), "2.25." + new BigInteger(bytes).abs(), UidGenerator.oid(bytes));
+		}
+	}
+
+	public void testOIDOfRandomValues() {
+		Random random = new Random(25);
+		byte[] bytes = new byte[16];
+		for (int i = 0; i < SEEDS; i++) {
+			random.nextBytes(bytes);
+			assertEquals(Arrays.toString(bytes), "2.25." + new BigInteger(bytes).abs(), UidGenerator.oid(bytes));
+		}
+	}
+
+	public void testRandomUUIDIsVersion4() {
+		for (int i = 0; i < 1000; i++) {
+			UUID uuid = UUID.fromString(UidGenerator.randomUUID());
+			assertEquals(4, uuid.version());
+			assertEquals(2, uuid.variant());
+		}
+	}
+
+	private static byte[] bytes(UUID uuid) {
+		byte[] bytes = new byte[16];
+		for (int i = 0; i < 8; i++) {
+			bytes[i] = (byte) (uuid.getMostSignificantBits() >>> (56 - 8 * i));
+			bytes[i + 8] = (byte) (uuid.getLeastSignificantBits() >>> (56 - 8 * i));
+		}
+		return bytes;
+	}
+}